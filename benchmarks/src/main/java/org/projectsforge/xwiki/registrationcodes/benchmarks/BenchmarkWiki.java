@@ -0,0 +1,357 @@
+package org.projectsforge.xwiki.registrationcodes.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import javax.inject.Provider;
+
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeTemplate;
+import org.projectsforge.xwiki.registrationcodes.service.DefaultRegistrationCodesService;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.embed.EmbeddableComponentManager;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.configuration.internal.MemoryConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.user.WikiUserManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The Class BenchmarkWiki runs the components of the registration codes API in
+ * an embedded component manager where the store, the queries and the wiki
+ * services are replaced by in-memory stand-ins.
+ */
+public class BenchmarkWiki implements AutoCloseable {
+
+  /** The Constant WIKI_ID. */
+  public static final String WIKI_ID = "xwiki";
+
+  /** The Constant GROUP_NAME. */
+  public static final String GROUP_NAME = "XWiki.BenchmarkGroup";
+
+  /** The Constant USER_PREFIX. */
+  public static final String USER_PREFIX = "XWiki.BenchmarkUser";
+
+  /** The component manager. */
+  private final EmbeddableComponentManager componentManager = new EmbeddableComponentManager();
+
+  /** The document store. */
+  private final InMemoryXWiki xwiki = new InMemoryXWiki();
+
+  /** The xwiki.properties configuration. */
+  private final MemoryConfigurationSource configuration = new MemoryConfigurationSource();
+
+  /** The permanent directory. */
+  private final File permanentDirectory;
+
+  /** The execution. */
+  private final Execution execution;
+
+  /** The contexts of the threads calling the components. */
+  private final ThreadLocal<XWikiContext> contexts = ThreadLocal.withInitial(this::createContext);
+
+  /** The codes of the populated registration code documents. */
+  private List<String> codes = Collections.emptyList();
+
+  /**
+   * Instantiates a new benchmark wiki.
+   *
+   * @throws IOException
+   *           if the permanent directory can not be created
+   * @throws ComponentLookupException
+   *           if the execution can not be found
+   */
+  public BenchmarkWiki() throws IOException, ComponentLookupException {
+    permanentDirectory = Files.createTempDirectory("registrationcodes-benchmarks").toFile();
+
+    // components declared on the classpath are registered lazily: only the
+    // roles below are replaced, the model and our components are the real ones
+    componentManager.initialize(getClass().getClassLoader());
+    register(QueryManager.class, new InMemoryQueryManager(xwiki));
+    register(new DefaultParameterizedType(null, Provider.class, XWikiContext.class),
+        (Provider<XWikiContext>) contexts::get);
+    // no wiki or user component managers in the benchmarks
+    register(new DefaultParameterizedType(null, Provider.class, ComponentManager.class), "context",
+        (Provider<ComponentManager>) () -> componentManager);
+    register(ConfigurationSource.class, "xwikiproperties", configuration);
+    register(Environment.class, new Environment() {
+
+      @Override
+      public File getPermanentDirectory() {
+        return permanentDirectory;
+      }
+
+      @Override
+      public URL getResource(String resourceName) {
+        return null;
+      }
+
+      @Override
+      public InputStream getResourceAsStream(String resourceName) {
+        return null;
+      }
+
+      @Override
+      public File getTemporaryDirectory() {
+        return permanentDirectory;
+      }
+    });
+    // listeners are not notified: the store does not send events
+    register(ObservationManager.class, standIn(ObservationManager.class, Collections.emptyMap()));
+    Map<String, Object> wikiIds = new HashMap<>();
+    wikiIds.put("getCurrentWikiId", WIKI_ID);
+    wikiIds.put("getMainWikiId", WIKI_ID);
+    wikiIds.put("getAllIds", Collections.singletonList(WIKI_ID));
+    register(WikiDescriptorManager.class, standIn(WikiDescriptorManager.class, wikiIds));
+    register(WikiUserManager.class, standIn(WikiUserManager.class, Collections.emptyMap()));
+    com.xpn.xwiki.web.Utils.setComponentManager(componentManager);
+
+    execution = componentManager.getInstance(Execution.class);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    componentManager.dispose();
+    try (Stream<Path> paths = Files.walk(permanentDirectory.toPath())) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  /**
+   * Creates the context of the current thread.
+   *
+   * @return the context
+   */
+  private XWikiContext createContext() {
+    XWikiContext context = new XWikiContext();
+    context.setWiki(xwiki);
+    context.setWikiId(WIKI_ID);
+    context.setMainXWiki(WIKI_ID);
+    context.setUserReference(new DocumentReference(WIKI_ID, "XWiki", "Admin"));
+
+    ExecutionContext executionContext = new ExecutionContext();
+    executionContext.setProperty(XWikiContext.EXECUTIONCONTEXT_KEY, context);
+    execution.setContext(executionContext);
+    return context;
+  }
+
+  /**
+   * Gets the codes of the populated registration code documents.
+   *
+   * @return the codes
+   */
+  public List<String> getCodes() {
+    return codes;
+  }
+
+  /**
+   * Gets the context of the current thread.
+   *
+   * @return the context
+   */
+  public XWikiContext getContext() {
+    return contexts.get();
+  }
+
+  /**
+   * Gets a component.
+   *
+   * @param <T>
+   *          the generic type
+   * @param role
+   *          the role
+   * @return the component
+   * @throws ComponentLookupException
+   *           the component lookup exception
+   */
+  public <T> T getInstance(Type role) throws ComponentLookupException {
+    return componentManager.getInstance(role);
+  }
+
+  /**
+   * Gets the registration codes service.
+   *
+   * @return the service
+   * @throws ComponentLookupException
+   *           the component lookup exception
+   */
+  public RegistrationCodesService getService() throws ComponentLookupException {
+    return getInstance(RegistrationCodesService.class);
+  }
+
+  /**
+   * Replaces the store content with registration codes, all of them adding
+   * their users to the same group.
+   *
+   * @param codeCount
+   *          the number of registration codes
+   * @param usersPerCode
+   *          the number of users having already used each code
+   * @param groupSize
+   *          the number of members of the group or 0 for codes not adding to
+   *          any group
+   * @throws ComponentLookupException
+   *           the component lookup exception
+   * @throws XWikiException
+   *           the XWiki exception
+   * @throws QueryException
+   *           the query exception
+   */
+  public void populate(int codeCount, int usersPerCode, int groupSize)
+      throws ComponentLookupException, XWikiException, QueryException {
+    XWikiContext context = getContext();
+    RegistrationCodesService service = getService();
+    DocumentReferenceResolver<String> resolver = getInstance(
+        new DefaultParameterizedType(null, DocumentReferenceResolver.class, String.class));
+    RegistrationCodeIndex index = getInstance(RegistrationCodeIndex.class);
+
+    xwiki.clear();
+    index.invalidate(WIKI_ID);
+
+    RegistrationCodeTemplate template = new RegistrationCodeTemplate();
+    template.setMaxUse(Integer.MAX_VALUE);
+    Calendar endDate = Calendar.getInstance();
+    endDate.add(Calendar.YEAR, 10);
+    template.setEndDate(endDate.getTime());
+    if (groupSize > 0) {
+      template.setAddToGroups(Collections.singletonList(GROUP_NAME));
+
+      XWikiDocument group = new XWikiDocument(resolver.resolve(GROUP_NAME));
+      for (int i = 0; i < groupSize; ++i) {
+        group.newXObject(DefaultRegistrationCodesService.GROUPCLASS_REFERENCE, context).setStringValue("member",
+            USER_PREFIX + "Member" + i);
+      }
+      xwiki.saveDocument(group, context);
+    }
+
+    List<String> newCodes = new ArrayList<>(codeCount);
+    for (int number = 1; number <= codeCount; ++number) {
+      XWikiDocument document = new XWikiDocument(resolver.resolve(RegistrationCode.getName(number)));
+      String code = UUID.randomUUID().toString();
+      RegistrationCode regCode = new RegistrationCode(service, document);
+      regCode.apply(code, template);
+      for (int i = 0; i < usersPerCode; ++i) {
+        for (XWikiDocument record : regCode.addUser(USER_PREFIX + "-" + number + "-" + i, context)) {
+          xwiki.saveDocument(record, context);
+        }
+      }
+      xwiki.saveDocument(document, context);
+      newCodes.add(code);
+    }
+    codes = newCodes;
+
+    index.load(WIKI_ID);
+  }
+
+  /**
+   * Registers a stand-in component with the default hint.
+   *
+   * @param role
+   *          the role
+   * @param instance
+   *          the instance
+   */
+  private void register(Type role, Object instance) {
+    register(role, "default", instance);
+  }
+
+  /**
+   * Registers a stand-in component.
+   *
+   * @param role
+   *          the role
+   * @param hint
+   *          the hint
+   * @param instance
+   *          the instance
+   */
+  private void register(Type role, String hint, Object instance) {
+    DefaultComponentDescriptor<Object> descriptor = new DefaultComponentDescriptor<>();
+    descriptor.setRoleType(role);
+    descriptor.setRoleHint(hint);
+    descriptor.setImplementation(instance.getClass());
+    componentManager.registerComponent(descriptor, instance);
+  }
+
+  /**
+   * Sets whether the users are enrolled in the background.
+   *
+   * @param asynchronous
+   *          true to enroll in the background
+   */
+  public void setEnrollmentAsynchronous(boolean asynchronous) {
+    configuration.setProperty("registrationcodes.enrollment.async", asynchronous);
+  }
+
+  /**
+   * Creates a stand-in for a role the benchmarks do not exercise: methods
+   * without result do nothing, the others return the given answers.
+   *
+   * @param <T>
+   *          the generic type
+   * @param role
+   *          the role
+   * @param answers
+   *          the answers by method name
+   * @return the stand-in
+   */
+  private static <T> T standIn(Class<T> role, Map<String, Object> answers) {
+    return role.cast(Proxy.newProxyInstance(role.getClassLoader(), new Class<?>[] { role }, (proxy, method, args) -> {
+      if (answers.containsKey(method.getName())) {
+        return answers.get(method.getName());
+      }
+      switch (method.getName()) {
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "Stand-in " + role.getName();
+        default:
+          if (method.getReturnType() == void.class) {
+            return null;
+          }
+          throw new UnsupportedOperationException(role.getName() + "#" + method.getName());
+      }
+    }));
+  }
+
+}
@@ -0,0 +1,169 @@
+package org.projectsforge.xwiki.registrationcodes.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+/**
+ * The Class InMemoryQueryManager stands in for the query manager by answering
+ * the queries of the registration codes API from an {@link InMemoryXWiki}.
+ */
+public class InMemoryQueryManager implements QueryManager {
+
+  /**
+   * The handler of the query proxies: the parameters are recorded and the
+   * statement is answered when executed.
+   */
+  private class QueryHandler implements InvocationHandler {
+
+    /** The statement. */
+    private final String statement;
+
+    /** The language. */
+    private final String language;
+
+    /** The wiki. */
+    private String wiki;
+
+    /** The named parameters. */
+    private final Map<String, Object> parameters = new HashMap<>();
+
+    /**
+     * Instantiates a new query handler.
+     *
+     * @param statement
+     *          the statement
+     * @param language
+     *          the language
+     */
+    QueryHandler(String statement, String language) {
+      this.statement = statement;
+      this.language = language;
+    }
+
+    /**
+     * Executes the query.
+     *
+     * @param query
+     *          the query
+     * @return the results
+     * @throws QueryException
+     *           if the statement is not one of the API
+     */
+    private List<?> execute(Query query) throws QueryException {
+      if (Query.HQL.equals(language) && parameters.containsKey("properties")) {
+        return store.getRegistrationCodeProperties(wiki, (Collection<?>) parameters.get("properties"));
+      }
+      throw new QueryException("Unsupported statement in benchmarks: " + statement, query, null);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+     * java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "setWiki":
+          wiki = (String) args[0];
+          return proxy;
+        case "getWiki":
+          return wiki;
+        case "bindValue":
+          if (args[0] instanceof String) {
+            parameters.put((String) args[0], args[1]);
+          }
+          return proxy;
+        case "getNamedParameters":
+          return parameters;
+        case "getStatement":
+          return statement;
+        case "getLanguage":
+          return language;
+        case "execute":
+          return execute((Query) proxy);
+        case "toString":
+          return statement;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          if (method.getReturnType() == Query.class) {
+            // limits, offsets and filters do not change the answers
+            return proxy;
+          }
+          throw new UnsupportedOperationException(method.getName());
+      }
+    }
+  }
+
+  /** The store answering the queries. */
+  private final InMemoryXWiki store;
+
+  /**
+   * Instantiates a new in memory query manager.
+   *
+   * @param store
+   *          the store
+   */
+  public InMemoryQueryManager(InMemoryXWiki store) {
+    this.store = store;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.query.QueryManager#createQuery(java.lang.String,
+   * java.lang.String)
+   */
+  @Override
+  public Query createQuery(String statement, String language) throws QueryException {
+    return (Query) Proxy.newProxyInstance(Query.class.getClassLoader(), new Class<?>[] { Query.class },
+        new QueryHandler(statement, language));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.query.QueryManager#getLanguages()
+   */
+  @Override
+  public Set<String> getLanguages() {
+    return new HashSet<>(Arrays.asList(Query.HQL, Query.XWQL));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.query.QueryManager#getNamedQuery(java.lang.String)
+   */
+  @Override
+  public Query getNamedQuery(String name) throws QueryException {
+    throw new QueryException("Named queries are not supported in benchmarks: " + name, null, null);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.query.QueryManager#hasLanguage(java.lang.String)
+   */
+  @Override
+  public boolean hasLanguage(String language) {
+    return getLanguages().contains(language);
+  }
+
+}
@@ -0,0 +1,152 @@
+package org.projectsforge.xwiki.registrationcodes.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+
+/**
+ * The Class InMemoryXWiki stands in for the document store of a wiki: documents
+ * are kept in memory and handed out as copies, like the document cache does.
+ */
+public class InMemoryXWiki extends XWiki {
+
+  /** The stored documents by wiki id and local reference. */
+  private final Map<String, XWikiDocument> documents = new ConcurrentHashMap<>();
+
+  /**
+   * Clears the store.
+   */
+  public void clear() {
+    documents.clear();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.xpn.xwiki.XWiki#exists(org.xwiki.model.reference.
+   * DocumentReference, com.xpn.xwiki.XWikiContext)
+   */
+  @Override
+  public boolean exists(DocumentReference reference, XWikiContext context) {
+    return documents.containsKey(getKey(reference));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.xpn.xwiki.XWiki#getDocument(org.xwiki.model.reference.
+   * DocumentReference, com.xpn.xwiki.XWikiContext)
+   */
+  @Override
+  public XWikiDocument getDocument(DocumentReference reference, XWikiContext context) throws XWikiException {
+    XWikiDocument document = documents.get(getKey(reference));
+    return document == null ? new XWikiDocument(reference) : document.clone();
+  }
+
+  /**
+   * Gets the key of a document.
+   *
+   * @param reference
+   *          the reference
+   * @return the key
+   */
+  private String getKey(DocumentReference reference) {
+    return getKey(reference.getWikiReference().getName(), Utils.LOCAL_REFERENCE_SERIALIZER.serialize(reference));
+  }
+
+  /**
+   * Gets the key of a document.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param fullName
+   *          the local full name
+   * @return the key
+   */
+  private String getKey(String wikiId, String fullName) {
+    return wikiId + ':' + fullName;
+  }
+
+  /**
+   * Gets the rows the property queries return for a wiki: the full name of the
+   * document and the property object for each requested property of the
+   * registration codes.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param names
+   *          the property names
+   * @return the rows
+   */
+  public List<Object[]> getRegistrationCodeProperties(String wikiId, Collection<?> names) {
+    String prefix = getKey(wikiId, RegistrationCode.NAME_PREFIX);
+    List<Object[]> rows = new ArrayList<>();
+    for (Map.Entry<String, XWikiDocument> entry : documents.entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        XWikiDocument document = entry.getValue();
+        BaseObject xobject = document.getXObject(RegistrationCode.getClassReference(document));
+        if (xobject == null) {
+          continue;
+        }
+        String fullName = Utils.LOCAL_REFERENCE_SERIALIZER.serialize(document.getDocumentReference());
+        for (Object name : names) {
+          BaseProperty property = (BaseProperty) xobject.safeget((String) name);
+          if (property != null) {
+            rows.add(new Object[] { fullName, property });
+          }
+        }
+      }
+    }
+    return rows;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.xpn.xwiki.XWiki#saveDocument(com.xpn.xwiki.doc.XWikiDocument,
+   * com.xpn.xwiki.XWikiContext)
+   */
+  @Override
+  public void saveDocument(XWikiDocument document, XWikiContext context) throws XWikiException {
+    saveDocument(document, "", false, context);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.xpn.xwiki.XWiki#saveDocument(com.xpn.xwiki.doc.XWikiDocument,
+   * java.lang.String, com.xpn.xwiki.XWikiContext)
+   */
+  @Override
+  public void saveDocument(XWikiDocument document, String comment, XWikiContext context) throws XWikiException {
+    saveDocument(document, comment, false, context);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.xpn.xwiki.XWiki#saveDocument(com.xpn.xwiki.doc.XWikiDocument,
+   * java.lang.String, boolean, com.xpn.xwiki.XWikiContext)
+   */
+  @Override
+  public void saveDocument(XWikiDocument document, String comment, boolean isMinorEdit, XWikiContext context)
+      throws XWikiException {
+    document.incrementVersion();
+    document.setNew(false);
+    documents.put(getKey(document.getDocumentReference()), document.clone());
+  }
+
+}
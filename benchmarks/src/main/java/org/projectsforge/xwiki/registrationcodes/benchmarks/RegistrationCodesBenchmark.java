@@ -0,0 +1,171 @@
+package org.projectsforge.xwiki.registrationcodes.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The benchmarks of the registration codes service. Throughput and the latency
+ * percentiles are reported for each combination of data sizes, which can be
+ * changed from the command line, e.g.
+ * <code>java -jar benchmarks.jar -p codeCount=100000 -t 8</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistrationCodesBenchmark {
+
+  /** The number of users of a batch activation. */
+  private static final int BATCH_SIZE = 50;
+
+  /** The number of registration codes. */
+  @Param({ "1000", "10000" })
+  private int codeCount;
+
+  /** The number of users having already used each code. */
+  @Param({ "0", "100" })
+  private int usersPerCode;
+
+  /** The number of members of the group the codes add users to, 0 for none. */
+  @Param({ "0", "1000" })
+  private int groupSize;
+
+  /** Whether the users are enrolled in the background. */
+  @Param({ "false" })
+  private boolean enrollmentAsynchronous;
+
+  /** The wiki. */
+  private BenchmarkWiki wiki;
+
+  /** The service. */
+  private RegistrationCodesService service;
+
+  /** The codes. */
+  private List<String> codes;
+
+  /** The counter naming the activating users. */
+  private final AtomicLong userCounter = new AtomicLong();
+
+  /**
+   * Activates a random code for a new user.
+   *
+   * @return the result
+   */
+  @Benchmark
+  public String activateRegistrationCode() {
+    return service.activateRegitrationCode(randomCode(), BenchmarkWiki.USER_PREFIX + userCounter.incrementAndGet());
+  }
+
+  /**
+   * Activates a random code for a batch of new users.
+   *
+   * @return the results
+   */
+  @Benchmark
+  public Map<String, String> activateRegistrationCodeForUsers() {
+    List<String> users = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; ++i) {
+      users.add(BenchmarkWiki.USER_PREFIX + userCounter.incrementAndGet());
+    }
+    return service.activateRegitrationCode(randomCode(), users);
+  }
+
+  /**
+   * Allocates the reference of a new registration code document.
+   *
+   * @return the reference
+   */
+  @Benchmark
+  public DocumentReference getNewRegistrationCodeReference() {
+    return service.getNewRegistrationCodeReference();
+  }
+
+  /**
+   * Generates a code not used yet.
+   *
+   * @return the code
+   */
+  @Benchmark
+  public String getRandomRegistrationCode() {
+    return service.getRandomRegistrationCode();
+  }
+
+  /**
+   * Checks an existing code.
+   *
+   * @return true, if successful
+   */
+  @Benchmark
+  public boolean isRegistrationCodeExistent() {
+    return service.isRegistrationCodeExistent(randomCode());
+  }
+
+  /**
+   * Fills the store. Activations add users to the codes and the group, so the
+   * data is restored before each iteration.
+   *
+   * @throws Exception
+   *           the exception
+   */
+  @Setup(Level.Iteration)
+  public void populate() throws Exception {
+    wiki.populate(codeCount, usersPerCode, groupSize);
+    codes = wiki.getCodes();
+  }
+
+  /**
+   * Picks a random existing code.
+   *
+   * @return the code
+   */
+  private String randomCode() {
+    return codes.get(ThreadLocalRandom.current().nextInt(codes.size()));
+  }
+
+  /**
+   * Starts the wiki.
+   *
+   * @throws Exception
+   *           the exception
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    wiki = new BenchmarkWiki();
+    wiki.setEnrollmentAsynchronous(enrollmentAsynchronous);
+    service = wiki.getService();
+  }
+
+  /**
+   * Stops the wiki.
+   *
+   * @throws Exception
+   *           the exception
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    wiki.close();
+  }
+
+}
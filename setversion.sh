@@ -9,6 +9,7 @@ VERSION="$1"
 echo "Setting version to $VERSION"
 
 mvn versions:set "-DnewVersion=$VERSION"
+mvn -f benchmarks/pom.xml versions:set "-DnewVersion=$VERSION"
 
 git add -u 
 git commit -m "Bump version before tagging"
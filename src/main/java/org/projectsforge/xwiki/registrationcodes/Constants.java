@@ -22,6 +22,18 @@ public abstract class Constants {
   /** The Constant DATA_SPACE_NAME_AS_STRING. */
   public static final String DATA_SPACE_NAME_AS_STRING = EXTENSION_SPACE_NAME + "." + "Data";
 
+  /** The space of the documents recording the users of the registration codes, one sub-space per code. */
+  public static final List<String> USERS_SPACE_NAME_AS_LIST = Arrays.asList(EXTENSION_SPACE_NAME, "Users");
+
+  /** The Constant USERS_SPACE_NAME_AS_STRING. */
+  public static final String USERS_SPACE_NAME_AS_STRING = EXTENSION_SPACE_NAME + "." + "Users";
+
+  /** The space of the usage documents, one sub-space per day. */
+  public static final List<String> ANALYTICS_SPACE_NAME_AS_LIST = Arrays.asList(EXTENSION_SPACE_NAME, "Analytics");
+
+  /** The Constant ANALYTICS_SPACE_NAME_AS_STRING. */
+  public static final String ANALYTICS_SPACE_NAME_AS_STRING = EXTENSION_SPACE_NAME + "." + "Analytics";
+
   /**
    * Instantiates a new bibliography constants.
    */
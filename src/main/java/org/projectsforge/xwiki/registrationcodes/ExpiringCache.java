@@ -0,0 +1,184 @@
+package org.projectsforge.xwiki.registrationcodes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded in-memory cache whose entries expire after a fixed time to live.
+ * The entries are spread over segments, each one being a small LRU map guarded
+ * by its own lock, so that concurrent accesses to different keys rarely
+ * contend.
+ *
+ * @param <K>
+ *          the key type
+ * @param <V>
+ *          the value type
+ */
+public class ExpiringCache<K, V> {
+
+  /**
+   * A cached value with its expiration time.
+   *
+   * @param <V>
+   *          the value type
+   */
+  private static class CachedValue<V> {
+
+    /** The value. */
+    private final V value;
+
+    /** The expiration time in ms. */
+    private final long expiration;
+
+    /**
+     * Instantiates a new cached value.
+     *
+     * @param value
+     *          the value
+     * @param expiration
+     *          the expiration
+     */
+    CachedValue(V value, long expiration) {
+      this.value = value;
+      this.expiration = expiration;
+    }
+  }
+
+  /**
+   * A segment of the cache.
+   *
+   * @param <K>
+   *          the key type
+   * @param <V>
+   *          the value type
+   */
+  private static class Segment<K, V> extends LinkedHashMap<K, CachedValue<V>> {
+
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The max size. */
+    private final int maxSize;
+
+    /**
+     * Instantiates a new segment.
+     *
+     * @param maxSize
+     *          the max size
+     */
+    Segment(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+     */
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  /** The Constant SEGMENTS. */
+  private static final int SEGMENTS = 16;
+
+  /** The segments. */
+  private final Segment<K, V>[] segments;
+
+  /** The time to live in ms. */
+  private final long timeToLive;
+
+  /**
+   * Instantiates a new expiring cache.
+   *
+   * @param maxSize
+   *          the maximal number of entries
+   * @param timeToLive
+   *          the time to live of the entries in ms
+   */
+  @SuppressWarnings("unchecked")
+  public ExpiringCache(int maxSize, long timeToLive) {
+    this.timeToLive = timeToLive;
+    segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; ++i) {
+      segments[i] = new Segment<>(Math.max(1, maxSize / SEGMENTS));
+    }
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  public void clear() {
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * Gets the value of a key.
+   *
+   * @param key
+   *          the key
+   * @return the value or null if absent or expired
+   */
+  public V get(K key) {
+    Segment<K, V> segment = getSegment(key);
+    synchronized (segment) {
+      CachedValue<V> entry = segment.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expiration < System.currentTimeMillis()) {
+        segment.remove(key);
+        return null;
+      }
+      return entry.value;
+    }
+  }
+
+  /**
+   * Gets the segment of a key.
+   *
+   * @param key
+   *          the key
+   * @return the segment
+   */
+  private Segment<K, V> getSegment(Object key) {
+    int hash = key.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Sets the value of a key.
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the value
+   */
+  public void put(K key, V value) {
+    Segment<K, V> segment = getSegment(key);
+    synchronized (segment) {
+      segment.put(key, new CachedValue<>(value, System.currentTimeMillis() + timeToLive));
+    }
+  }
+
+  /**
+   * Removes a key.
+   *
+   * @param key
+   *          the key
+   */
+  public void remove(K key) {
+    Segment<K, V> segment = getSegment(key);
+    synchronized (segment) {
+      segment.remove(key);
+    }
+  }
+
+}
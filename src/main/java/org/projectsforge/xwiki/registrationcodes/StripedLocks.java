@@ -0,0 +1,47 @@
+package org.projectsforge.xwiki.registrationcodes;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared by keys according to their hash, so that work on
+ * the same key is serialized while unrelated keys most likely run in parallel,
+ * without keeping one lock per key alive.
+ */
+public class StripedLocks {
+
+  /** The locks. */
+  private final Lock[] locks;
+
+  /** The mask. */
+  private final int mask;
+
+  /**
+   * Instantiates a new striped locks.
+   *
+   * @param stripes
+   *          the minimal number of stripes (rounded to the next power of two)
+   */
+  public StripedLocks(int stripes) {
+    int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    locks = new Lock[size];
+    for (int i = 0; i < size; ++i) {
+      locks[i] = new ReentrantLock();
+    }
+    mask = size - 1;
+  }
+
+  /**
+   * Gets the lock of a key.
+   *
+   * @param key
+   *          the key
+   * @return the lock
+   */
+  public Lock get(Object key) {
+    int hash = key.hashCode();
+    // spread the high bits as in HashMap
+    return locks[(hash ^ (hash >>> 16)) & mask];
+  }
+
+}
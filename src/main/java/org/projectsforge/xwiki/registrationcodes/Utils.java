@@ -1,7 +1,20 @@
 package org.projectsforge.xwiki.registrationcodes;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.model.EntityType;
 import org.xwiki.model.internal.reference.DefaultSymbolScheme;
 import org.xwiki.model.internal.reference.LocalStringEntityReferenceSerializer;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 
 /**
  * The Class Utils.
@@ -12,6 +25,121 @@ public class Utils {
   public static final LocalStringEntityReferenceSerializer LOCAL_REFERENCE_SERIALIZER = new LocalStringEntityReferenceSerializer(
       new DefaultSymbolScheme());
 
+  /** The separator of the groups of characters of the registration codes. */
+  public static final char CODE_SEPARATOR = '-';
+
+  /** The Constant HEX_DIGITS. */
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /** The digests of the threads hashing codes. */
+  private static final ThreadLocal<MessageDigest> CODE_DIGESTS = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      // every Java platform is required to support SHA-256
+      throw new IllegalStateException(ex);
+    }
+  });
+
+  /** The secure random sources of the threads generating codes. */
+  private static final ThreadLocal<SecureRandom> SECURE_RANDOMS = ThreadLocal.withInitial(SecureRandom::new);
+
+  /**
+   * Gets the secure random source of the current thread, which avoids the
+   * contention on the source shared by {@link java.util.UUID#randomUUID()}.
+   *
+   * @return the secure random
+   */
+  public static SecureRandom getSecureRandom() {
+    return SECURE_RANDOMS.get();
+  }
+
+  /**
+   * Gets the canonical form of a registration code, under which it is stored,
+   * looked up and checked: the code without its separators and in upper case,
+   * so that a code typed without dashes or in lower case is still found.
+   *
+   * @param code
+   *          the code
+   * @return the canonical code, empty for a null code
+   */
+  public static String canonicalizeCode(String code) {
+    return StringUtils.remove(StringUtils.trimToEmpty(code), CODE_SEPARATOR).toUpperCase(Locale.ROOT);
+  }
+
+  /**
+   * Computes the digest under which a registration code is stored and looked
+   * up: the hexadecimal SHA-256 of the canonical code.
+   *
+   * @param code
+   *          the code
+   * @return the digest or an empty string for an empty code
+   */
+  public static String digestCode(String code) {
+    String canonicalCode = canonicalizeCode(code);
+    if (canonicalCode.isEmpty()) {
+      return "";
+    }
+    return digest(canonicalCode);
+  }
+
+  /**
+   * Computes the digests under which a registration code may be stored: the
+   * digest of the canonical code and, if different, the digest of the trimmed
+   * code, under which the codes were hashed before being canonicalized.
+   *
+   * @param code
+   *          the code
+   * @return the digests, empty for an empty code
+   */
+  public static List<String> digestCodeVariants(String code) {
+    String codeHash = digestCode(code);
+    if (codeHash.isEmpty()) {
+      return Collections.emptyList();
+    }
+    String legacyCodeHash = digest(StringUtils.trimToEmpty(code));
+    return codeHash.equals(legacyCodeHash) ? Collections.singletonList(codeHash)
+        : Arrays.asList(codeHash, legacyCodeHash);
+  }
+
+  /**
+   * Computes the hexadecimal SHA-256 of a value, as is.
+   *
+   * @param value
+   *          the value
+   * @return the digest
+   */
+  public static String digest(String value) {
+    byte[] digest = CODE_DIGESTS.get().digest(value.getBytes(StandardCharsets.UTF_8));
+    char[] hex = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; ++i) {
+      hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+      hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * Checks if a document belongs to the data space (i.e. matches
+   * RegistrationCodes.Data.%).
+   *
+   * @param reference
+   *          the document reference
+   * @return true, if the document is in the data space
+   */
+  public static boolean isInDataSpace(DocumentReference reference) {
+    // walks up to the top level spaces rather than serializing the reference:
+    // the listeners call this for every document saved
+    EntityReference space = reference.getParent();
+    EntityReference child = null;
+    while (space.getParent() != null && space.getParent().getType() == EntityType.SPACE) {
+      child = space;
+      space = space.getParent();
+    }
+    return child != null && Constants.DATA_SPACE_NAME_AS_LIST.get(0).equals(space.getName())
+        && Constants.DATA_SPACE_NAME_AS_LIST.get(1).equals(child.getName());
+  }
+
   /**
    * Instantiates a new utils.
    */
@@ -0,0 +1,540 @@
+package org.projectsforge.xwiki.registrationcodes.analytics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * The Class DefaultUsageAnalytics. The activations are counted in memory and
+ * added in the background to the usage documents of this node in their wiki,
+ * one per day, which no other node writes. The counts read are summed over the
+ * usage documents of all the nodes, plus the activations of this node not
+ * flushed yet. The activations counted since the last flush are lost if the
+ * node stops abruptly.
+ */
+@Component
+@Singleton
+public class DefaultUsageAnalytics implements UsageAnalytics, Initializable, Disposable {
+
+  /**
+   * The runnable flushing the counters with an XWiki context.
+   */
+  private class FlushRunnable extends AbstractXWikiRunnable {
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.xpn.xwiki.util.AbstractXWikiRunnable#runInternal()
+     */
+    @Override
+    protected void runInternal() {
+      try {
+        flush();
+      } catch (RuntimeException ex) {
+        // an exception would cancel the next runs
+        logger.warn("An error occurred while flushing the usage counters", ex);
+      }
+    }
+  }
+
+  /**
+   * The activations of a wiki not flushed yet.
+   */
+  private static class WikiUsage {
+
+    /** The counts by local full name of the registration code, by day. */
+    private final Map<String, Map<String, Long>> days = new ConcurrentHashMap<>();
+
+    /** Whether the counters come from a node-local file to delete once flushed. */
+    private volatile boolean legacy;
+
+    /**
+     * Adds activations.
+     *
+     * @param fullName
+     *          the local full name of the registration code
+     * @param day
+     *          the day
+     * @param count
+     *          the count
+     */
+    void add(String fullName, String day, long count) {
+      // counted within the update of the day so that a flush can not drop it
+      days.compute(day, (key, codes) -> {
+        Map<String, Long> result = codes == null ? new ConcurrentHashMap<>() : codes;
+        result.merge(fullName, count, Long::sum);
+        return result;
+      });
+    }
+
+    /**
+     * Removes the activations of a day which have been flushed, keeping those
+     * counted since.
+     *
+     * @param day
+     *          the day
+     * @param flushed
+     *          the counts flushed by local full name of the registration code
+     */
+    void remove(String day, Map<String, Long> flushed) {
+      days.computeIfPresent(day, (key, codes) -> {
+        for (Map.Entry<String, Long> count : flushed.entrySet()) {
+          codes.computeIfPresent(count.getKey(),
+              (name, value) -> value - count.getValue() == 0 ? null : value - count.getValue());
+        }
+        return codes.isEmpty() ? null : codes;
+      });
+    }
+  }
+
+  /** The suffix of the node-local files of the previous versions. */
+  private static final String FILE_SUFFIX = ".properties";
+
+  /** The separator of the day and the full name in the keys of the node-local files. */
+  private static final char KEY_SEPARATOR = '|';
+
+  /** The prefix of the full names of the usage documents, followed by the day. */
+  private static final String NAME_PREFIX = Constants.ANALYTICS_SPACE_NAME_AS_STRING + ".";
+
+  /** The name of the file holding the id of this node. */
+  private static final String NODE_FILE_NAME = "node";
+
+  /** The statement summing the activations of the codes of a wiki by usage document. */
+  private static final String TOTALS_STATEMENT = "select obj.name, sum(countProp.value) from BaseObject as obj, "
+      + "LongProperty as countProp where obj.className = :className and obj.name like :space "
+      + "and obj.name >= :oldest and countProp.id.id = obj.id and countProp.id.name = :activations "
+      + "group by obj.name";
+
+  /** The statement summing the activations of a code by usage document. */
+  private static final String CODE_STATEMENT = "select obj.name, sum(countProp.value) from BaseObject as obj, "
+      + "LongProperty as countProp, StringProperty as codeProp where obj.className = :className "
+      + "and obj.name like :space and obj.name >= :oldest and countProp.id.id = obj.id "
+      + "and countProp.id.name = :activations and codeProp.id.id = obj.id "
+      + "and codeProp.id.name = :registrationCode and codeProp.value = :code group by obj.name";
+
+  /** The statement listing the usage documents of the days no longer kept. */
+  private static final String EXPIRED_STATEMENT = "select distinct obj.name from BaseObject as obj "
+      + "where obj.className = :className and obj.name like :space and obj.name < :oldest";
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The environment. */
+  @Inject
+  private Environment environment;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The query manager. */
+  @Inject
+  private QueryManager queryManager;
+
+  /** The context provider. */
+  @Inject
+  private Provider<XWikiContext> contextProvider;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The activations not flushed yet by wiki id. */
+  private final Map<String, WikiUsage> wikis = new ConcurrentHashMap<>();
+
+  /** The directory of the node-local files. */
+  private File directory;
+
+  /** The id of this node, naming its usage documents. */
+  private String nodeId;
+
+  /** The scheduler of the flushes or null if they are disabled. */
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Binds the parameters shared by the statements.
+   *
+   * @param query
+   *          the query
+   * @param oldest
+   *          the oldest day kept
+   * @return the query
+   */
+  private static Query bindUsageDocuments(Query query, String oldest) {
+    query.bindValue("className", Constants.CODE_SPACE_NAME_AS_STRING + "."
+        + RegistrationCodeUsageClassInitializer.CLASS_NAME);
+    query.bindValue("space", NAME_PREFIX + "%");
+    query.bindValue("oldest", NAME_PREFIX + oldest);
+    return query;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Disposable#dispose()
+   */
+  @Override
+  public void dispose() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    try {
+      new FlushRunnable().run();
+    } catch (RuntimeException ex) {
+      logger.warn("Can not flush the usage counters on shutdown", ex);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.analytics.UsageAnalytics#
+   * flush()
+   */
+  @Override
+  public synchronized void flush() {
+    String oldest = getOldestDay();
+    for (Map.Entry<String, WikiUsage> entry : wikis.entrySet()) {
+      WikiUsage usage = entry.getValue();
+      if (usage.days.isEmpty()) {
+        continue;
+      }
+      try {
+        store(entry.getKey(), usage);
+        if (usage.legacy) {
+          usage.legacy = false;
+          Files.deleteIfExists(getFile(entry.getKey()).toPath());
+        }
+        purge(entry.getKey(), oldest);
+      } catch (XWikiException | QueryException | IOException ex) {
+        logger.warn("Can not store the usage counters of wiki " + entry.getKey(), ex);
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.analytics.UsageAnalytics#
+   * getDailyActivations(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public Map<String, Long> getDailyActivations(DocumentReference reference) {
+    String wikiId = reference.getWikiReference().getName();
+    String fullName = Utils.LOCAL_REFERENCE_SERIALIZER.serialize(reference);
+    Map<String, Long> result = sum(wikiId, fullName);
+    for (Map.Entry<String, Map<String, Long>> day : getWikiUsage(wikiId).days.entrySet()) {
+      Long count = day.getValue().get(fullName);
+      if (count != null) {
+        result.merge(day.getKey(), count, Long::sum);
+      }
+    }
+    return result;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.analytics.UsageAnalytics#
+   * getDailyActivations(java.lang.String)
+   */
+  @Override
+  public Map<String, Long> getDailyActivations(String wikiId) {
+    Map<String, Long> result = sum(wikiId, null);
+    for (Map.Entry<String, Map<String, Long>> day : getWikiUsage(wikiId).days.entrySet()) {
+      for (Long count : day.getValue().values()) {
+        result.merge(day.getKey(), count, Long::sum);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the node-local file of a wiki written by the previous versions.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the file
+   */
+  private File getFile(String wikiId) {
+    return new File(directory, wikiId + FILE_SUFFIX);
+  }
+
+  /**
+   * Gets the oldest day kept.
+   *
+   * @return the day, formatted as yyyy-MM-dd
+   */
+  private String getOldestDay() {
+    return LocalDate.now().minusDays(configuration.getAnalyticsRetentionDays()).toString();
+  }
+
+  /**
+   * Gets the activations of a wiki not flushed yet, importing the node-local
+   * file of the previous versions on first access.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the activations
+   */
+  private WikiUsage getWikiUsage(String wikiId) {
+    return wikis.computeIfAbsent(wikiId, this::load);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() throws InitializationException {
+    directory = new File(environment.getPermanentDirectory(), "registrationcodes/analytics");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new InitializationException("Can not create directory " + directory);
+    }
+    // kept across restarts so that a node keeps writing the same documents
+    File nodeFile = new File(directory, NODE_FILE_NAME);
+    try {
+      if (nodeFile.isFile()) {
+        nodeId = new String(Files.readAllBytes(nodeFile.toPath()), StandardCharsets.UTF_8).trim();
+      }
+      if (StringUtils.isEmpty(nodeId)) {
+        nodeId = UUID.randomUUID().toString();
+        Files.write(nodeFile.toPath(), nodeId.getBytes(StandardCharsets.UTF_8));
+      }
+    } catch (IOException ex) {
+      throw new InitializationException("Can not read or write the node id " + nodeFile, ex);
+    }
+
+    long interval = configuration.getAnalyticsFlushInterval();
+    if (interval > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RegistrationCodes analytics");
+        thread.setDaemon(true);
+        return thread;
+      });
+      scheduler.scheduleWithFixedDelay(new FlushRunnable(), interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Loads the counters of a wiki stored in the node-local file of the previous
+   * versions, to be flushed to the usage documents.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the counters, empty if none are stored
+   */
+  private WikiUsage load(String wikiId) {
+    WikiUsage usage = new WikiUsage();
+    File file = getFile(wikiId);
+    if (!file.isFile()) {
+      return usage;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      properties.load(in);
+    } catch (IOException ex) {
+      logger.warn("Can not load the usage counters of wiki " + wikiId + ", counting from zero", ex);
+      return usage;
+    }
+    String oldest = getOldestDay();
+    for (String key : properties.stringPropertyNames()) {
+      int index = key.indexOf(KEY_SEPARATOR);
+      try {
+        String day = key.substring(0, index);
+        if (day.compareTo(oldest) >= 0) {
+          usage.add(key.substring(index + 1), day, Long.parseLong(properties.getProperty(key)));
+        }
+      } catch (NumberFormatException | StringIndexOutOfBoundsException ex) {
+        logger.warn("Invalid usage counter {} skipped in {}", key, file);
+      }
+    }
+    usage.legacy = true;
+    return usage;
+  }
+
+  /**
+   * Deletes the usage documents of a wiki, of all the nodes, for the days no
+   * longer kept.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param oldest
+   *          the oldest day kept
+   * @throws QueryException
+   *           the query exception
+   * @throws XWikiException
+   *           the x wiki exception
+   */
+  private void purge(String wikiId, String oldest) throws QueryException, XWikiException {
+    List<String> names = bindUsageDocuments(queryManager.createQuery(EXPIRED_STATEMENT, Query.HQL), oldest)
+        .setWiki(wikiId).execute();
+    if (names.isEmpty()) {
+      return;
+    }
+    XWikiContext context = contextProvider.get();
+    String currentWikiId = context.getWikiId();
+    try {
+      context.setWikiId(wikiId);
+      XWiki xwiki = context.getWiki();
+      for (String name : names) {
+        XWikiDocument document = xwiki.getDocument(documentReferenceResolver.resolve(name, context.getWikiReference()),
+            context);
+        if (!document.isNew()) {
+          xwiki.deleteDocument(document, context);
+        }
+      }
+    } finally {
+      context.setWikiId(currentWikiId);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.analytics.UsageAnalytics#
+   * recordActivations(org.xwiki.model.reference.DocumentReference, int)
+   */
+  @Override
+  public void recordActivations(DocumentReference reference, int count) {
+    getWikiUsage(reference.getWikiReference().getName())
+        .add(Utils.LOCAL_REFERENCE_SERIALIZER.serialize(reference), LocalDate.now().toString(), count);
+  }
+
+  /**
+   * Adds the activations of a wiki not flushed yet to the usage documents of
+   * this node. Only this node writes them, so they are updated without lock.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param usage
+   *          the activations
+   * @throws XWikiException
+   *           the x wiki exception
+   */
+  private void store(String wikiId, WikiUsage usage) throws XWikiException {
+    XWikiContext context = contextProvider.get();
+    String currentWikiId = context.getWikiId();
+    try {
+      context.setWikiId(wikiId);
+      XWiki xwiki = context.getWiki();
+      DocumentReference classReference = new DocumentReference(wikiId, Constants.CODE_SPACE_NAME_AS_LIST,
+          RegistrationCodeUsageClassInitializer.CLASS_NAME);
+      for (Map.Entry<String, Map<String, Long>> day : usage.days.entrySet()) {
+        // the activations counted during the save are flushed next time
+        Map<String, Long> counts = new HashMap<>(day.getValue());
+        if (counts.isEmpty()) {
+          continue;
+        }
+        List<String> spaces = new ArrayList<>(Constants.ANALYTICS_SPACE_NAME_AS_LIST);
+        spaces.add(day.getKey());
+        // the cached instance is shared with the readers
+        XWikiDocument document = xwiki.getDocument(new DocumentReference(wikiId, spaces, nodeId), context).clone();
+        document.setHidden(true);
+        Map<String, BaseObject> xobjects = new HashMap<>();
+        List<BaseObject> existing = document.getXObjects(classReference);
+        if (existing != null) {
+          for (BaseObject xobject : existing) {
+            if (xobject != null) {
+              xobjects.put(xobject.getStringValue(RegistrationCodeUsageClassInitializer.FIELD_REGISTRATION_CODE),
+                  xobject);
+            }
+          }
+        }
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+          BaseObject xobject = xobjects.get(count.getKey());
+          if (xobject == null) {
+            xobject = new BaseObject();
+            xobject.setXClassReference(classReference);
+            xobject.setStringValue(RegistrationCodeUsageClassInitializer.FIELD_REGISTRATION_CODE, count.getKey());
+            document.addXObject(xobject);
+          }
+          xobject.setLongValue(RegistrationCodeUsageClassInitializer.FIELD_ACTIVATIONS,
+              xobject.getLongValue(RegistrationCodeUsageClassInitializer.FIELD_ACTIVATIONS) + count.getValue());
+        }
+        xwiki.saveDocument(document, "Usage counters flushed", true, context);
+        usage.remove(day.getKey(), counts);
+      }
+    } finally {
+      context.setWikiId(currentWikiId);
+    }
+  }
+
+  /**
+   * Sums the activations stored in the usage documents of all the nodes by
+   * day.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param fullName
+   *          the local full name of the registration code, null for all the
+   *          codes
+   * @return the activation counts by day, sorted by day
+   */
+  private Map<String, Long> sum(String wikiId, String fullName) {
+    Map<String, Long> result = new TreeMap<>();
+    try {
+      Query query = bindUsageDocuments(
+          queryManager.createQuery(fullName == null ? TOTALS_STATEMENT : CODE_STATEMENT, Query.HQL), getOldestDay())
+              .setWiki(wikiId);
+      query.bindValue("activations", RegistrationCodeUsageClassInitializer.FIELD_ACTIVATIONS);
+      if (fullName != null) {
+        query.bindValue("registrationCode", RegistrationCodeUsageClassInitializer.FIELD_REGISTRATION_CODE);
+        query.bindValue("code", fullName);
+      }
+      List<Object[]> rows = query.execute();
+      for (Object[] row : rows) {
+        // the usage documents are named after their day and their node
+        String day = StringUtils.substringBefore(((String) row[0]).substring(NAME_PREFIX.length()), ".");
+        result.merge(day, ((Number) row[1]).longValue(), Long::sum);
+      }
+    } catch (QueryException ex) {
+      logger.warn("Can not read the usage counters of wiki " + wikiId, ex);
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,67 @@
+package org.projectsforge.xwiki.registrationcodes.analytics;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+
+import com.xpn.xwiki.doc.MandatoryDocumentInitializer;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.classes.BaseClass;
+
+/**
+ * The initializer of the class counting the activations of a registration code
+ * on a day, with one object per code on the usage document of each node and day
+ * (see {@link DefaultUsageAnalytics}).
+ */
+@Component
+@Singleton
+@Named(Constants.CODE_SPACE_NAME_AS_STRING + "." + RegistrationCodeUsageClassInitializer.CLASS_NAME)
+public class RegistrationCodeUsageClassInitializer implements MandatoryDocumentInitializer {
+
+  /** The name of the usage class. */
+  static final String CLASS_NAME = "RegistrationCodeUsageClass";
+
+  /** The field holding the local full name of the registration code document. */
+  static final String FIELD_REGISTRATION_CODE = "registrationCode";
+
+  /** The field holding the number of activations. */
+  static final String FIELD_ACTIVATIONS = "activations";
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.xpn.xwiki.doc.MandatoryDocumentInitializer#getDocumentReference()
+   */
+  @Override
+  public EntityReference getDocumentReference() {
+    EntityReference space = null;
+    for (String name : Constants.CODE_SPACE_NAME_AS_LIST) {
+      space = new EntityReference(name, EntityType.SPACE, space);
+    }
+    return new EntityReference(CLASS_NAME, EntityType.DOCUMENT, space);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * com.xpn.xwiki.doc.MandatoryDocumentInitializer#updateDocument(com.xpn.xwiki.
+   * doc.XWikiDocument)
+   */
+  @Override
+  public boolean updateDocument(XWikiDocument document) {
+    BaseClass xclass = document.getXClass();
+    boolean needsUpdate = xclass.addTextField(FIELD_REGISTRATION_CODE, "Registration code", 60);
+    needsUpdate |= xclass.addNumberField(FIELD_ACTIVATIONS, "Activations", 10, "long");
+    if (!document.isHidden()) {
+      document.setHidden(true);
+      needsUpdate = true;
+    }
+    return needsUpdate;
+  }
+
+}
@@ -0,0 +1,54 @@
+package org.projectsforge.xwiki.registrationcodes.analytics;
+
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The Interface UsageAnalytics counts the activations of each registration
+ * code by day as they happen, so that usage dashboards are answered from the
+ * counters without loading the registration code documents. The counters are
+ * flushed in the background to usage documents of the wiki, and the counts
+ * read are summed across the cluster nodes.
+ */
+@Role
+public interface UsageAnalytics {
+
+  /**
+   * Writes the counters modified since the last flush.
+   */
+  void flush();
+
+  /**
+   * Gets the number of activations of a registration code by day.
+   *
+   * @param reference
+   *          the registration code document reference
+   * @return the activation counts by day, formatted as yyyy-MM-dd, oldest
+   *         first
+   */
+  Map<String, Long> getDailyActivations(DocumentReference reference);
+
+  /**
+   * Gets the number of activations of all the registration codes of a wiki by
+   * day.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the activation counts by day, formatted as yyyy-MM-dd, oldest
+   *         first
+   */
+  Map<String, Long> getDailyActivations(String wikiId);
+
+  /**
+   * Counts activations of a registration code for today.
+   *
+   * @param reference
+   *          the registration code document reference
+   * @param count
+   *          the number of users added to the code
+   */
+  void recordActivations(DocumentReference reference, int count);
+
+}
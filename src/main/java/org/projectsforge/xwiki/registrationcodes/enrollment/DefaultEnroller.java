@@ -0,0 +1,440 @@
+package org.projectsforge.xwiki.registrationcodes.enrollment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics;
+import org.projectsforge.xwiki.registrationcodes.service.GroupMembershipWriter;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.wiki.manager.WikiManagerException;
+import org.xwiki.wiki.user.WikiUserManager;
+import org.xwiki.wiki.user.WikiUserManagerException;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * The Class DefaultEnroller. The wikis of an enrollment are independent: the
+ * users are added to them in parallel, the calling thread handling the first
+ * one and a shared pool of workers, each with its own XWiki context, the
+ * others. The users enrolled together are added to each wiki and group with a
+ * single call.
+ */
+@Component
+@Singleton
+public class DefaultEnroller implements Enroller, Initializable, Disposable {
+
+  /**
+   * The users of an enrollment with their serialized references, computed once
+   * for all the wikis and groups they are added to.
+   */
+  private static class Members {
+
+    /** The user refs. */
+    private final List<DocumentReference> userRefs;
+
+    /** The full references of the users. */
+    private final List<String> ids;
+
+    /** The local references of the users, computed on first use. */
+    private List<String> localNames;
+
+    /**
+     * Instantiates new members.
+     *
+     * @param userRefs
+     *          the user refs
+     */
+    Members(List<DocumentReference> userRefs) {
+      this.userRefs = userRefs;
+      List<String> result = new ArrayList<>(userRefs.size());
+      for (DocumentReference userRef : userRefs) {
+        result.add(userRef.toString());
+      }
+      this.ids = Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Gets the names of the users as members of a group: local for the users of
+     * the wiki of the group, full for the others.
+     *
+     * @param groupRef
+     *          the group ref
+     * @return the member names
+     */
+    List<String> getGroupMembers(DocumentReference groupRef) {
+      if (localNames == null) {
+        List<String> result = new ArrayList<>(userRefs.size());
+        for (DocumentReference userRef : userRefs) {
+          result.add(Utils.LOCAL_REFERENCE_SERIALIZER.serialize(userRef));
+        }
+        localNames = result;
+      }
+      List<String> members = new ArrayList<>(userRefs.size());
+      for (int i = 0; i < userRefs.size(); ++i) {
+        // group and user on same wiki
+        members.add(groupRef.getWikiReference().equals(userRefs.get(i).getWikiReference()) ? localNames.get(i)
+            : ids.get(i));
+      }
+      return members;
+    }
+  }
+
+  /**
+   * The runnable adding users to a wiki from a worker thread, with an XWiki
+   * context copied from the calling one.
+   */
+  private class AddToWikiRunnable extends AbstractXWikiRunnable {
+
+    /** The members. */
+    private final Members members;
+
+    /** The progress. */
+    private final EnrollmentProgress progress;
+
+    /** The wikiname. */
+    private final String wikiname;
+
+    /** The wiki of the calling context. */
+    private final String contextWikiId;
+
+    /** The user of the calling context. */
+    private final DocumentReference contextUserRef;
+
+    /** The result. */
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    /**
+     * Instantiates a new adds the to wiki runnable.
+     *
+     * @param members
+     *          the members
+     * @param progress
+     *          the progress
+     * @param wikiname
+     *          the wikiname
+     * @param context
+     *          the calling context
+     */
+    AddToWikiRunnable(Members members, EnrollmentProgress progress, String wikiname, XWikiContext context) {
+      this.members = members;
+      this.progress = progress;
+      this.wikiname = wikiname;
+      this.contextWikiId = context.getWikiId();
+      this.contextUserRef = context.getUserReference();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.xpn.xwiki.util.AbstractXWikiRunnable#runInternal()
+     */
+    @Override
+    protected void runInternal() {
+      try {
+        XWikiContext context = contextProvider.get();
+        context.setWikiId(contextWikiId);
+        context.setUserReference(contextUserRef);
+        addToWiki(members, wikiname);
+        progress.wikiDone(wikiname);
+        result.complete(null);
+      } catch (WikiManagerException | WikiUserManagerException | RuntimeException ex) {
+        result.completeExceptionally(ex);
+      }
+    }
+  }
+
+  /** The timer of the additions to a group, also prefixing the counter of their errors. */
+  private static final String METRIC_ADD_TO_GROUP = "enrollment.addToGroup";
+
+  /** The timer of the additions to a wiki, also prefixing the counter of their errors. */
+  private static final String METRIC_ADD_TO_WIKI = "enrollment.addToWiki";
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The context provider. */
+  @Inject
+  private Provider<XWikiContext> contextProvider;
+
+  /** The group membership writer. */
+  @Inject
+  private GroupMembershipWriter groupMembershipWriter;
+
+  /** The wiki user manager. */
+  @Inject
+  private WikiUserManager wikiUserManager;
+
+  /** The wiki alias resolver. */
+  @Inject
+  private WikiAliasResolver wikiAliasResolver;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The metrics. */
+  @Inject
+  private RegistrationCodesMetrics metrics;
+
+  /** The workers adding users to wikis or null if wikis are handled sequentially. */
+  private ExecutorService executor;
+
+  /**
+   * Adds the to group.
+   *
+   * @param members
+   *          the members
+   * @param group
+   *          the group
+   * @param regCodeRef
+   *          the registration code document reference, whose wiki defines the
+   *          group
+   * @throws XWikiException
+   *           the x wiki exception
+   */
+  private void addToGroup(Members members, String group, DocumentReference regCodeRef) throws XWikiException {
+    long start = System.nanoTime();
+    try {
+      DocumentReference groupRef = documentReferenceResolver.resolve(group, regCodeRef.getWikiReference());
+      int added = groupMembershipWriter.addMembers(groupRef, members.getGroupMembers(groupRef));
+      if (added > 0 && logger.isDebugEnabled()) {
+        logger.debug("{} of {} added to group {}.", added, members.userRefs, group);
+      }
+    } catch (XWikiException ex) {
+      metrics.increment(METRIC_ADD_TO_GROUP + ".error");
+      logger.warn("An error occurred while adding users " + members.userRefs + " to group " + group, ex);
+      throw ex;
+    } finally {
+      metrics.record(METRIC_ADD_TO_GROUP, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Adds the to wiki.
+   *
+   * @param members
+   *          the members
+   * @param wikiname
+   *          the wikiname
+   * @throws WikiManagerException
+   *           the wiki manager exception
+   * @throws WikiUserManagerException
+   *           the wiki user manager exception
+   */
+  private void addToWiki(Members members, String wikiname)
+      throws WikiManagerException, WikiUserManagerException {
+    long start = System.nanoTime();
+    try {
+      // resolve alias into wikiid
+      String realWikiname = wikiAliasResolver.resolve(wikiname);
+      if (realWikiname == null) {
+        logger.warn("Wiki {} skipped since unknown", wikiname);
+        return;
+      }
+      XWikiContext context = contextProvider.get();
+      if (!context.getWikiId().equals(realWikiname)) {
+        // add to wiki only if we are not already on the wiki
+        if (members.ids.size() == 1) {
+          wikiUserManager.addMember(members.ids.get(0), realWikiname);
+        } else {
+          wikiUserManager.addMembers(members.ids, realWikiname);
+        }
+        logger.debug("{} added to wiki {}", members.userRefs, realWikiname);
+      }
+    } catch (WikiManagerException | WikiUserManagerException ex) {
+      metrics.increment(METRIC_ADD_TO_WIKI + ".error");
+      logger.warn("An error occurred while adding users " + members.userRefs + " to wiki " + wikiname, ex);
+      throw ex;
+    } finally {
+      metrics.record(METRIC_ADD_TO_WIKI, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Adds the users to wikis in parallel and reports the errors of all of them.
+   *
+   * @param members
+   *          the members
+   * @param wikis
+   *          the wikis
+   * @param progress
+   *          the progress
+   * @throws WikiManagerException
+   *           the wiki manager exception
+   * @throws WikiUserManagerException
+   *           the wiki user manager exception
+   */
+  private void addToWikis(Members members, List<String> wikis, EnrollmentProgress progress)
+      throws WikiManagerException, WikiUserManagerException {
+    logger.debug("Adding {} to wikis {}", members.userRefs, wikis);
+    if (executor == null || wikis.size() <= 1) {
+      for (String wikiname : wikis) {
+        addToWiki(members, wikiname);
+        progress.wikiDone(wikiname);
+      }
+      return;
+    }
+
+    XWikiContext context = contextProvider.get();
+    List<AddToWikiRunnable> runnables = new ArrayList<>(wikis.size() - 1);
+    for (String wikiname : wikis.subList(1, wikis.size())) {
+      AddToWikiRunnable runnable = new AddToWikiRunnable(members, progress, wikiname, context);
+      runnables.add(runnable);
+      executor.execute(() -> {
+        try {
+          runnable.run();
+        } finally {
+          // no-op unless the context could not be initialized
+          runnable.result.completeExceptionally(new IllegalStateException("Wiki enrollment not run"));
+        }
+      });
+    }
+
+    List<Exception> errors = new ArrayList<>();
+    try {
+      addToWiki(members, wikis.get(0));
+      progress.wikiDone(wikis.get(0));
+    } catch (WikiManagerException | WikiUserManagerException ex) {
+      errors.add(ex);
+    }
+    for (AddToWikiRunnable runnable : runnables) {
+      try {
+        runnable.result.get();
+      } catch (ExecutionException ex) {
+        // errors are reported too, wrapped since they are not exceptions
+        errors.add(ex.getCause() instanceof Exception ? (Exception) ex.getCause()
+            : new WikiManagerException("Can not add " + members.userRefs + " to wiki " + runnable.wikiname,
+                ex.getCause()));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        errors.add(new WikiManagerException("Interrupted while adding " + members.userRefs + " to wikis", ex));
+        break;
+      }
+    }
+
+    if (!errors.isEmpty()) {
+      Exception first = errors.get(0);
+      for (Exception error : errors.subList(1, errors.size())) {
+        first.addSuppressed(error);
+      }
+      if (first instanceof WikiManagerException) {
+        throw (WikiManagerException) first;
+      } else if (first instanceof WikiUserManagerException) {
+        throw (WikiUserManagerException) first;
+      } else if (first instanceof RuntimeException) {
+        throw (RuntimeException) first;
+      }
+      throw new WikiManagerException("Can not add " + members.userRefs + " to wikis", first);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Disposable#dispose()
+   */
+  @Override
+  public void dispose() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.Enroller#enroll(org.
+   * xwiki.model.reference.DocumentReference,
+   * org.xwiki.model.reference.DocumentReference, java.util.List,
+   * java.util.List)
+   */
+  @Override
+  public void enroll(DocumentReference userRef, DocumentReference regCodeRef, List<String> wikis, List<String> groups)
+      throws XWikiException, WikiManagerException, WikiUserManagerException {
+    enroll(Collections.singletonList(userRef), regCodeRef, wikis, groups);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.Enroller#enroll(java.
+   * util.List, org.xwiki.model.reference.DocumentReference, java.util.List,
+   * java.util.List)
+   */
+  @Override
+  public void enroll(List<DocumentReference> userRefs, DocumentReference regCodeRef, List<String> wikis,
+      List<String> groups) throws XWikiException, WikiManagerException, WikiUserManagerException {
+    enroll(userRefs, regCodeRef, wikis, groups, EnrollmentProgress.NONE);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.Enroller#enroll(java.
+   * util.List, org.xwiki.model.reference.DocumentReference, java.util.List,
+   * java.util.List,
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentProgress)
+   */
+  @Override
+  public void enroll(List<DocumentReference> userRefs, DocumentReference regCodeRef, List<String> wikis,
+      List<String> groups, EnrollmentProgress progress)
+      throws XWikiException, WikiManagerException, WikiUserManagerException {
+    if (userRefs.isEmpty()) {
+      return;
+    }
+    Members members = new Members(userRefs);
+    addToWikis(members, wikis, progress);
+
+    logger.debug("Adding {} to groups {}", userRefs, groups);
+    for (String group : groups) {
+      addToGroup(members, group, regCodeRef);
+      progress.groupDone(group);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() {
+    int concurrency = configuration.getEnrollmentWikiConcurrency();
+    if (concurrency > 1) {
+      AtomicInteger threadCount = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+        Thread thread = new Thread(runnable, "RegistrationCodes wiki enrollment " + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+}
@@ -0,0 +1,573 @@
+package org.projectsforge.xwiki.registrationcodes.enrollment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * The Class DefaultEnrollmentQueue. Each pending enrollment is stored as a
+ * properties file in the permanent directory until it is done. Enrollments run
+ * on a bounded thread pool; when the pool queue is full, they stay on disk and
+ * are scheduled again later. The enrollments recovered after a restart are
+ * replayed in batches: those left with the same missing steps are enrolled
+ * together, with a single write per wiki and group.
+ */
+@Component
+@Singleton
+public class DefaultEnrollmentQueue implements EnrollmentQueue, Initializable, Disposable {
+
+  /**
+   * The progress of enrollments run together.
+   */
+  private static class BatchProgress implements EnrollmentProgress {
+
+    /** The enrollments. */
+    private final List<Enrollment> batch;
+
+    /**
+     * Instantiates a new batch progress.
+     *
+     * @param batch
+     *          the enrollments
+     */
+    BatchProgress(List<Enrollment> batch) {
+      this.batch = batch;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentProgress#
+     * groupDone(java.lang.String)
+     */
+    @Override
+    public void groupDone(String group) {
+      for (Enrollment enrollment : batch) {
+        enrollment.groupDone(group);
+      }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentProgress#
+     * wikiDone(java.lang.String)
+     */
+    @Override
+    public void wikiDone(String wiki) {
+      for (Enrollment enrollment : batch) {
+        enrollment.wikiDone(wiki);
+      }
+    }
+  }
+
+  /**
+   * The runnable running enrollments with an XWiki context.
+   */
+  private class EnrollmentRunnable extends AbstractXWikiRunnable {
+
+    /** The enrollments, of the same wiki and with the same missing steps. */
+    private final List<Enrollment> batch;
+
+    /**
+     * Instantiates a new enrollment runnable.
+     *
+     * @param batch
+     *          the enrollments
+     */
+    EnrollmentRunnable(List<Enrollment> batch) {
+      this.batch = batch;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.xpn.xwiki.util.AbstractXWikiRunnable#runInternal()
+     */
+    @Override
+    protected void runInternal() {
+      runEnrollments(batch);
+    }
+  }
+
+  /** The Constant FILE_SUFFIX. */
+  private static final String FILE_SUFFIX = ".properties";
+
+  /** The delay in ms after which finished enrollments are forgotten. */
+  private static final long FINISHED_RETENTION = TimeUnit.HOURS.toMillis(1);
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The environment. */
+  @Inject
+  private Environment environment;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The enroller. */
+  @Inject
+  private Enroller enroller;
+
+  /** The context provider. */
+  @Inject
+  private Provider<XWikiContext> contextProvider;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The known enrollments by id. */
+  private final Map<String, Enrollment> enrollments = new ConcurrentHashMap<>();
+
+  /** The directory storing the pending enrollments. */
+  private File directory;
+
+  /** The executor running the enrollments. */
+  private ThreadPoolExecutor executor;
+
+  /** The scheduler of retries and housekeeping. */
+  private ScheduledExecutorService scheduler;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentQueue#create(
+   * java.lang.String, org.xwiki.model.reference.DocumentReference,
+   * org.xwiki.model.reference.DocumentReference, java.util.List,
+   * java.util.List)
+   */
+  @Override
+  public Enrollment create(String wikiId, String user, DocumentReference userRef, DocumentReference regCodeRef,
+      List<String> wikis, List<String> groups) throws IOException {
+    // the wiki of the activation is given by the caller: the context is in the
+    // wiki of the code while it is updated, which differs when codes are
+    // looked up in the whole farm
+    Enrollment enrollment = new Enrollment(UUID.randomUUID().toString(), wikiId, user, userRef.toString(),
+        regCodeRef.toString(), wikis, groups);
+    store(enrollment);
+    enrollments.put(enrollment.getId(), enrollment);
+    return enrollment;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentQueue#discard
+   * (org.projectsforge.xwiki.registrationcodes.enrollment.Enrollment)
+   */
+  @Override
+  public void discard(Enrollment enrollment) {
+    enrollments.remove(enrollment.getId());
+    delete(enrollment);
+  }
+
+  /**
+   * Deletes the stored enrollment.
+   *
+   * @param enrollment
+   *          the enrollment
+   */
+  private void delete(Enrollment enrollment) {
+    try {
+      Files.deleteIfExists(getFile(enrollment.getId()).toPath());
+    } catch (IOException ex) {
+      logger.warn("Can not delete stored enrollment " + enrollment.getId(), ex);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Disposable#dispose()
+   */
+  @Override
+  public void dispose() {
+    // pending enrollments are stored and will be recovered on next start
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentQueue#
+   * getEnrollment(java.lang.String)
+   */
+  @Override
+  public Enrollment getEnrollment(String id) {
+    return enrollments.get(id);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentQueue#
+   * getEnrollments(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public List<Enrollment> getEnrollments(DocumentReference userRef) {
+    String userReference = userRef.toString();
+    List<Enrollment> result = new ArrayList<>();
+    for (Enrollment enrollment : enrollments.values()) {
+      if (enrollment.getUserReference().equals(userReference)) {
+        result.add(enrollment);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the file storing an enrollment.
+   *
+   * @param id
+   *          the id
+   * @return the file
+   */
+  private File getFile(String id) {
+    return new File(directory, id + FILE_SUFFIX);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() throws InitializationException {
+    directory = new File(environment.getPermanentDirectory(), "registrationcodes/enrollments");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new InitializationException("Can not create directory " + directory);
+    }
+
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, "RegistrationCodes enrollment " + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    int threads = configuration.getEnrollmentThreads();
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(configuration.getEnrollmentQueueCapacity()), threadFactory);
+    scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    scheduler.scheduleWithFixedDelay(this::purge, 1, 1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Forgets the enrollments finished for a while.
+   */
+  private void purge() {
+    long limit = System.currentTimeMillis() - FINISHED_RETENTION;
+    Iterator<Enrollment> iterator = enrollments.values().iterator();
+    while (iterator.hasNext()) {
+      Enrollment enrollment = iterator.next();
+      if ((enrollment.getState() == Enrollment.State.DONE || enrollment.getState() == Enrollment.State.FAILED)
+          && enrollment.getUpdated().getTime() < limit) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Checks if the activation of the enrollment has been recorded in the users
+   * of the registration code. It may not be the case when the node stopped
+   * between storing the enrollment and saving the registration code.
+   *
+   * @param enrollment
+   *          the enrollment
+   * @param regCodes
+   *          the registration codes already read by serialized reference
+   * @return true, if the activation is recorded
+   * @throws Exception
+   *           the exception
+   */
+  private boolean isRecorded(Enrollment enrollment, Map<String, RegistrationCode> regCodes) throws Exception {
+    XWikiContext context = contextProvider.get();
+    RegistrationCode regCode = regCodes.get(enrollment.getRegistrationCode());
+    if (regCode == null && !regCodes.containsKey(enrollment.getRegistrationCode())) {
+      XWikiDocument regCodeDoc = context.getWiki()
+          .getDocument(documentReferenceResolver.resolve(enrollment.getRegistrationCode()), context);
+      regCode = RegistrationCode.fromDocument(regCodeDoc);
+      regCodes.put(enrollment.getRegistrationCode(), regCode);
+    }
+    return regCode != null && regCode.hasUser(enrollment.getUser(), context);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentQueue#recover
+   * ()
+   */
+  @Override
+  public void recover() {
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+    if (files == null) {
+      return;
+    }
+    // enrollments of the same wiki with the same missing steps are replayed
+    // together
+    Map<List<Object>, List<Enrollment>> batches = new LinkedHashMap<>();
+    int recovered = 0;
+    for (File file : files) {
+      Properties properties = new Properties();
+      try (InputStream in = Files.newInputStream(file.toPath())) {
+        properties.load(in);
+        Enrollment enrollment = Enrollment.fromProperties(properties);
+        if (enrollment.getState() != Enrollment.State.FAILED
+            && enrollments.putIfAbsent(enrollment.getId(), enrollment) == null) {
+          // the groups are those of the wiki of the registration code
+          List<Object> key = Arrays.asList(enrollment.getWikiId(),
+              documentReferenceResolver.resolve(enrollment.getRegistrationCode()).getWikiReference(),
+              enrollment.getPendingWikis(), enrollment.getPendingGroups());
+          List<Enrollment> batch = batches.computeIfAbsent(key, k -> new ArrayList<>());
+          batch.add(enrollment);
+          if (batch.size() >= configuration.getEnrollmentReplayBatchSize()) {
+            schedule(batch);
+            batches.remove(key);
+          }
+          recovered++;
+        }
+      } catch (IOException | RuntimeException ex) {
+        logger.warn("Can not recover stored enrollment " + file, ex);
+      }
+    }
+    for (List<Enrollment> batch : batches.values()) {
+      schedule(batch);
+    }
+    if (recovered > 0) {
+      logger.info("{} pending enrollments recovered", recovered);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentQueue#run(
+   * java.util.List)
+   */
+  @Override
+  public boolean run(List<Enrollment> batch) {
+    if (batch.isEmpty()) {
+      return true;
+    }
+    for (Enrollment enrollment : batch) {
+      enrollment.setState(Enrollment.State.RUNNING, null);
+    }
+    try {
+      // the activations have just been recorded by the caller
+      List<DocumentReference> userRefs = new ArrayList<>(batch.size());
+      for (Enrollment enrollment : batch) {
+        userRefs.add(documentReferenceResolver.resolve(enrollment.getUserReference()));
+      }
+      enroller.enroll(userRefs, documentReferenceResolver.resolve(batch.get(0).getRegistrationCode()),
+          batch.get(0).getPendingWikis(), batch.get(0).getPendingGroups(), new BatchProgress(batch));
+      for (Enrollment enrollment : batch) {
+        finish(enrollment);
+      }
+      return true;
+    } catch (Exception ex) {
+      for (Enrollment enrollment : batch) {
+        retryOrFail(enrollment, ex);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Runs enrollments of the same wiki and with the same missing steps
+   * together. When they fail, each one is retried on its own.
+   *
+   * @param batch
+   *          the enrollments
+   */
+  private void runEnrollments(List<Enrollment> batch) {
+    for (Enrollment enrollment : batch) {
+      enrollment.setState(Enrollment.State.RUNNING, null);
+    }
+    List<Enrollment> recorded = new ArrayList<>(batch.size());
+    try {
+      XWikiContext context = contextProvider.get();
+      context.setWikiId(batch.get(0).getWikiId());
+      Map<String, RegistrationCode> regCodes = new HashMap<>();
+      List<DocumentReference> userRefs = new ArrayList<>(batch.size());
+      for (Enrollment enrollment : batch) {
+        if (isRecorded(enrollment, regCodes)) {
+          recorded.add(enrollment);
+          userRefs.add(documentReferenceResolver.resolve(enrollment.getUserReference()));
+        } else {
+          logger.warn("Enrollment {} of {} dropped since the activation has not been recorded{}",
+              enrollment.getId(), enrollment.getUser(),
+              enrollment.isStarted() ? ", some of its wikis and groups have been done" : "");
+          finish(enrollment);
+        }
+      }
+      enroller.enroll(userRefs, documentReferenceResolver.resolve(batch.get(0).getRegistrationCode()),
+          batch.get(0).getPendingWikis(), batch.get(0).getPendingGroups(), new BatchProgress(recorded));
+      for (Enrollment enrollment : recorded) {
+        finish(enrollment);
+      }
+    } catch (Exception ex) {
+      for (Enrollment enrollment : batch) {
+        if (enrollment.getState() == Enrollment.State.RUNNING) {
+          retryOrFail(enrollment, ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Marks an enrollment as done and deletes it.
+   *
+   * @param enrollment
+   *          the enrollment
+   */
+  private void finish(Enrollment enrollment) {
+    enrollment.setState(Enrollment.State.DONE, null);
+    delete(enrollment);
+  }
+
+  /**
+   * Schedules again a failed enrollment or gives up after too many attempts.
+   * The steps done are stored so that the next attempt, even after a restart,
+   * only runs the missing ones.
+   *
+   * @param enrollment
+   *          the enrollment
+   * @param ex
+   *          the failure
+   */
+  private void retryOrFail(Enrollment enrollment, Exception ex) {
+    if (enrollment.getAttempts() >= configuration.getEnrollmentMaxAttempts()) {
+      logger.warn("Enrollment " + enrollment.getId() + " of " + enrollment.getUser() + " failed", ex);
+      enrollment.setState(Enrollment.State.FAILED, ex.toString());
+    } else {
+      logger.debug("Enrollment {} failed, it will be retried", enrollment.getId(), ex);
+      enrollment.setState(Enrollment.State.PENDING, ex.toString());
+      scheduleLater(enrollment, configuration.getEnrollmentRetryDelay() * enrollment.getAttempts());
+    }
+    try {
+      store(enrollment);
+    } catch (IOException ioex) {
+      logger.warn("Can not store enrollment " + enrollment.getId(), ioex);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentQueue#
+   * schedule(org.projectsforge.xwiki.registrationcodes.enrollment.Enrollment)
+   */
+  @Override
+  public void schedule(Enrollment enrollment) {
+    schedule(Collections.singletonList(enrollment));
+  }
+
+  /**
+   * Schedules enrollments of the same wiki and with the same missing steps to
+   * be run together.
+   *
+   * @param batch
+   *          the enrollments
+   */
+  private void schedule(List<Enrollment> batch) {
+    try {
+      executor.execute(new EnrollmentRunnable(batch));
+    } catch (RejectedExecutionException ex) {
+      if (!executor.isShutdown()) {
+        // the queue is full, the enrollments stay stored
+        for (Enrollment enrollment : batch) {
+          scheduleLater(enrollment, configuration.getEnrollmentRetryDelay());
+        }
+      }
+    }
+  }
+
+  /**
+   * Schedules an enrollment after a delay.
+   *
+   * @param enrollment
+   *          the enrollment
+   * @param delay
+   *          the delay in ms
+   */
+  private void scheduleLater(Enrollment enrollment, long delay) {
+    try {
+      scheduler.schedule(() -> schedule(enrollment), delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ex) {
+      // shutting down, the enrollment stays stored
+    }
+  }
+
+  /**
+   * Stores an enrollment atomically.
+   *
+   * @param enrollment
+   *          the enrollment
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private void store(Enrollment enrollment) throws IOException {
+    File file = getFile(enrollment.getId());
+    File tmp = new File(directory, enrollment.getId() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+      enrollment.toProperties().store(out, null);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+}
@@ -0,0 +1,80 @@
+package org.projectsforge.xwiki.registrationcodes.enrollment;
+
+import java.util.Optional;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.ExpiringCache;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.wiki.descriptor.WikiDescriptor;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+/**
+ * The Class DefaultWikiAliasResolver caches the resolved names, including the
+ * unknown ones, for a bounded time.
+ */
+@Component
+@Singleton
+public class DefaultWikiAliasResolver implements WikiAliasResolver, Initializable {
+
+  /** The wiki descriptor manager. */
+  @Inject
+  private WikiDescriptorManager wikiDescriptorManager;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The wiki ids by name, empty for unknown names. */
+  private ExpiringCache<String, Optional<String>> cache;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() {
+    cache = new ExpiringCache<>(configuration.getWikiAliasCacheSize(), configuration.getWikiAliasCacheTimeToLive());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.WikiAliasResolver#
+   * invalidate()
+   */
+  @Override
+  public void invalidate() {
+    cache.clear();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.WikiAliasResolver#
+   * resolve(java.lang.String)
+   */
+  @Override
+  public String resolve(String wikiname) throws WikiManagerException {
+    Optional<String> wikiId = cache.get(wikiname);
+    if (wikiId == null) {
+      if (wikiDescriptorManager.exists(wikiname)) {
+        wikiId = Optional.of(wikiname);
+      } else {
+        // try by alias
+        WikiDescriptor wikiDescriptor = wikiDescriptorManager.getByAlias(wikiname);
+        wikiId = Optional.ofNullable(wikiDescriptor != null ? wikiDescriptor.getId() : null);
+      }
+      cache.put(wikiname, wikiId);
+    }
+    return wikiId.orElse(null);
+  }
+
+}
@@ -0,0 +1,92 @@
+package org.projectsforge.xwiki.registrationcodes.enrollment;
+
+import java.util.List;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.wiki.manager.WikiManagerException;
+import org.xwiki.wiki.user.WikiUserManagerException;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * The Interface Enroller adds a user to the wikis and groups targeted by a
+ * registration code. Enrolling twice is harmless.
+ */
+@Role
+public interface Enroller {
+
+  /**
+   * Enrolls a user. The wikis are resolved by id or alias and the current wiki
+   * is skipped. The groups are resolved against the wiki of the registration
+   * code, which defines them.
+   *
+   * @param userRef
+   *          the user ref
+   * @param regCodeRef
+   *          the registration code document reference
+   * @param wikis
+   *          the wikis
+   * @param groups
+   *          the groups
+   * @throws XWikiException
+   *           if a group can not be saved
+   * @throws WikiManagerException
+   *           if a wiki can not be resolved
+   * @throws WikiUserManagerException
+   *           if the user can not be added to a wiki
+   */
+  void enroll(DocumentReference userRef, DocumentReference regCodeRef, List<String> wikis, List<String> groups)
+      throws XWikiException, WikiManagerException, WikiUserManagerException;
+
+  /**
+   * Enrolls users together: they are added to each wiki and each group with a
+   * single write. The wikis are resolved by id or alias and the current wiki
+   * is skipped. The groups are resolved against the wiki of the registration
+   * code, which defines them.
+   *
+   * @param userRefs
+   *          the user refs
+   * @param regCodeRef
+   *          the registration code document reference
+   * @param wikis
+   *          the wikis
+   * @param groups
+   *          the groups
+   * @throws XWikiException
+   *           if a group can not be saved
+   * @throws WikiManagerException
+   *           if a wiki can not be resolved
+   * @throws WikiUserManagerException
+   *           if the users can not be added to a wiki
+   */
+  void enroll(List<DocumentReference> userRefs, DocumentReference regCodeRef, List<String> wikis,
+      List<String> groups) throws XWikiException, WikiManagerException, WikiUserManagerException;
+
+  /**
+   * Enrolls users together as
+   * {@link #enroll(List, DocumentReference, List, List)} and reports each wiki
+   * and group done to a progress, including when a later step fails.
+   *
+   * @param userRefs
+   *          the user refs
+   * @param regCodeRef
+   *          the registration code document reference
+   * @param wikis
+   *          the wikis
+   * @param groups
+   *          the groups
+   * @param progress
+   *          the progress
+   * @throws XWikiException
+   *           if a group can not be saved
+   * @throws WikiManagerException
+   *           if a wiki can not be resolved
+   * @throws WikiUserManagerException
+   *           if the users can not be added to a wiki
+   */
+  void enroll(List<DocumentReference> userRefs, DocumentReference regCodeRef, List<String> wikis,
+      List<String> groups, EnrollmentProgress progress)
+      throws XWikiException, WikiManagerException, WikiUserManagerException;
+
+}
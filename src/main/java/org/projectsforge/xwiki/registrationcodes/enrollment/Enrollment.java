@@ -0,0 +1,372 @@
+package org.projectsforge.xwiki.registrationcodes.enrollment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The Class Enrollment describes the wiki and group enrollments pending after
+ * the activation of a registration code by a user. It is the journal entry of
+ * the activation: it is stored before any side effect and records the wikis and
+ * groups already done, so that a replay only runs the missing steps.
+ */
+public class Enrollment implements EnrollmentProgress {
+
+  /**
+   * The State.
+   */
+  public enum State {
+
+    /** Waiting to be run or retried. */
+    PENDING,
+
+    /** Being run. */
+    RUNNING,
+
+    /** Successfully done. */
+    DONE,
+
+    /** Given up after too many attempts. */
+    FAILED
+  }
+
+  /** The Constant LIST_SEPARATOR. */
+  private static final String LIST_SEPARATOR = "\n";
+
+  /**
+   * Reads an enrollment from properties.
+   *
+   * @param properties
+   *          the properties
+   * @return the enrollment
+   */
+  static Enrollment fromProperties(Properties properties) {
+    Enrollment enrollment = new Enrollment(properties.getProperty("id"), properties.getProperty("wiki"),
+        properties.getProperty("user"), properties.getProperty("userReference"),
+        properties.getProperty("registrationCode"), split(properties.getProperty("wikis")),
+        split(properties.getProperty("groups")));
+    enrollment.doneWikis.addAll(split(properties.getProperty("doneWikis")));
+    enrollment.doneGroups.addAll(split(properties.getProperty("doneGroups")));
+    enrollment.state = State.valueOf(properties.getProperty("state", State.PENDING.name()));
+    enrollment.attempts = Integer.parseInt(properties.getProperty("attempts", "0"));
+    enrollment.lastError = properties.getProperty("lastError");
+    enrollment.created = new Date(Long.parseLong(properties.getProperty("created", "0")));
+    enrollment.updated = new Date(Long.parseLong(properties.getProperty("updated", "0")));
+    return enrollment;
+  }
+
+  /**
+   * Split.
+   *
+   * @param value
+   *          the value
+   * @return the list
+   */
+  private static List<String> split(String value) {
+    if (StringUtils.isEmpty(value)) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(StringUtils.split(value, LIST_SEPARATOR));
+  }
+
+  /** The id. */
+  private final String id;
+
+  /** The wiki where the code has been activated. */
+  private final String wikiId;
+
+  /** The user as recorded in the users of the registration code. */
+  private final String user;
+
+  /** The serialized reference of the user. */
+  private final String userReference;
+
+  /** The serialized reference of the registration code document. */
+  private final String registrationCode;
+
+  /** The wikis. */
+  private final List<String> wikis;
+
+  /** The groups. */
+  private final List<String> groups;
+
+  /** The wikis done. */
+  private final Set<String> doneWikis = ConcurrentHashMap.newKeySet();
+
+  /** The groups done. */
+  private final Set<String> doneGroups = ConcurrentHashMap.newKeySet();
+
+  /** The state. */
+  private volatile State state = State.PENDING;
+
+  /** The attempts. */
+  private volatile int attempts;
+
+  /** The last error. */
+  private volatile String lastError;
+
+  /** The created. */
+  private volatile Date created = new Date();
+
+  /** The updated. */
+  private volatile Date updated = created;
+
+  /**
+   * Instantiates a new enrollment.
+   *
+   * @param id
+   *          the id
+   * @param wikiId
+   *          the wiki id
+   * @param user
+   *          the user as recorded in the users of the registration code
+   * @param userReference
+   *          the serialized reference of the user
+   * @param registrationCode
+   *          the serialized reference of the registration code document
+   * @param wikis
+   *          the wikis
+   * @param groups
+   *          the groups
+   */
+  public Enrollment(String id, String wikiId, String user, String userReference, String registrationCode,
+      List<String> wikis, List<String> groups) {
+    this.id = id;
+    this.wikiId = wikiId;
+    this.user = user;
+    this.userReference = userReference;
+    this.registrationCode = registrationCode;
+    this.wikis = Collections.unmodifiableList(new ArrayList<>(wikis));
+    this.groups = Collections.unmodifiableList(new ArrayList<>(groups));
+  }
+
+  /**
+   * Gets the attempts.
+   *
+   * @return the attempts
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+
+  /**
+   * Gets the created.
+   *
+   * @return the created
+   */
+  public Date getCreated() {
+    return created;
+  }
+
+  /**
+   * Gets the groups.
+   *
+   * @return the groups
+   */
+  public List<String> getGroups() {
+    return groups;
+  }
+
+  /**
+   * Gets the id.
+   *
+   * @return the id
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Gets the last error.
+   *
+   * @return the last error
+   */
+  public String getLastError() {
+    return lastError;
+  }
+
+  /**
+   * Gets the steps not done yet.
+   *
+   * @param steps
+   *          the steps
+   * @param done
+   *          the steps done
+   * @return the pending steps
+   */
+  private static List<String> getPending(List<String> steps, Set<String> done) {
+    if (done.isEmpty()) {
+      return steps;
+    }
+    List<String> pending = new ArrayList<>(steps);
+    pending.removeAll(done);
+    return pending;
+  }
+
+  /**
+   * Gets the groups the user has not been added to yet.
+   *
+   * @return the pending groups
+   */
+  public List<String> getPendingGroups() {
+    return getPending(groups, doneGroups);
+  }
+
+  /**
+   * Gets the wikis the user has not been added to yet.
+   *
+   * @return the pending wikis
+   */
+  public List<String> getPendingWikis() {
+    return getPending(wikis, doneWikis);
+  }
+
+  /**
+   * Gets the registration code document reference.
+   *
+   * @return the registration code document reference
+   */
+  public String getRegistrationCode() {
+    return registrationCode;
+  }
+
+  /**
+   * Gets the state.
+   *
+   * @return the state
+   */
+  public State getState() {
+    return state;
+  }
+
+  /**
+   * Gets the updated.
+   *
+   * @return the updated
+   */
+  public Date getUpdated() {
+    return updated;
+  }
+
+  /**
+   * Gets the user as recorded in the users of the registration code.
+   *
+   * @return the user
+   */
+  public String getUser() {
+    return user;
+  }
+
+  /**
+   * Gets the user reference.
+   *
+   * @return the user reference
+   */
+  public String getUserReference() {
+    return userReference;
+  }
+
+  /**
+   * Gets the wiki id.
+   *
+   * @return the wiki id
+   */
+  public String getWikiId() {
+    return wikiId;
+  }
+
+  /**
+   * Gets the wikis.
+   *
+   * @return the wikis
+   */
+  public List<String> getWikis() {
+    return wikis;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentProgress#
+   * groupDone(java.lang.String)
+   */
+  @Override
+  public void groupDone(String group) {
+    doneGroups.add(group);
+  }
+
+  /**
+   * Checks if some steps have been done.
+   *
+   * @return true, if the user has been added to a wiki or a group
+   */
+  public boolean isStarted() {
+    return !doneWikis.isEmpty() || !doneGroups.isEmpty();
+  }
+
+  /**
+   * Updates the state after an attempt.
+   *
+   * @param state
+   *          the state
+   * @param error
+   *          the error or null
+   */
+  void setState(State state, String error) {
+    this.state = state;
+    if (state == State.RUNNING) {
+      attempts++;
+    }
+    if (error != null) {
+      lastError = error;
+    }
+    updated = new Date();
+  }
+
+  /**
+   * Writes the enrollment to properties.
+   *
+   * @return the properties
+   */
+  Properties toProperties() {
+    Properties properties = new Properties();
+    properties.setProperty("id", id);
+    properties.setProperty("wiki", wikiId);
+    properties.setProperty("user", user);
+    properties.setProperty("userReference", userReference);
+    properties.setProperty("registrationCode", registrationCode);
+    properties.setProperty("wikis", StringUtils.join(wikis, LIST_SEPARATOR));
+    properties.setProperty("groups", StringUtils.join(groups, LIST_SEPARATOR));
+    properties.setProperty("doneWikis", StringUtils.join(doneWikis, LIST_SEPARATOR));
+    properties.setProperty("doneGroups", StringUtils.join(doneGroups, LIST_SEPARATOR));
+    properties.setProperty("state", state.name());
+    properties.setProperty("attempts", Integer.toString(attempts));
+    if (lastError != null) {
+      properties.setProperty("lastError", lastError);
+    }
+    properties.setProperty("created", Long.toString(created.getTime()));
+    properties.setProperty("updated", Long.toString(updated.getTime()));
+    return properties;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentProgress#
+   * wikiDone(java.lang.String)
+   */
+  @Override
+  public void wikiDone(String wiki) {
+    doneWikis.add(wiki);
+  }
+
+}
@@ -0,0 +1,41 @@
+package org.projectsforge.xwiki.registrationcodes.enrollment;
+
+/**
+ * The Interface EnrollmentProgress is notified by the {@link Enroller} of each
+ * step done, so that a replayed enrollment only runs the missing ones. Wikis
+ * may be reported from several threads.
+ */
+public interface EnrollmentProgress {
+
+  /** The progress ignoring the steps. */
+  EnrollmentProgress NONE = new EnrollmentProgress() {
+
+    @Override
+    public void groupDone(String group) {
+      // ignored
+    }
+
+    @Override
+    public void wikiDone(String wiki) {
+      // ignored
+    }
+  };
+
+  /**
+   * Called once the users have been added to a group.
+   *
+   * @param group
+   *          the group as given to the enroller
+   */
+  void groupDone(String group);
+
+  /**
+   * Called once the users have been added to a wiki, or the wiki has been
+   * skipped.
+   *
+   * @param wiki
+   *          the wiki as given to the enroller
+   */
+  void wikiDone(String wiki);
+
+}
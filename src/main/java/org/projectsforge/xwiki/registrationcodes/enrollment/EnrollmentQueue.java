@@ -0,0 +1,91 @@
+package org.projectsforge.xwiki.registrationcodes.enrollment;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The Interface EnrollmentQueue runs enrollments in the background. Pending
+ * enrollments are stored durably until done, failed attempts are retried and
+ * the status of recent enrollments can be polled.
+ */
+@Role
+public interface EnrollmentQueue {
+
+  /**
+   * Creates and stores a pending enrollment which is not scheduled yet. It
+   * must then be either scheduled or discarded.
+   *
+   * @param wikiId
+   *          the wiki of the activation, where the enrollment runs
+   * @param user
+   *          the user as recorded in the users of the registration code
+   * @param userRef
+   *          the user reference
+   * @param regCodeRef
+   *          the registration code document reference
+   * @param wikis
+   *          the wikis
+   * @param groups
+   *          the groups
+   * @return the enrollment
+   * @throws IOException
+   *           if the enrollment can not be stored
+   */
+  Enrollment create(String wikiId, String user, DocumentReference userRef, DocumentReference regCodeRef,
+      List<String> wikis, List<String> groups) throws IOException;
+
+  /**
+   * Discards an enrollment which has not been scheduled.
+   *
+   * @param enrollment
+   *          the enrollment
+   */
+  void discard(Enrollment enrollment);
+
+  /**
+   * Gets a known enrollment.
+   *
+   * @param id
+   *          the id
+   * @return the enrollment or null
+   */
+  Enrollment getEnrollment(String id);
+
+  /**
+   * Gets the known enrollments of a user: pending ones and recently finished
+   * ones.
+   *
+   * @param userRef
+   *          the user reference
+   * @return the enrollments
+   */
+  List<Enrollment> getEnrollments(DocumentReference userRef);
+
+  /**
+   * Schedules the pending enrollments stored by a previous run.
+   */
+  void recover();
+
+  /**
+   * Runs enrollments of the same registration code in the calling thread,
+   * together. The enrollments done are finished; when they fail, they are kept
+   * and scheduled again, and the retries only run the missing steps.
+   *
+   * @param enrollments
+   *          the enrollments
+   * @return true, if the enrollments are done
+   */
+  boolean run(List<Enrollment> enrollments);
+
+  /**
+   * Schedules an enrollment.
+   *
+   * @param enrollment
+   *          the enrollment
+   */
+  void schedule(Enrollment enrollment);
+
+}
@@ -0,0 +1,28 @@
+package org.projectsforge.xwiki.registrationcodes.enrollment;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+/**
+ * The Interface WikiAliasResolver resolves wiki ids or aliases into wiki ids.
+ */
+@Role
+public interface WikiAliasResolver {
+
+  /**
+   * Forgets all the resolved names, e.g. when a wiki descriptor changed.
+   */
+  void invalidate();
+
+  /**
+   * Resolves a wiki id or alias.
+   *
+   * @param wikiname
+   *          the wiki id or alias
+   * @return the wiki id or null if no wiki is known under this name
+   * @throws WikiManagerException
+   *           if the wiki descriptors can not be read
+   */
+  String resolve(String wikiname) throws WikiManagerException;
+
+}
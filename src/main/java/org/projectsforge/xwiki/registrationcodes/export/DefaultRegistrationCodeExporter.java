@@ -0,0 +1,422 @@
+package org.projectsforge.xwiki.registrationcodes.export;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.objects.BaseProperty;
+
+/**
+ * The Class DefaultRegistrationCodeExporter. The pages are delimited by the
+ * name of the last exported document rather than by an offset, so that each
+ * page query is as cheap as the first one and runs in its own short
+ * transaction.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeExporter implements RegistrationCodeExporter {
+
+  /**
+   * The exported values of a registration code.
+   */
+  private static class Row {
+
+    /** The document full name. */
+    private final String document;
+
+    /** The code hash. */
+    private String codeHash = "";
+
+    /** The plain code of a code not hashed yet. */
+    private String code = "";
+
+    /** The active flag. */
+    private boolean active;
+
+    /** The max use. */
+    private int maxUse;
+
+    /** The start date. */
+    private Date startDate;
+
+    /** The end date. */
+    private Date endDate;
+
+    /** The last used date. */
+    private Date lastUsed;
+
+    /** The number of users. */
+    private int used;
+
+    /** The users, only read when exported. */
+    private final Set<String> users = new LinkedHashSet<>();
+
+    /**
+     * Instantiates a new row.
+     *
+     * @param document
+     *          the document full name
+     */
+    Row(String document) {
+      this.document = document;
+    }
+  }
+
+  /** The number of codes read per page. */
+  private static final int PAGE_SIZE = 500;
+
+  /** The number of codes read per page when their users are exported. */
+  private static final int USERS_PAGE_SIZE = 50;
+
+  /** The statement reading the names of the next page of registration code documents. */
+  private static final String NAMES_STATEMENT = "select obj.name from BaseObject as obj "
+      + "where obj.className = :className and obj.name like :space and obj.name > :last order by obj.name";
+
+  /**
+   * The statement reading the properties of the registration codes of a page.
+   * The properties are read whatever their type, their value being converted
+   * by their class.
+   */
+  private static final String PROPERTIES_STATEMENT = "select obj.name, prop from BaseObject as obj, "
+      + "BaseProperty as prop where obj.className = :className and obj.name in (:names) "
+      + "and prop.id.id = obj.id and prop.id.name in (:properties)";
+
+  /** The statement reading the user records of the registration codes of a page. */
+  private static final String USERS_STATEMENT = "select codeProp.value, userProp.value from BaseObject as obj, "
+      + "StringProperty as codeProp, StringProperty as userProp where obj.className = :className "
+      + "and codeProp.id.id = obj.id and codeProp.id.name = :codeProperty and codeProp.value in (:names) "
+      + "and userProp.id.id = obj.id and userProp.id.name = :userProperty order by obj.name";
+
+  /** The columns. */
+  private static final List<String> COLUMNS = Arrays.asList("document", "codeHash", "active", "maxUse", "used",
+      "startDate", "endDate", "lastUsed");
+
+  /** The column of the users. */
+  private static final String USERS_COLUMN = "users";
+
+  /** The separator of the users in a CSV cell. */
+  private static final String CSV_USERS_SEPARATOR = ";";
+
+  /** The properties read from the registration code objects. */
+  private static final List<String> PROPERTIES = Arrays.asList(RegistrationCode.FIELD_CODE,
+      RegistrationCode.FIELD_CODE_HASH, RegistrationCode.FIELD_ACTIVE, RegistrationCode.FIELD_MAX_USE,
+      RegistrationCode.FIELD_START_DATE, RegistrationCode.FIELD_END_DATE, RegistrationCode.FIELD_LAST_USED,
+      RegistrationCode.FIELD_USER_COUNT, RegistrationCode.FIELD_USERS);
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The query manager. */
+  @Inject
+  private QueryManager queryManager;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.export.RegistrationCodeExporter#
+   * export(java.lang.String, java.lang.String, boolean, java.io.Writer)
+   */
+  @Override
+  public int export(String wikiId, String format, boolean includeUsers, Writer writer)
+      throws IOException, QueryException {
+    boolean json;
+    if (FORMAT_JSON.equals(format)) {
+      json = true;
+    } else if (FORMAT_CSV.equals(format)) {
+      json = false;
+    } else {
+      throw new IllegalArgumentException("Unknown registration code export format " + format);
+    }
+
+    long start = System.currentTimeMillis();
+    if (json) {
+      writer.write('[');
+    } else {
+      writeCsvHeader(writer, includeUsers);
+    }
+
+    int count = 0;
+    String last = "";
+    while (true) {
+      Map<String, Row> page = readPage(wikiId, last, includeUsers ? USERS_PAGE_SIZE : PAGE_SIZE, includeUsers);
+      if (page.isEmpty()) {
+        break;
+      }
+      for (Row row : page.values()) {
+        if (json) {
+          writeJsonRow(writer, row, includeUsers, count == 0);
+        } else {
+          writeCsvRow(writer, row, includeUsers);
+        }
+        ++count;
+        last = row.document;
+      }
+      // hand each page to the client instead of buffering the whole export
+      writer.flush();
+    }
+
+    if (json) {
+      writer.write(count == 0 ? "]" : "\n]");
+    }
+    writer.flush();
+    logger.debug("{} registration codes of wiki {} exported as {} in {} ms", count, wikiId, format,
+        System.currentTimeMillis() - start);
+    return count;
+  }
+
+  /**
+   * Formats a date as an ISO-8601 instant.
+   *
+   * @param date
+   *          the date
+   * @return the formatted date or null if the date is null
+   */
+  private String formatDate(Date date) {
+    return date == null ? null : DateTimeFormatter.ISO_INSTANT.format(date.toInstant());
+  }
+
+  /**
+   * Gets the values of the columns of a row, except the users.
+   *
+   * @param row
+   *          the row
+   * @return the values, as strings or numbers
+   */
+  private Object[] getValues(Row row) {
+    String codeHash = row.codeHash.isEmpty() ? Utils.digestCode(row.code) : row.codeHash;
+    return new Object[] { row.document, codeHash, row.active, row.maxUse, row.used, formatDate(row.startDate),
+        formatDate(row.endDate), formatDate(row.lastUsed) };
+  }
+
+  /**
+   * Reads a page of registration codes.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param last
+   *          the full name of the last document of the previous page
+   * @param size
+   *          the page size
+   * @param includeUsers
+   *          true to read the users
+   * @return the rows by document full name, in order
+   * @throws QueryException
+   *           if the page can not be read
+   */
+  private Map<String, Row> readPage(String wikiId, String last, int size, boolean includeUsers)
+      throws QueryException {
+    List<String> names = queryManager.createQuery(NAMES_STATEMENT, Query.HQL).setWiki(wikiId)
+        .bindValue("className", RegistrationCode.getClassReferenceAsString())
+        .bindValue("space", Constants.DATA_SPACE_NAME_AS_STRING + ".%").bindValue("last", last).setLimit(size)
+        .execute();
+    Map<String, Row> rows = new LinkedHashMap<>();
+    for (String name : names) {
+      rows.put(name, new Row(name));
+    }
+    if (rows.isEmpty()) {
+      return rows;
+    }
+
+    List<Object[]> properties = queryManager.createQuery(PROPERTIES_STATEMENT, Query.HQL).setWiki(wikiId)
+        .bindValue("className", RegistrationCode.getClassReferenceAsString()).bindValue("names", names)
+        .bindValue("properties", PROPERTIES).execute();
+    for (Object[] result : properties) {
+      Row row = rows.get(result[0]);
+      BaseProperty property = (BaseProperty) result[1];
+      if (row != null && property != null) {
+        setValue(row, property.getName(), property.getValue(), includeUsers);
+      }
+    }
+
+    if (includeUsers) {
+      List<Object[]> users = queryManager.createQuery(USERS_STATEMENT, Query.HQL).setWiki(wikiId)
+          .bindValue("className", Constants.CODE_SPACE_NAME_AS_STRING + "." + RegistrationCode.USER_CLASS_NAME)
+          .bindValue("codeProperty", RegistrationCode.USER_FIELD_REGISTRATION_CODE).bindValue("names", names)
+          .bindValue("userProperty", RegistrationCode.USER_FIELD_USER).execute();
+      for (Object[] result : users) {
+        Row row = rows.get(result[0]);
+        if (row != null && StringUtils.isNotEmpty((String) result[1])) {
+          row.users.add((String) result[1]);
+        }
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Sets a property value in a row.
+   *
+   * @param row
+   *          the row
+   * @param name
+   *          the property name
+   * @param value
+   *          the property value
+   * @param includeUsers
+   *          true if the users are exported
+   */
+  private void setValue(Row row, String name, Object value, boolean includeUsers) {
+    if (RegistrationCode.FIELD_CODE.equals(name)) {
+      row.code = value == null ? "" : value.toString().trim();
+    } else if (RegistrationCode.FIELD_CODE_HASH.equals(name)) {
+      row.codeHash = value == null ? "" : value.toString();
+    } else if (RegistrationCode.FIELD_ACTIVE.equals(name)) {
+      row.active = value instanceof Number && ((Number) value).intValue() == 1;
+    } else if (RegistrationCode.FIELD_MAX_USE.equals(name)) {
+      row.maxUse = value instanceof Number ? ((Number) value).intValue() : 0;
+    } else if (RegistrationCode.FIELD_START_DATE.equals(name)) {
+      row.startDate = value instanceof Date ? (Date) value : null;
+    } else if (RegistrationCode.FIELD_END_DATE.equals(name)) {
+      row.endDate = value instanceof Date ? (Date) value : null;
+    } else if (RegistrationCode.FIELD_LAST_USED.equals(name)) {
+      row.lastUsed = value instanceof Date ? (Date) value : null;
+    } else if (RegistrationCode.FIELD_USER_COUNT.equals(name)) {
+      row.used += value instanceof Number ? ((Number) value).intValue() : 0;
+    } else if (RegistrationCode.FIELD_USERS.equals(name) && value instanceof Collection) {
+      // users not migrated yet to user records
+      for (Object user : (Collection<?>) value) {
+        if (user != null && !user.toString().isEmpty()) {
+          row.used++;
+          if (includeUsers) {
+            row.users.add(user.toString());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the CSV header.
+   *
+   * @param writer
+   *          the writer
+   * @param includeUsers
+   *          true if the users are exported
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private void writeCsvHeader(Writer writer, boolean includeUsers) throws IOException {
+    writer.write(StringUtils.join(COLUMNS, ','));
+    if (includeUsers) {
+      writer.write(',');
+      writer.write(USERS_COLUMN);
+    }
+    writer.write('\n');
+  }
+
+  /**
+   * Writes a CSV row.
+   *
+   * @param writer
+   *          the writer
+   * @param row
+   *          the row
+   * @param includeUsers
+   *          true if the users are exported
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private void writeCsvRow(Writer writer, Row row, boolean includeUsers) throws IOException {
+    Object[] values = getValues(row);
+    for (int i = 0; i < values.length; ++i) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      if (values[i] != null) {
+        writer.write(StringEscapeUtils.escapeCsv(values[i].toString()));
+      }
+    }
+    if (includeUsers) {
+      writer.write(',');
+      writer.write(StringEscapeUtils.escapeCsv(StringUtils.join(row.users, CSV_USERS_SEPARATOR)));
+    }
+    writer.write('\n');
+  }
+
+  /**
+   * Writes a JSON row.
+   *
+   * @param writer
+   *          the writer
+   * @param row
+   *          the row
+   * @param includeUsers
+   *          true if the users are exported
+   * @param first
+   *          true if the row is the first one
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private void writeJsonRow(Writer writer, Row row, boolean includeUsers, boolean first) throws IOException {
+    writer.write(first ? "\n{" : ",\n{");
+    Object[] values = getValues(row);
+    for (int i = 0; i < values.length; ++i) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      writeJsonString(writer, COLUMNS.get(i));
+      writer.write(':');
+      if (values[i] instanceof String) {
+        writeJsonString(writer, (String) values[i]);
+      } else {
+        writer.write(String.valueOf(values[i]));
+      }
+    }
+    if (includeUsers) {
+      writer.write(',');
+      writeJsonString(writer, USERS_COLUMN);
+      writer.write(":[");
+      boolean firstUser = true;
+      for (String user : row.users) {
+        if (!firstUser) {
+          writer.write(',');
+        }
+        writeJsonString(writer, user);
+        firstUser = false;
+      }
+      writer.write(']');
+    }
+    writer.write('}');
+  }
+
+  /**
+   * Writes a JSON string.
+   *
+   * @param writer
+   *          the writer
+   * @param value
+   *          the value
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private void writeJsonString(Writer writer, String value) throws IOException {
+    writer.write('"');
+    writer.write(StringEscapeUtils.escapeJson(value));
+    writer.write('"');
+  }
+
+}
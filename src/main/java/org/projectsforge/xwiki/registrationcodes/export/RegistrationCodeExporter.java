@@ -0,0 +1,47 @@
+package org.projectsforge.xwiki.registrationcodes.export;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.query.QueryException;
+
+/**
+ * The Interface RegistrationCodeExporter writes the registration codes of a
+ * wiki and their usage as CSV or JSON. The codes are read page by page with
+ * projection queries, without loading their documents, and each page is
+ * written before the next one is read, so that the memory used does not depend
+ * on the number of codes.
+ */
+@Role
+public interface RegistrationCodeExporter {
+
+  /** The CSV format, with a header line. */
+  String FORMAT_CSV = "csv";
+
+  /** The JSON format, an array of objects. */
+  String FORMAT_JSON = "json";
+
+  /**
+   * Exports the registration codes of a wiki. Each row holds the document,
+   * the code hash, active, maxUse, the number of users, startDate, endDate,
+   * lastUsed and optionally the users. Plain codes are not stored, so they can
+   * not be exported.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param format
+   *          the format, {@link #FORMAT_CSV} or {@link #FORMAT_JSON}
+   * @param includeUsers
+   *          true to export the users of each code
+   * @param writer
+   *          the writer
+   * @return the number of exported codes
+   * @throws IOException
+   *           if the rows can not be written
+   * @throws QueryException
+   *           if a page can not be read
+   */
+  int export(String wikiId, String format, boolean includeUsers, Writer writer) throws IOException, QueryException;
+
+}
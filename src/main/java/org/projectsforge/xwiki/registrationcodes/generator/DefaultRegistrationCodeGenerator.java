@@ -0,0 +1,166 @@
+package org.projectsforge.xwiki.registrationcodes.generator;
+
+import java.security.SecureRandom;
+import java.util.Locale;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * The Class DefaultRegistrationCodeGenerator draws the characters of the codes
+ * from the configured alphabet, optionally appends a Luhn mod N check
+ * character and splits the code into groups separated by dashes, e.g.
+ * {@code HT4K-9QZM-B7WX-PR2E}.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeGenerator implements RegistrationCodeGenerator, Initializable {
+
+  /** The Constant SEPARATOR. */
+  private static final char SEPARATOR = Utils.CODE_SEPARATOR;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The alphabet. */
+  private char[] alphabet;
+
+  /** The number of random characters. */
+  private int length;
+
+  /** The number of characters between two separators, 0 for none. */
+  private int groupSize;
+
+  /** The check character flag. */
+  private boolean checkCharacter;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.generator.RegistrationCodeGenerator#
+   * generate()
+   */
+  @Override
+  public String generate() {
+    SecureRandom random = Utils.getSecureRandom();
+    char[] chars = new char[checkCharacter ? length + 1 : length];
+    for (int i = 0; i < length; ++i) {
+      chars[i] = alphabet[random.nextInt(alphabet.length)];
+    }
+    if (checkCharacter) {
+      chars[length] = alphabet[getCheckIndex(chars, length)];
+    }
+    if (groupSize <= 0) {
+      return new String(chars);
+    }
+    StringBuilder builder = new StringBuilder(chars.length + chars.length / groupSize);
+    for (int i = 0; i < chars.length; ++i) {
+      if (i > 0 && i % groupSize == 0) {
+        builder.append(SEPARATOR);
+      }
+      builder.append(chars[i]);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Computes the Luhn mod N check character of the first characters of a code.
+   *
+   * @param chars
+   *          the characters of the code
+   * @param count
+   *          the number of characters to check
+   * @return the index of the check character in the alphabet, -1 if a
+   *         character is not in the alphabet
+   */
+  private int getCheckIndex(char[] chars, int count) {
+    int base = alphabet.length;
+    int factor = 2;
+    int sum = 0;
+    for (int i = count - 1; i >= 0; --i) {
+      int index = indexOf(chars[i]);
+      if (index < 0) {
+        return -1;
+      }
+      int addend = factor * index;
+      sum += addend / base + addend % base;
+      factor = 3 - factor;
+    }
+    return (base - sum % base) % base;
+  }
+
+  /**
+   * Gets the index of a character in the alphabet.
+   *
+   * @param c
+   *          the character
+   * @return the index or -1 if the character is not in the alphabet
+   */
+  private int indexOf(char c) {
+    for (int i = 0; i < alphabet.length; ++i) {
+      if (alphabet[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() throws InitializationException {
+    // the codes are checked in their canonical form
+    String chars = configuration.getCodeAlphabet().toUpperCase(Locale.ROOT);
+    if (chars.length() < 2 || chars.indexOf(SEPARATOR) >= 0 || chars.chars().distinct().count() != chars.length()) {
+      throw new InitializationException("Invalid registration code alphabet [" + chars
+          + "]: at least 2 distinct characters other than " + SEPARATOR + " are required");
+    }
+    if (configuration.getCodeLength() < 1) {
+      throw new InitializationException("Invalid registration code length " + configuration.getCodeLength());
+    }
+    alphabet = chars.toCharArray();
+    length = configuration.getCodeLength();
+    groupSize = configuration.getCodeGroupSize();
+    checkCharacter = configuration.isCodeCheckCharacter();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.generator.RegistrationCodeGenerator#
+   * isWellFormed(java.lang.String)
+   */
+  @Override
+  public boolean isWellFormed(String code) {
+    if (code == null) {
+      return false;
+    }
+    char[] chars = Utils.canonicalizeCode(code).toCharArray();
+    if (chars.length != (checkCharacter ? length + 1 : length)) {
+      return false;
+    }
+    if (!checkCharacter) {
+      for (char c : chars) {
+        if (indexOf(c) < 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+    int checkIndex = getCheckIndex(chars, length);
+    return checkIndex >= 0 && alphabet[checkIndex] == chars[length];
+  }
+
+}
@@ -0,0 +1,30 @@
+package org.projectsforge.xwiki.registrationcodes.generator;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * The Interface RegistrationCodeGenerator generates random registration codes.
+ * The generator used is selected by the {@code registrationcodes.code.generator}
+ * property of {@code xwiki.properties}.
+ */
+@Role
+public interface RegistrationCodeGenerator {
+
+  /**
+   * Generates a random code. Uniqueness is checked by the caller.
+   *
+   * @return the code
+   */
+  String generate();
+
+  /**
+   * Checks if a code has the format of the generated codes, e.g. to detect a
+   * typing error before looking the code up.
+   *
+   * @param code
+   *          the code
+   * @return true, if the code is well formed
+   */
+  boolean isWellFormed(String code);
+
+}
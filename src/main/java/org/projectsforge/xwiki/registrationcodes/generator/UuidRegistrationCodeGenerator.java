@@ -0,0 +1,60 @@
+package org.projectsforge.xwiki.registrationcodes.generator;
+
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * The Class UuidRegistrationCodeGenerator generates random (version 4) UUIDs,
+ * the format of the codes before the generator was configurable.
+ */
+@Component
+@Singleton
+@Named("uuid")
+public class UuidRegistrationCodeGenerator implements RegistrationCodeGenerator {
+
+  /** The canonical form of the UUIDs (see {@link Utils#canonicalizeCode(String)}). */
+  private static final Pattern CANONICAL_UUID = Pattern.compile("[0-9A-F]{32}");
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.generator.RegistrationCodeGenerator#
+   * generate()
+   */
+  @Override
+  public String generate() {
+    byte[] bytes = new byte[16];
+    Utils.getSecureRandom().nextBytes(bytes);
+    // version 4 and IETF variant as in UUID.randomUUID()
+    bytes[6] = (byte) ((bytes[6] & 0x0f) | 0x40);
+    bytes[8] = (byte) ((bytes[8] & 0x3f) | 0x80);
+    long msb = 0;
+    long lsb = 0;
+    for (int i = 0; i < 8; ++i) {
+      msb = (msb << 8) | (bytes[i] & 0xff);
+      lsb = (lsb << 8) | (bytes[i + 8] & 0xff);
+    }
+    return new UUID(msb, lsb).toString();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.generator.RegistrationCodeGenerator#
+   * isWellFormed(java.lang.String)
+   */
+  @Override
+  public boolean isWellFormed(String code) {
+    // the canonical form of a UUID is its 32 hexadecimal digits
+    return CANONICAL_UUID.matcher(Utils.canonicalizeCode(code)).matches();
+  }
+
+}
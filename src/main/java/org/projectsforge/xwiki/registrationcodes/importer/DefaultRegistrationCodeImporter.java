@@ -0,0 +1,621 @@
+package org.projectsforge.xwiki.registrationcodes.importer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeTemplate;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeNumberAllocator;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUpdater;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.query.QueryException;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * The Class DefaultRegistrationCodeImporter. The file is read by the calling
+ * thread, which checks the codes against the in-memory code index and hands
+ * batches of new codes, with their document numbers already reserved, to a
+ * small pool of workers saving the documents of each batch. At most one
+ * batch per worker is waiting or being saved, and the codes of the file are
+ * only remembered until they are found in the index once saved, so that memory
+ * does not depend on the size of the file. The checkpoint is the last row before which all
+ * the batches have been saved.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeImporter implements RegistrationCodeImporter {
+
+  /**
+   * The rows between the end of the previous batch and the last row of the
+   * batch, with their new codes.
+   */
+  private static class Batch {
+
+    /** The sequence number. */
+    private final int sequence;
+
+    /** The last row. */
+    private int lastRow;
+
+    /** The new codes. */
+    private final List<String> codes = new ArrayList<>();
+
+    /** The first reserved document number. */
+    private int firstNumber;
+
+    /** The number of created codes. */
+    private int created;
+
+    /** The number of skipped codes. */
+    private int skipped;
+
+    /** The number of rejected rows. */
+    private int rejected;
+
+    /** The saved flag. */
+    private volatile boolean saved;
+
+    /**
+     * Instantiates a new batch.
+     *
+     * @param sequence
+     *          the sequence number
+     */
+    Batch(int sequence) {
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * The state of a running import, with its checkpoint.
+   */
+  private class ImportRun {
+
+    /** The wiki id. */
+    private final String wikiId;
+
+    /** The checkpoint file. */
+    private final File file;
+
+    /** The template. */
+    private final RegistrationCodeTemplate template;
+
+    /** The user running the import. */
+    private final DocumentReference userRef;
+
+    /** The row the import resumes after. */
+    private int resumedRow;
+
+    /** The rows done, guarded by this. */
+    private int rows;
+
+    /** The created codes, guarded by this. */
+    private int created;
+
+    /** The skipped codes, guarded by this. */
+    private int skipped;
+
+    /** The rejected rows, guarded by this. */
+    private int rejected;
+
+    /** The sequence number of the next batch to count in the checkpoint, guarded by this. */
+    private int nextSequence;
+
+    /** The batches saved before a previous one, by sequence number, guarded by this. */
+    private final Map<Integer, Batch> savedBatches = new TreeMap<>();
+
+    /** The error which stopped the import. */
+    private volatile Exception failure;
+
+    /** The live view of the code hashes of the index. */
+    private Set<String> existingCodeHashes;
+
+    /** The code hashes of the file which are not in the index yet. */
+    private final Set<String> importedCodeHashes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Instantiates a new import run.
+     *
+     * @param wikiId
+     *          the wiki id
+     * @param importId
+     *          the import id
+     * @param template
+     *          the template
+     * @param userRef
+     *          the user running the import
+     */
+    ImportRun(String wikiId, String importId, RegistrationCodeTemplate template, DocumentReference userRef) {
+      this.wikiId = wikiId;
+      this.file = new File(directory, wikiId + '-' + importId + FILE_SUFFIX);
+      this.template = template;
+      this.userRef = userRef;
+    }
+
+    /**
+     * Records a saved batch and moves the checkpoint forward if all the
+     * previous batches are saved.
+     *
+     * @param batch
+     *          the batch
+     */
+    synchronized void complete(Batch batch) {
+      batch.saved = true;
+      savedBatches.put(batch.sequence, batch);
+      Batch next;
+      boolean moved = false;
+      while ((next = savedBatches.remove(nextSequence)) != null) {
+        rows = next.lastRow;
+        created += next.created;
+        skipped += next.skipped;
+        rejected += next.rejected;
+        nextSequence++;
+        moved = true;
+      }
+      if (moved) {
+        try {
+          store();
+        } catch (IOException ex) {
+          fail(ex);
+        }
+      }
+    }
+
+    /**
+     * Records the error stopping the import, unless another one did.
+     *
+     * @param ex
+     *          the error
+     */
+    synchronized void fail(Exception ex) {
+      if (failure == null) {
+        failure = ex;
+      }
+    }
+
+    /**
+     * Loads the checkpoint of a previous run, if any.
+     *
+     * @throws IOException
+     *           if the checkpoint can not be read
+     */
+    synchronized void load() throws IOException {
+      if (file.isFile()) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+          properties.load(in);
+        }
+        rows = Integer.parseInt(properties.getProperty("rows", "0"));
+        created = Integer.parseInt(properties.getProperty("created", "0"));
+        skipped = Integer.parseInt(properties.getProperty("skipped", "0"));
+        rejected = Integer.parseInt(properties.getProperty("rejected", "0"));
+        resumedRow = rows;
+      }
+    }
+
+    /**
+     * Stores the checkpoint.
+     *
+     * @throws IOException
+     *           Signals that an I/O exception has occurred.
+     */
+    private void store() throws IOException {
+      Properties properties = new Properties();
+      properties.setProperty("rows", Integer.toString(rows));
+      properties.setProperty("created", Integer.toString(created));
+      properties.setProperty("skipped", Integer.toString(skipped));
+      properties.setProperty("rejected", Integer.toString(rejected));
+      File tmp = new File(directory, file.getName() + ".tmp");
+      try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+        properties.store(out, null);
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /**
+   * The runnable saving a batch from a worker thread.
+   */
+  private class SaveBatchRunnable extends AbstractXWikiRunnable {
+
+    /** The run. */
+    private final ImportRun run;
+
+    /** The batch. */
+    private final Batch batch;
+
+    /**
+     * Instantiates a new save batch runnable.
+     *
+     * @param run
+     *          the run
+     * @param batch
+     *          the batch
+     */
+    SaveBatchRunnable(ImportRun run, Batch batch) {
+      this.run = run;
+      this.batch = batch;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.xpn.xwiki.util.AbstractXWikiRunnable#runInternal()
+     */
+    @Override
+    protected void runInternal() {
+      if (run.failure != null) {
+        return;
+      }
+      XWikiContext context = contextProvider.get();
+      context.setWikiId(run.wikiId);
+      context.setUserReference(run.userRef);
+      try {
+        int nextNumber = batch.firstNumber;
+        int lastNumber = batch.firstNumber + batch.codes.size() - 1;
+        // each document is committed on its own so that the listeners are only
+        // told about saved codes; the codes saved before an error are skipped
+        // as existing when the import is resumed
+        for (String code : batch.codes) {
+          DocumentReference reference;
+          do {
+            int number = nextNumber <= lastNumber ? nextNumber++ : numberAllocator.allocate(run.wikiId);
+            reference = documentReferenceResolver.resolve(RegistrationCode.getName(number));
+            // created in the meantime by another node, or not a registration
+            // code at all: never overwritten
+          } while (!registrationCodeUpdater.create(reference, "Registration code import", true, document -> {
+            new RegistrationCode(service, document).apply(code, run.template);
+            document.setCreatorReference(run.userRef);
+            document.setAuthorReference(run.userRef);
+            document.setContentAuthorReference(run.userRef);
+            return true;
+          }));
+        }
+        batch.created = batch.codes.size();
+        for (String code : batch.codes) {
+          String codeHash = Utils.digestCode(code);
+          // no longer needed once the saved code is in the index
+          if (run.existingCodeHashes.contains(codeHash)) {
+            run.importedCodeHashes.remove(codeHash);
+          }
+        }
+        run.complete(batch);
+      } catch (XWikiException | QueryException ex) {
+        logger.warn("An error occurred while saving registration codes up to row " + batch.lastRow, ex);
+        run.fail(ex);
+      }
+    }
+  }
+
+  /** The Constant FILE_SUFFIX. */
+  private static final String FILE_SUFFIX = ".properties";
+
+  /** The pattern of the import ids, which name the checkpoint files. */
+  private static final Pattern IMPORT_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+  /** The maximal length of an imported code. */
+  private static final int MAX_CODE_LENGTH = 255;
+
+  /** The byte order mark some editors write at the beginning of UTF-8 files. */
+  private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+  /** The first cell of an optional header line. */
+  private static final String HEADER = "code";
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The environment. */
+  @Inject
+  private Environment environment;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The registration code index. */
+  @Inject
+  private RegistrationCodeIndex registrationCodeIndex;
+
+  /** The registration code number allocator. */
+  @Inject
+  private RegistrationCodeNumberAllocator numberAllocator;
+
+  /** The registration code updater. */
+  @Inject
+  private RegistrationCodeUpdater registrationCodeUpdater;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The service. */
+  @Inject
+  private RegistrationCodesService service;
+
+  /** The context provider. */
+  @Inject
+  private Provider<XWikiContext> contextProvider;
+
+  /** The directory storing the checkpoints. */
+  private File directory;
+
+  /**
+   * Gets the first cell of a CSV line.
+   *
+   * @param line
+   *          the line
+   * @return the trimmed first cell or null if its quotes are not closed
+   */
+  private String getFirstCell(String line) {
+    String trimmed = line.trim();
+    if (!trimmed.startsWith("\"")) {
+      int end = trimmed.indexOf(',');
+      return (end < 0 ? trimmed : trimmed.substring(0, end)).trim();
+    }
+    StringBuilder cell = new StringBuilder();
+    for (int i = 1; i < trimmed.length(); ++i) {
+      char c = trimmed.charAt(i);
+      if (c != '"') {
+        cell.append(c);
+      } else if (i + 1 < trimmed.length() && trimmed.charAt(i + 1) == '"') {
+        cell.append(c);
+        ++i;
+      } else {
+        return cell.toString().trim();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the reason why a code is rejected.
+   *
+   * @param code
+   *          the code, null if its quotes are not closed
+   * @return the reason or null if the code is valid
+   */
+  private String getRejectionReason(String code) {
+    if (code == null) {
+      return "unterminated quotes";
+    }
+    if (Utils.canonicalizeCode(code).isEmpty()) {
+      return "empty code";
+    }
+    if (code.length() > MAX_CODE_LENGTH) {
+      return "code longer than " + MAX_CODE_LENGTH + " characters";
+    }
+    for (int i = 0; i < code.length(); ++i) {
+      if (Character.isISOControl(code.charAt(i))) {
+        return "control character in code";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the checkpoint directory, created on first use.
+   *
+   * @return the directory
+   * @throws IOException
+   *           if the directory can not be created
+   */
+  private synchronized File getDirectory() throws IOException {
+    if (directory == null) {
+      File dir = new File(environment.getPermanentDirectory(), "registrationcodes/imports");
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Can not create directory " + dir);
+      }
+      directory = dir;
+    }
+    return directory;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.importer.RegistrationCodeImporter#
+   * importCodes(java.lang.String, java.io.Reader,
+   * org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeTemplate)
+   */
+  @Override
+  public ImportReport importCodes(String importId, Reader reader, RegistrationCodeTemplate template)
+      throws IOException {
+    if (importId == null || !IMPORT_ID_PATTERN.matcher(importId).matches()) {
+      throw new IllegalArgumentException("Invalid registration code import id " + importId);
+    }
+    getDirectory();
+    XWikiContext context = contextProvider.get();
+    ImportRun run = new ImportRun(context.getWikiId(), importId, template, context.getUserReference());
+    run.load();
+    ImportReport report = new ImportReport(importId, run.resumedRow);
+    if (template.getStartDate() == null || template.getEndDate() == null) {
+      report.setCounts(run.rows, run.created, run.skipped, run.rejected);
+      report.setError("The template has no start or end date");
+      return report;
+    }
+
+    try {
+      // live views of the index: uniqueness is checked in memory only
+      run.existingCodeHashes = configuration.isFarmWide() ? registrationCodeIndex.getFarmCodeHashes()
+          : registrationCodeIndex.getCodeHashes(run.wikiId);
+    } catch (QueryException | WikiManagerException ex) {
+      logger.warn("Can not load the registration code index of wiki " + run.wikiId, ex);
+      report.setCounts(run.rows, run.created, run.skipped, run.rejected);
+      report.setError("The existing registration codes can not be read: " + ex.getMessage());
+      return report;
+    }
+
+    int threads = Math.max(1, configuration.getImportThreads());
+    int batchSize = Math.max(1, configuration.getImportBatchSize());
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "RegistrationCodes import " + importId + " " + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    Semaphore permits = new Semaphore(threads);
+    long start = System.currentTimeMillis();
+    try {
+      BufferedReader in = new BufferedReader(reader);
+      int sequence = 0;
+      Batch batch = new Batch(sequence++);
+      int row = 0;
+      String line;
+      while (run.failure == null && (line = in.readLine()) != null) {
+        ++row;
+        if (row <= run.resumedRow) {
+          continue;
+        }
+        batch.lastRow = row;
+        if (row == 1 && !line.isEmpty() && line.charAt(0) == BYTE_ORDER_MARK) {
+          line = line.substring(1);
+        }
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+          continue;
+        }
+        String code = getFirstCell(line);
+        if (row == 1 && HEADER.equalsIgnoreCase(code)) {
+          continue;
+        }
+        String reason = getRejectionReason(code);
+        if (reason != null) {
+          batch.rejected++;
+          report.addRejection(row, reason);
+          continue;
+        }
+        String codeHash = Utils.digestCode(code);
+        // added before checking the index: a saved code is only forgotten
+        // once in the index
+        if (!run.importedCodeHashes.add(codeHash)) {
+          batch.skipped++;
+          continue;
+        }
+        if (Utils.digestCodeVariants(code).stream().anyMatch(run.existingCodeHashes::contains)) {
+          run.importedCodeHashes.remove(codeHash);
+          batch.skipped++;
+          continue;
+        }
+        batch.codes.add(code);
+        if (batch.codes.size() >= batchSize) {
+          submit(run, batch, executor, permits);
+          batch = new Batch(sequence++);
+        }
+      }
+      if (run.failure == null && batch.lastRow > 0) {
+        submit(run, batch, executor, permits);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      run.fail(ex);
+    } catch (IOException ex) {
+      run.fail(ex);
+    } finally {
+      executor.shutdown();
+      try {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          logger.debug("Waiting for the last batches of registration code import {}", importId);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        executor.shutdownNow();
+        run.fail(ex);
+      }
+    }
+
+    synchronized (run) {
+      report.setCounts(run.rows, run.created, run.skipped, run.rejected);
+    }
+    if (run.failure != null) {
+      report.setError(run.failure.toString());
+      logger.warn("Registration code import {} stopped after row {}: {}", importId, report.getRows(),
+          report.getError());
+    } else {
+      Files.deleteIfExists(run.file.toPath());
+      logger.info("Registration code import {} done in {} ms: {} created, {} skipped, {} rejected", importId,
+          System.currentTimeMillis() - start, report.getCreated(), report.getSkipped(), report.getRejected());
+    }
+    return report;
+  }
+
+  /**
+   * Hands a batch to the workers, waiting for one of them to be available.
+   *
+   * @param run
+   *          the run
+   * @param batch
+   *          the batch
+   * @param executor
+   *          the executor
+   * @param permits
+   *          the permits of the workers
+   * @throws InterruptedException
+   *           if interrupted while waiting for a worker
+   */
+  private void submit(ImportRun run, Batch batch, ExecutorService executor, Semaphore permits)
+      throws InterruptedException {
+    if (batch.codes.isEmpty()) {
+      run.complete(batch);
+      return;
+    }
+    try {
+      batch.firstNumber = numberAllocator.reserve(run.wikiId, batch.codes.size());
+    } catch (QueryException ex) {
+      logger.warn("Can not reserve registration code numbers", ex);
+      run.fail(ex);
+      return;
+    }
+    permits.acquire();
+    SaveBatchRunnable runnable = new SaveBatchRunnable(run, batch);
+    executor.execute(() -> {
+      try {
+        runnable.run();
+      } finally {
+        permits.release();
+        if (!batch.saved) {
+          // no-op unless the context could not be initialized
+          run.fail(new IllegalStateException("Registration codes up to row " + batch.lastRow + " not saved"));
+        }
+      }
+    });
+  }
+
+}
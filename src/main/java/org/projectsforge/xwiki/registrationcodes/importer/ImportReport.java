@@ -0,0 +1,180 @@
+package org.projectsforge.xwiki.registrationcodes.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The Class ImportReport holds the outcome of an import of registration codes.
+ * The counts include the rows imported by the previous runs of an import which
+ * has been resumed.
+ */
+public class ImportReport {
+
+  /** The maximal number of rejected rows described by a report. */
+  static final int MAX_REJECTIONS = 100;
+
+  /** The import id. */
+  private final String id;
+
+  /** The number of rows done, i.e. the row an import resumes after. */
+  private int rows;
+
+  /** The row the import resumed after, 0 if it started from the beginning. */
+  private final int resumedRow;
+
+  /** The number of created codes. */
+  private int created;
+
+  /** The number of codes skipped since they already exist. */
+  private int skipped;
+
+  /** The number of rejected rows. */
+  private int rejected;
+
+  /** The descriptions of the first rejected rows of this run. */
+  private final List<String> rejections = new ArrayList<>();
+
+  /** The error which stopped the import, null if the import is complete. */
+  private String error;
+
+  /**
+   * Instantiates a new import report.
+   *
+   * @param id
+   *          the import id
+   * @param resumedRow
+   *          the row the import resumed after
+   */
+  ImportReport(String id, int resumedRow) {
+    this.id = id;
+    this.resumedRow = resumedRow;
+    this.rows = resumedRow;
+  }
+
+  /**
+   * Adds a rejected row description, as long as there are not too many.
+   *
+   * @param row
+   *          the row
+   * @param reason
+   *          the reason
+   */
+  void addRejection(int row, String reason) {
+    if (rejections.size() < MAX_REJECTIONS) {
+      rejections.add("row " + row + ": " + reason);
+    }
+  }
+
+  /**
+   * Gets the number of created codes.
+   *
+   * @return the created
+   */
+  public int getCreated() {
+    return created;
+  }
+
+  /**
+   * Gets the error which stopped the import.
+   *
+   * @return the error or null if the import is complete
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * Gets the import id.
+   *
+   * @return the id
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Gets the number of rejected rows.
+   *
+   * @return the rejected
+   */
+  public int getRejected() {
+    return rejected;
+  }
+
+  /**
+   * Gets the descriptions of the first rejected rows of this run.
+   *
+   * @return the rejections
+   */
+  public List<String> getRejections() {
+    return Collections.unmodifiableList(rejections);
+  }
+
+  /**
+   * Gets the row the import resumed after.
+   *
+   * @return the resumed row, 0 if the import started from the beginning
+   */
+  public int getResumedRow() {
+    return resumedRow;
+  }
+
+  /**
+   * Gets the number of rows done. When the import failed, running it again
+   * with the same id resumes after this row.
+   *
+   * @return the rows
+   */
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * Gets the number of codes skipped since they already exist.
+   *
+   * @return the skipped
+   */
+  public int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * Checks if the import is complete.
+   *
+   * @return true, if complete
+   */
+  public boolean isComplete() {
+    return error == null;
+  }
+
+  /**
+   * Sets the counts.
+   *
+   * @param rows
+   *          the rows done
+   * @param created
+   *          the created
+   * @param skipped
+   *          the skipped
+   * @param rejected
+   *          the rejected
+   */
+  void setCounts(int rows, int created, int skipped, int rejected) {
+    this.rows = rows;
+    this.created = created;
+    this.skipped = skipped;
+    this.rejected = rejected;
+  }
+
+  /**
+   * Sets the error.
+   *
+   * @param error
+   *          the error
+   */
+  void setError(String error) {
+    this.error = error;
+  }
+
+}
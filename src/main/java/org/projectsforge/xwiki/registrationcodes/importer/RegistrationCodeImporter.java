@@ -0,0 +1,37 @@
+package org.projectsforge.xwiki.registrationcodes.importer;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeTemplate;
+import org.xwiki.component.annotation.Role;
+
+/**
+ * The Interface RegistrationCodeImporter creates registration codes from CSV
+ * files holding one code per line in their first column. A header line whose
+ * first cell is <code>code</code>, blank lines and lines starting with
+ * <code>#</code> are ignored.
+ */
+@Role
+public interface RegistrationCodeImporter {
+
+  /**
+   * Imports registration codes into the current wiki. Codes which already exist
+   * are skipped and invalid rows are rejected without stopping the import. The
+   * progress is recorded after each saved batch, so that an import which
+   * failed resumes where it stopped when it is run again with the same id and
+   * the same file.
+   *
+   * @param importId
+   *          the import id, made of letters, digits, dashes and underscores
+   * @param reader
+   *          the CSV content
+   * @param template
+   *          the settings of the codes
+   * @return the report
+   * @throws IOException
+   *           if the content can not be read
+   */
+  ImportReport importCodes(String importId, Reader reader, RegistrationCodeTemplate template) throws IOException;
+
+}
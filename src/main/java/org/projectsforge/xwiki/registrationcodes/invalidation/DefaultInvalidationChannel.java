@@ -0,0 +1,36 @@
+package org.projectsforge.xwiki.registrationcodes.invalidation;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * The Class DefaultInvalidationChannel sends the invalidations as events: the
+ * remote observation, when enabled, forwards them to the other nodes of the
+ * cluster, where they are received by
+ * {@link org.projectsforge.xwiki.registrationcodes.listener.RegistrationCodeInvalidationListener}.
+ */
+@Component
+@Singleton
+public class DefaultInvalidationChannel implements InvalidationChannel {
+
+  /** The observation manager. */
+  @Inject
+  private ObservationManager observationManager;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.invalidation.InvalidationChannel#
+   * publish(org.projectsforge.xwiki.registrationcodes.invalidation.
+   * RegistrationCodeInvalidationEvent)
+   */
+  @Override
+  public void publish(RegistrationCodeInvalidationEvent event) {
+    observationManager.notify(event, null);
+  }
+
+}
@@ -0,0 +1,233 @@
+package org.projectsforge.xwiki.registrationcodes.invalidation;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeSummary;
+import org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeNumberAllocator;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.projectsforge.xwiki.registrationcodes.throttling.ActivationThrottle;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.QueryException;
+
+/**
+ * The Class DefaultRegistrationCodeInvalidator. A changed document is read
+ * again from the property tables rather than taken from the document events
+ * forwarded by the remote observation, whose document may come from a cache
+ * not invalidated yet on the receiving node.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeInvalidator implements RegistrationCodeInvalidator {
+
+  /**
+   * The publications deferred by a thread.
+   */
+  private static class Deferral {
+
+    /** The number of nested deferrals. */
+    private int depth;
+
+    /** The changed documents, in order. */
+    private final Set<DocumentReference> references = new LinkedHashSet<>();
+
+    /** True if a nested deferral ended without a commit. */
+    private boolean rolledBack;
+  }
+
+  /** The counter of the invalidations published to the other nodes. */
+  private static final String METRIC_PUBLISHED = "invalidation.published";
+
+  /** The counter of the invalidations received from the other nodes. */
+  private static final String METRIC_APPLIED = "invalidation.applied";
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The registration code index. */
+  @Inject
+  private RegistrationCodeIndex registrationCodeIndex;
+
+  /** The registration code number allocator. */
+  @Inject
+  private RegistrationCodeNumberAllocator numberAllocator;
+
+  /** The activation throttle. */
+  @Inject
+  private ActivationThrottle activationThrottle;
+
+  /** The metrics. */
+  @Inject
+  private RegistrationCodesMetrics metrics;
+
+  /** The component manager provider, to get the configured channel. */
+  @Inject
+  @Named("context")
+  private Provider<ComponentManager> componentManagerProvider;
+
+  /** The deferral of each thread, null if its publications are not deferred. */
+  private final ThreadLocal<Deferral> deferrals = new ThreadLocal<>();
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.invalidation.
+   * RegistrationCodeInvalidator#apply(org.projectsforge.xwiki.registrationcodes.
+   * invalidation.RegistrationCodeInvalidationEvent)
+   */
+  @Override
+  public void apply(RegistrationCodeInvalidationEvent event) {
+    metrics.increment(METRIC_APPLIED);
+    String wikiId = event.getWikiId();
+    if (event.getFullName() == null) {
+      registrationCodeIndex.invalidate(wikiId);
+      return;
+    }
+    refresh(documentReferenceResolver.resolve(event.getFullName(), new WikiReference(wikiId)));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.invalidation.
+   * RegistrationCodeInvalidator#beginDeferral()
+   */
+  @Override
+  public void beginDeferral() {
+    Deferral deferral = deferrals.get();
+    if (deferral == null) {
+      deferral = new Deferral();
+      deferrals.set(deferral);
+    }
+    deferral.depth++;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.invalidation.
+   * RegistrationCodeInvalidator#endDeferral(boolean)
+   */
+  @Override
+  public void endDeferral(boolean committed) {
+    Deferral deferral = deferrals.get();
+    if (deferral == null) {
+      return;
+    }
+    deferral.rolledBack |= !committed;
+    if (--deferral.depth > 0) {
+      return;
+    }
+    deferrals.remove();
+    for (DocumentReference reference : deferral.references) {
+      if (deferral.rolledBack) {
+        refresh(reference);
+      } else {
+        publishNow(reference);
+      }
+    }
+  }
+
+  /**
+   * Reads a registration code document again into the caches of this node.
+   *
+   * @param reference
+   *          the document reference
+   */
+  private void refresh(DocumentReference reference) {
+    if (!Utils.isInDataSpace(reference)) {
+      return;
+    }
+    String wikiId = reference.getWikiReference().getName();
+    try {
+      RegistrationCodeSummary summary = registrationCodeIndex.refresh(reference);
+      if (summary != null) {
+        activationThrottle.forgetUnknownCode(wikiId, summary.getCodeHash());
+        numberAllocator.notifyExisting(reference);
+      }
+    } catch (QueryException ex) {
+      logger.warn("Can not read registration code " + reference + ", invalidating the index of wiki " + wikiId, ex);
+      registrationCodeIndex.invalidate(wikiId);
+    }
+  }
+
+  /**
+   * Publishes an event through the configured channel.
+   *
+   * @param event
+   *          the event
+   */
+  private void publish(RegistrationCodeInvalidationEvent event) {
+    try {
+      InvalidationChannel channel = componentManagerProvider.get().getInstance(InvalidationChannel.class,
+          configuration.getInvalidationChannel());
+      channel.publish(event);
+      metrics.increment(METRIC_PUBLISHED);
+    } catch (ComponentLookupException ex) {
+      logger.warn("Can not get the invalidation channel " + configuration.getInvalidationChannel(), ex);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.invalidation.
+   * RegistrationCodeInvalidator#publish(org.xwiki.model.reference.
+   * DocumentReference)
+   */
+  @Override
+  public void publish(DocumentReference reference) {
+    Deferral deferral = deferrals.get();
+    if (deferral != null) {
+      deferral.references.add(reference);
+    } else {
+      publishNow(reference);
+    }
+  }
+
+  /**
+   * Tells the other nodes that a registration code document changed.
+   *
+   * @param reference
+   *          the document reference
+   */
+  private void publishNow(DocumentReference reference) {
+    publish(new RegistrationCodeInvalidationEvent(reference.getWikiReference().getName(),
+        Utils.LOCAL_REFERENCE_SERIALIZER.serialize(reference)));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.invalidation.
+   * RegistrationCodeInvalidator#publish(java.lang.String)
+   */
+  @Override
+  public void publish(String wikiId) {
+    publish(new RegistrationCodeInvalidationEvent(wikiId, null));
+  }
+
+}
@@ -0,0 +1,22 @@
+package org.projectsforge.xwiki.registrationcodes.invalidation;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * The Interface InvalidationChannel carries the invalidations of the caches of
+ * the registration codes to the other cluster nodes. The channel is chosen by
+ * its hint in the configuration.
+ */
+@Role
+public interface InvalidationChannel {
+
+  /**
+   * Publishes an invalidation to the other nodes. The publishing node keeps its
+   * own caches up to date itself.
+   *
+   * @param event
+   *          the event
+   */
+  void publish(RegistrationCodeInvalidationEvent event);
+
+}
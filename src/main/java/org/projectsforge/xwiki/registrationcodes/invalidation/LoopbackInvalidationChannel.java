@@ -0,0 +1,36 @@
+package org.projectsforge.xwiki.registrationcodes.invalidation;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * The Class LoopbackInvalidationChannel applies the invalidations right away to
+ * the caches of the publishing node as if it were another node, to exercise
+ * the receiving side on a single node.
+ */
+@Component
+@Singleton
+@Named("loopback")
+public class LoopbackInvalidationChannel implements InvalidationChannel {
+
+  /** The invalidator. */
+  @Inject
+  private RegistrationCodeInvalidator invalidator;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.invalidation.InvalidationChannel#
+   * publish(org.projectsforge.xwiki.registrationcodes.invalidation.
+   * RegistrationCodeInvalidationEvent)
+   */
+  @Override
+  public void publish(RegistrationCodeInvalidationEvent event) {
+    invalidator.apply(event);
+  }
+
+}
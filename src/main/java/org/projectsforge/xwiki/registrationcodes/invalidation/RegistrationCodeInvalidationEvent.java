@@ -0,0 +1,82 @@
+package org.projectsforge.xwiki.registrationcodes.invalidation;
+
+import java.io.Serializable;
+
+import org.xwiki.observation.event.Event;
+
+/**
+ * The event telling the other cluster nodes that the cached state of a
+ * registration code document, or of all the registration codes of a wiki, is
+ * stale. It only carries names so that it can be sent as is by the remote
+ * observation.
+ */
+public class RegistrationCodeInvalidationEvent implements Event, Serializable {
+
+  /** The Constant serialVersionUID. */
+  private static final long serialVersionUID = 1L;
+
+  /** The wiki id. */
+  private final String wikiId;
+
+  /** The local full name of the document, null for the whole wiki. */
+  private final String fullName;
+
+  /**
+   * Instantiates a new event matching any registration code invalidation.
+   */
+  public RegistrationCodeInvalidationEvent() {
+    this(null, null);
+  }
+
+  /**
+   * Instantiates a new registration code invalidation event.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param fullName
+   *          the local full name of the document, null for the whole wiki
+   */
+  public RegistrationCodeInvalidationEvent(String wikiId, String fullName) {
+    this.wikiId = wikiId;
+    this.fullName = fullName;
+  }
+
+  /**
+   * Gets the local full name of the document.
+   *
+   * @return the full name, null if the whole wiki is invalidated
+   */
+  public String getFullName() {
+    return fullName;
+  }
+
+  /**
+   * Gets the wiki id.
+   *
+   * @return the wiki id
+   */
+  public String getWikiId() {
+    return wikiId;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.observation.event.Event#matches(java.lang.Object)
+   */
+  @Override
+  public boolean matches(Object otherEvent) {
+    return otherEvent instanceof RegistrationCodeInvalidationEvent;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "RegistrationCodeInvalidationEvent [" + wikiId + (fullName == null ? "" : ":" + fullName) + "]";
+  }
+
+}
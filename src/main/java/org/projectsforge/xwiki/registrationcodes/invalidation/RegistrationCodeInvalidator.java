@@ -0,0 +1,62 @@
+package org.projectsforge.xwiki.registrationcodes.invalidation;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The Interface RegistrationCodeInvalidator keeps the caches of the
+ * registration codes of all the cluster nodes consistent: the index with its
+ * summaries, the unknown codes of the activation throttle and the document
+ * numbers known to the allocator.
+ */
+@Role
+public interface RegistrationCodeInvalidator {
+
+  /**
+   * Applies to the caches of this node an invalidation published by another
+   * node.
+   *
+   * @param event
+   *          the event
+   */
+  void apply(RegistrationCodeInvalidationEvent event);
+
+  /**
+   * Defers the publications of the current thread until
+   * {@link #endDeferral(boolean)}, e.g. while it saves documents in a database
+   * transaction: the other nodes would read the documents before the commit.
+   * The deferrals can be nested.
+   */
+  void beginDeferral();
+
+  /**
+   * Ends a deferral of the publications of the current thread. When the
+   * outermost deferral ends, the deferred publications are done if the
+   * changes they tell about have been committed. Otherwise, the documents are
+   * read again by this node only, whose caches were updated with the rolled
+   * back changes.
+   *
+   * @param committed
+   *          true if the changes have been committed
+   */
+  void endDeferral(boolean committed);
+
+  /**
+   * Tells the other nodes that a registration code document changed, once the
+   * deferral of the current thread ends if any.
+   *
+   * @param reference
+   *          the document reference
+   */
+  void publish(DocumentReference reference);
+
+  /**
+   * Tells the other nodes that the registration codes of a wiki must be read
+   * again.
+   *
+   * @param wikiId
+   *          the wiki id
+   */
+  void publish(String wikiId);
+
+}
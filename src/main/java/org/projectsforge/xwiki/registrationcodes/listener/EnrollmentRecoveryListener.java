@@ -0,0 +1,47 @@
+package org.projectsforge.xwiki.registrationcodes.listener;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentQueue;
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * The listener scheduling, once XWiki is ready, the enrollments left pending by
+ * the previous run.
+ */
+@Component
+@Singleton
+@Named(EnrollmentRecoveryListener.NAME)
+public class EnrollmentRecoveryListener extends AbstractEventListener {
+
+  /** The Constant NAME. */
+  public static final String NAME = "EnrollmentRecoveryListener";
+
+  /** The enrollment queue. */
+  @Inject
+  private EnrollmentQueue enrollmentQueue;
+
+  /**
+   * Instantiates a new enrollment recovery listener.
+   */
+  public EnrollmentRecoveryListener() {
+    super(NAME, new ApplicationReadyEvent());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.observation.EventListener#onEvent(org.xwiki.observation.event.
+   * Event, java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public void onEvent(Event event, Object source, Object data) {
+    enrollmentQueue.recover();
+  }
+
+}
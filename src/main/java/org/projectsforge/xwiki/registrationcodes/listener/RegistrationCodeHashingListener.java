@@ -0,0 +1,60 @@
+package org.projectsforge.xwiki.registrationcodes.listener;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.DocumentCreatingEvent;
+import org.xwiki.bridge.event.DocumentUpdatingEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The listener replacing, before they are saved, the plain codes of the
+ * documents of the data space by their digest, e.g. when a code is entered in
+ * the object editor or a legacy code is modified.
+ */
+@Component
+@Singleton
+@Named(RegistrationCodeHashingListener.NAME)
+public class RegistrationCodeHashingListener extends AbstractEventListener {
+
+  /** The Constant NAME. */
+  public static final String NAME = "RegistrationCodeHashingListener";
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /**
+   * Instantiates a new registration code hashing listener.
+   */
+  public RegistrationCodeHashingListener() {
+    super(NAME, new DocumentCreatingEvent(), new DocumentUpdatingEvent());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.observation.EventListener#onEvent(org.xwiki.observation.event.
+   * Event, java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public void onEvent(Event event, Object source, Object data) {
+    XWikiDocument document = (XWikiDocument) source;
+    if (!Utils.isInDataSpace(document.getDocumentReference())) {
+      return;
+    }
+    RegistrationCode regCode = RegistrationCode.fromDocument(document);
+    if (regCode != null && regCode.hashPlainCode()) {
+      logger.debug("Plain registration code of {} replaced by its digest", document.getDocumentReference());
+    }
+  }
+
+}
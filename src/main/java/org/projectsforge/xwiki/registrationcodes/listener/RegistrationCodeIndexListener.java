@@ -0,0 +1,152 @@
+package org.projectsforge.xwiki.registrationcodes.listener;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.invalidation.RegistrationCodeInvalidator;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeNumberAllocator;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.projectsforge.xwiki.registrationcodes.throttling.ActivationThrottle;
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.bridge.event.WikiReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+import org.xwiki.query.QueryException;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The listener keeping the registration code index, number allocator and
+ * unknown codes of the activation throttle up to date with the documents of the
+ * data space saved on this node, and telling the other cluster nodes about
+ * them. The document events forwarded from the other nodes are ignored: the
+ * invalidations they publish are handled by
+ * {@link RegistrationCodeInvalidationListener}.
+ */
+@Component
+@Singleton
+@Named(RegistrationCodeIndexListener.NAME)
+public class RegistrationCodeIndexListener extends AbstractEventListener {
+
+  /** The Constant NAME. */
+  public static final String NAME = "RegistrationCodeIndexListener";
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The registration code index. */
+  @Inject
+  private RegistrationCodeIndex registrationCodeIndex;
+
+  /** The registration code number allocator. */
+  @Inject
+  private RegistrationCodeNumberAllocator numberAllocator;
+
+  /** The activation throttle. */
+  @Inject
+  private ActivationThrottle activationThrottle;
+
+  /** The invalidator. */
+  @Inject
+  private RegistrationCodeInvalidator invalidator;
+
+  /** The remote observation manager context. */
+  @Inject
+  private RemoteObservationManagerContext remoteObservationManagerContext;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The wiki descriptor manager. */
+  @Inject
+  private WikiDescriptorManager wikiDescriptorManager;
+
+  /**
+   * Instantiates a new registration code index listener.
+   */
+  public RegistrationCodeIndexListener() {
+    super(NAME, new ApplicationReadyEvent(), new WikiReadyEvent(), new WikiDeletedEvent(),
+        new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+  }
+
+  /**
+   * Loads the index of a wiki.
+   *
+   * @param wikiId
+   *          the wiki id
+   */
+  private void load(String wikiId) {
+    try {
+      registrationCodeIndex.load(wikiId);
+    } catch (QueryException ex) {
+      logger.warn("Can not load the registration code index of wiki " + wikiId, ex);
+    }
+  }
+
+  /**
+   * Loads the indexes of all the wikis, to look codes up in the whole farm.
+   */
+  private void loadFarm() {
+    try {
+      registrationCodeIndex.loadFarm();
+    } catch (QueryException | WikiManagerException ex) {
+      logger.warn("Can not load the registration code indexes of the farm", ex);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.observation.EventListener#onEvent(org.xwiki.observation.event.
+   * Event, java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public void onEvent(Event event, Object source, Object data) {
+    if (event instanceof ApplicationReadyEvent) {
+      if (configuration.isFarmWide()) {
+        loadFarm();
+      } else {
+        load(wikiDescriptorManager.getMainWikiId());
+      }
+    } else if (event instanceof WikiReadyEvent) {
+      load(((WikiReadyEvent) event).getWikiId());
+    } else if (event instanceof WikiDeletedEvent) {
+      registrationCodeIndex.invalidate(((WikiDeletedEvent) event).getWikiId());
+    } else {
+      XWikiDocument document = (XWikiDocument) source;
+      if (remoteObservationManagerContext.isRemoteState() || !Utils.isInDataSpace(document.getDocumentReference())) {
+        return;
+      }
+      if (event instanceof DocumentDeletedEvent) {
+        registrationCodeIndex.remove(document.getDocumentReference());
+      } else {
+        registrationCodeIndex.update(document);
+        RegistrationCode regCode = RegistrationCode.fromDocument(document);
+        if (regCode != null && !regCode.getCodeHash().isEmpty()) {
+          activationThrottle.forgetUnknownCode(document.getDocumentReference().getWikiReference().getName(),
+              regCode.getCodeHash());
+        }
+        if (event instanceof DocumentCreatedEvent) {
+          numberAllocator.notifyExisting(document.getDocumentReference());
+        }
+      }
+      invalidator.publish(document.getDocumentReference());
+    }
+  }
+
+}
@@ -0,0 +1,55 @@
+package org.projectsforge.xwiki.registrationcodes.listener;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.invalidation.RegistrationCodeInvalidationEvent;
+import org.projectsforge.xwiki.registrationcodes.invalidation.RegistrationCodeInvalidator;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+
+/**
+ * The listener applying the invalidations published by the other cluster
+ * nodes. The invalidations published by this node are ignored, the publisher
+ * having already updated its caches.
+ */
+@Component
+@Singleton
+@Named(RegistrationCodeInvalidationListener.NAME)
+public class RegistrationCodeInvalidationListener extends AbstractEventListener {
+
+  /** The Constant NAME. */
+  public static final String NAME = "RegistrationCodeInvalidationListener";
+
+  /** The invalidator. */
+  @Inject
+  private RegistrationCodeInvalidator invalidator;
+
+  /** The remote observation manager context. */
+  @Inject
+  private RemoteObservationManagerContext remoteObservationManagerContext;
+
+  /**
+   * Instantiates a new registration code invalidation listener.
+   */
+  public RegistrationCodeInvalidationListener() {
+    super(NAME, new RegistrationCodeInvalidationEvent());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.observation.EventListener#onEvent(org.xwiki.observation.event.
+   * Event, java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public void onEvent(Event event, Object source, Object data) {
+    if (remoteObservationManagerContext.isRemoteState()) {
+      invalidator.apply((RegistrationCodeInvalidationEvent) event);
+    }
+  }
+
+}
@@ -0,0 +1,88 @@
+package org.projectsforge.xwiki.registrationcodes.listener;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUserMigrator;
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.query.QueryException;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * The listener migrating, once XWiki is ready, the users of the registration
+ * codes recorded in the code documents to user records. The migration runs in
+ * the background and does nothing once every code has been migrated.
+ */
+@Component
+@Singleton
+@Named(RegistrationCodeUserMigrationListener.NAME)
+public class RegistrationCodeUserMigrationListener extends AbstractEventListener {
+
+  /**
+   * The runnable migrating the registration codes of each wiki.
+   */
+  private class MigrationRunnable extends AbstractXWikiRunnable {
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.xpn.xwiki.util.AbstractXWikiRunnable#runInternal()
+     */
+    @Override
+    protected void runInternal() {
+      try {
+        for (String wikiId : wikiDescriptorManager.getAllIds()) {
+          migrator.migrate(wikiId);
+        }
+      } catch (WikiManagerException | QueryException | XWikiException | RuntimeException ex) {
+        // retried at the next start
+        logger.warn("An error occurred while migrating the users of the registration codes", ex);
+      }
+    }
+  }
+
+  /** The Constant NAME. */
+  public static final String NAME = "RegistrationCodeUserMigrationListener";
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The migrator. */
+  @Inject
+  private RegistrationCodeUserMigrator migrator;
+
+  /** The wiki descriptor manager. */
+  @Inject
+  private WikiDescriptorManager wikiDescriptorManager;
+
+  /**
+   * Instantiates a new registration code user migration listener.
+   */
+  public RegistrationCodeUserMigrationListener() {
+    super(NAME, new ApplicationReadyEvent());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.observation.EventListener#onEvent(org.xwiki.observation.event.
+   * Event, java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public void onEvent(Event event, Object source, Object data) {
+    Thread thread = new Thread(new MigrationRunnable(), "RegistrationCodes user migration");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+}
@@ -0,0 +1,77 @@
+package org.projectsforge.xwiki.registrationcodes.listener;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.enrollment.WikiAliasResolver;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.WikiCreatedEvent;
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The listener invalidating the resolved wiki names when a wiki is created or
+ * deleted or when a wiki descriptor (XWiki.XWikiServer* documents of the main
+ * wiki) changes.
+ */
+@Component
+@Singleton
+@Named(WikiAliasCacheListener.NAME)
+public class WikiAliasCacheListener extends AbstractEventListener {
+
+  /** The Constant NAME. */
+  public static final String NAME = "WikiAliasCacheListener";
+
+  /** The wiki alias resolver. */
+  @Inject
+  private WikiAliasResolver wikiAliasResolver;
+
+  /** The wiki descriptor manager. */
+  @Inject
+  private WikiDescriptorManager wikiDescriptorManager;
+
+  /**
+   * Instantiates a new wiki alias cache listener.
+   */
+  public WikiAliasCacheListener() {
+    super(NAME, new WikiCreatedEvent(), new WikiDeletedEvent(), new DocumentCreatedEvent(),
+        new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+  }
+
+  /**
+   * Checks if a document is a wiki descriptor.
+   *
+   * @param reference
+   *          the reference
+   * @return true, if the document is a wiki descriptor
+   */
+  private boolean isWikiDescriptor(DocumentReference reference) {
+    return reference.getName().startsWith("XWikiServer")
+        && "XWiki".equals(reference.getLastSpaceReference().getName())
+        && reference.getWikiReference().getName().equals(wikiDescriptorManager.getMainWikiId());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.observation.EventListener#onEvent(org.xwiki.observation.event.
+   * Event, java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public void onEvent(Event event, Object source, Object data) {
+    if (event instanceof WikiCreatedEvent || event instanceof WikiDeletedEvent
+        || isWikiDescriptor(((XWikiDocument) source).getDocumentReference())) {
+      wikiAliasResolver.invalidate();
+    }
+  }
+
+}
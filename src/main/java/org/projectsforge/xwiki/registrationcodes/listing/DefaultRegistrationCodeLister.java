@@ -0,0 +1,205 @@
+package org.projectsforge.xwiki.registrationcodes.listing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+/**
+ * The Class DefaultRegistrationCodeLister. The statement is built from the set
+ * criteria only, each one joining the property it is checked on, so that the
+ * filtering is done by the database and a page only reads the names of its
+ * codes.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeLister implements RegistrationCodeLister {
+
+  /** The maximal number of codes of a page. */
+  private static final int MAX_PAGE_SIZE = 1000;
+
+  /** The separator of the values of the list properties. */
+  private static final String LIST_SEPARATOR = "|";
+
+  /** The escape character of the like patterns. */
+  private static final char LIKE_ESCAPE = '!';
+
+  /** The timer of the pages. */
+  private static final String METRIC_PAGE = "listing.page";
+
+  /** The query manager. */
+  @Inject
+  private QueryManager queryManager;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The metrics. */
+  @Inject
+  private RegistrationCodesMetrics metrics;
+
+  /**
+   * Appends the condition matching a value of a list property, stored as its
+   * values joined by the list separator.
+   *
+   * @param where
+   *          the where clause
+   * @param parameters
+   *          the parameters
+   * @param alias
+   *          the alias of the property
+   * @param value
+   *          the value
+   */
+  private static void appendListCondition(StringBuilder where, Map<String, Object> parameters, String alias,
+      String value) {
+    String escape = " escape '" + LIKE_ESCAPE + "'";
+    where.append(" and (").append(alias).append(".textValue = :").append(alias).append(" or ").append(alias)
+        .append(".textValue like :").append(alias).append("First").append(escape).append(" or ").append(alias)
+        .append(".textValue like :").append(alias).append("Last").append(escape).append(" or ").append(alias)
+        .append(".textValue like :").append(alias).append("Middle").append(escape).append(")");
+    // the wildcards of the value match themselves only
+    String pattern = escapeLike(value);
+    parameters.put(alias, value);
+    parameters.put(alias + "First", pattern + LIST_SEPARATOR + "%");
+    parameters.put(alias + "Last", "%" + LIST_SEPARATOR + pattern);
+    parameters.put(alias + "Middle", "%" + LIST_SEPARATOR + pattern + LIST_SEPARATOR + "%");
+  }
+
+  /**
+   * Appends the join of a property of the registration code object.
+   *
+   * @param from
+   *          the from clause
+   * @param where
+   *          the where clause
+   * @param parameters
+   *          the parameters
+   * @param type
+   *          the entity of the property
+   * @param alias
+   *          the alias of the property
+   * @param name
+   *          the name of the property
+   */
+  private static void appendProperty(StringBuilder from, StringBuilder where, Map<String, Object> parameters,
+      String type, String alias, String name) {
+    from.append(", ").append(type).append(" as ").append(alias);
+    where.append(" and ").append(alias).append(".id.id = obj.id and ").append(alias).append(".id.name = :")
+        .append(alias).append("Name");
+    parameters.put(alias + "Name", name);
+  }
+
+  /**
+   * Escapes the wildcards of a value used in a like pattern.
+   *
+   * @param value
+   *          the value
+   * @return the escaped value
+   */
+  private static String escapeLike(String value) {
+    StringBuilder result = new StringBuilder(value.length());
+    for (char c : value.toCharArray()) {
+      if (c == LIKE_ESCAPE || c == '%' || c == '_') {
+        result.append(LIKE_ESCAPE);
+      }
+      result.append(c);
+    }
+    return result.toString();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.listing.RegistrationCodeLister#
+   * list(java.lang.String,
+   * org.projectsforge.xwiki.registrationcodes.listing.RegistrationCodeFilter,
+   * java.lang.String, int)
+   */
+  @Override
+  public RegistrationCodePage list(String wikiId, RegistrationCodeFilter filter, String cursor, int size)
+      throws QueryException {
+    long start = System.nanoTime();
+    StringBuilder from = new StringBuilder("select obj.name from BaseObject as obj");
+    StringBuilder where = new StringBuilder(
+        " where obj.className = :className and obj.name like :space and obj.name > :last");
+    Map<String, Object> parameters = new LinkedHashMap<>();
+    parameters.put("className", RegistrationCode.getClassReferenceAsString());
+    parameters.put("space", Constants.DATA_SPACE_NAME_AS_STRING + ".%");
+    parameters.put("last", StringUtils.defaultString(cursor));
+
+    if (filter.getActive() != null) {
+      appendProperty(from, where, parameters, "IntegerProperty", "activeProp", RegistrationCode.FIELD_ACTIVE);
+      where.append(" and activeProp.value = :active");
+      parameters.put("active", filter.getActive() ? 1 : 0);
+    }
+    if (filter.getTo() != null) {
+      appendProperty(from, where, parameters, "DateProperty", "startDateProp", RegistrationCode.FIELD_START_DATE);
+      where.append(" and (startDateProp.value is null or startDateProp.value <= :to)");
+      parameters.put("to", filter.getTo());
+    }
+    if (filter.getFrom() != null) {
+      appendProperty(from, where, parameters, "DateProperty", "endDateProp", RegistrationCode.FIELD_END_DATE);
+      where.append(" and (endDateProp.value is null or endDateProp.value >= :from)");
+      parameters.put("from", filter.getFrom());
+    }
+    if (filter.getMinRemainingUses() > 0) {
+      // the codes not counting their users yet are counted once migrated
+      appendProperty(from, where, parameters, "IntegerProperty", "maxUseProp", RegistrationCode.FIELD_MAX_USE);
+      where.append(" and maxUseProp.value >= :remaining and not exists (select countProp.id.id "
+          + "from IntegerProperty as countProp where countProp.id.id = obj.id and countProp.id.name = :userCount "
+          + "and countProp.value > maxUseProp.value - :remaining)");
+      parameters.put("userCount", RegistrationCode.FIELD_USER_COUNT);
+      parameters.put("remaining", filter.getMinRemainingUses());
+    }
+    if (StringUtils.isNotEmpty(filter.getGroup())) {
+      appendProperty(from, where, parameters, "StringListProperty", "groupsProp",
+          RegistrationCode.FIELD_ADD_TO_GROUPS);
+      appendListCondition(where, parameters, "groupsProp", filter.getGroup());
+    }
+    if (StringUtils.isNotEmpty(filter.getWiki())) {
+      appendProperty(from, where, parameters, "StringListProperty", "wikisProp", RegistrationCode.FIELD_ADD_TO_WIKIS);
+      appendListCondition(where, parameters, "wikisProp", filter.getWiki());
+    }
+
+    int pageSize = Math.min(Math.max(1, size), MAX_PAGE_SIZE);
+    // one more name tells whether there is a next page
+    Query query = queryManager.createQuery(from.append(where).append(" order by obj.name").toString(), Query.HQL)
+        .setWiki(wikiId).setLimit(pageSize + 1);
+    for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+      query.bindValue(parameter.getKey(), parameter.getValue());
+    }
+    List<String> names = query.execute();
+
+    String next = null;
+    if (names.size() > pageSize) {
+      names = names.subList(0, pageSize);
+      next = names.get(pageSize - 1);
+    }
+    WikiReference wikiReference = new WikiReference(wikiId);
+    List<DocumentReference> references = new ArrayList<>(names.size());
+    for (String name : names) {
+      references.add(documentReferenceResolver.resolve(name, wikiReference));
+    }
+    metrics.record(METRIC_PAGE, System.nanoTime() - start);
+    return new RegistrationCodePage(references, next);
+  }
+
+}
@@ -0,0 +1,146 @@
+package org.projectsforge.xwiki.registrationcodes.listing;
+
+import java.util.Date;
+
+/**
+ * The Class RegistrationCodeFilter holds the criteria of a listing of
+ * registration codes. Unset criteria do not filter the codes.
+ */
+public class RegistrationCodeFilter {
+
+  /** The active state, null for any. */
+  private Boolean active;
+
+  /** The beginning of the validity window, null if open. */
+  private Date from;
+
+  /** The end of the validity window, null if open. */
+  private Date to;
+
+  /** The minimal number of remaining uses, 0 for any. */
+  private int minRemainingUses;
+
+  /** The group the users are added to, null for any. */
+  private String group;
+
+  /** The wiki the users are added to, null for any. */
+  private String wiki;
+
+  /**
+   * Gets the active state.
+   *
+   * @return the active state, null for any
+   */
+  public Boolean getActive() {
+    return active;
+  }
+
+  /**
+   * Gets the beginning of the validity window.
+   *
+   * @return the from date, null if open
+   */
+  public Date getFrom() {
+    return from;
+  }
+
+  /**
+   * Gets the group the users are added to.
+   *
+   * @return the group, null for any
+   */
+  public String getGroup() {
+    return group;
+  }
+
+  /**
+   * Gets the minimal number of remaining uses.
+   *
+   * @return the min remaining uses, 0 for any
+   */
+  public int getMinRemainingUses() {
+    return minRemainingUses;
+  }
+
+  /**
+   * Gets the end of the validity window.
+   *
+   * @return the to date, null if open
+   */
+  public Date getTo() {
+    return to;
+  }
+
+  /**
+   * Gets the wiki the users are added to.
+   *
+   * @return the wiki, null for any
+   */
+  public String getWiki() {
+    return wiki;
+  }
+
+  /**
+   * Sets the active state.
+   *
+   * @param active
+   *          the active state, null for any
+   */
+  public void setActive(Boolean active) {
+    this.active = active;
+  }
+
+  /**
+   * Sets the beginning of the validity window: only the codes whose end date is
+   * not before it are listed.
+   *
+   * @param from
+   *          the from date, null if open
+   */
+  public void setFrom(Date from) {
+    this.from = from;
+  }
+
+  /**
+   * Sets the group the users are added to, as written in the codes.
+   *
+   * @param group
+   *          the group, null for any
+   */
+  public void setGroup(String group) {
+    this.group = group;
+  }
+
+  /**
+   * Sets the minimal number of remaining uses. The users recorded in the
+   * legacy list of a code are not counted.
+   *
+   * @param minRemainingUses
+   *          the min remaining uses, 0 for any
+   */
+  public void setMinRemainingUses(int minRemainingUses) {
+    this.minRemainingUses = minRemainingUses;
+  }
+
+  /**
+   * Sets the end of the validity window: only the codes whose start date is not
+   * after it are listed.
+   *
+   * @param to
+   *          the to date, null if open
+   */
+  public void setTo(Date to) {
+    this.to = to;
+  }
+
+  /**
+   * Sets the wiki the users are added to, as written in the codes.
+   *
+   * @param wiki
+   *          the wiki, null for any
+   */
+  public void setWiki(String wiki) {
+    this.wiki = wiki;
+  }
+
+}
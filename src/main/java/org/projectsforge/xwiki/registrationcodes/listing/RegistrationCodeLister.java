@@ -0,0 +1,34 @@
+package org.projectsforge.xwiki.registrationcodes.listing;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.query.QueryException;
+
+/**
+ * The Interface RegistrationCodeLister lists the registration codes of a wiki
+ * matching a filter, one page at a time. Pages continue after the last code of
+ * the previous one instead of skipping the previous codes, so that the cost of
+ * a page does not depend on its position nor on the number of codes.
+ */
+@Role
+public interface RegistrationCodeLister {
+
+  /**
+   * Lists a page of registration codes sorted by document name.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param filter
+   *          the filter
+   * @param cursor
+   *          the cursor of the page (see {@link RegistrationCodePage#getNext()}),
+   *          null or empty for the first page
+   * @param size
+   *          the maximal number of codes of the page
+   * @return the page
+   * @throws QueryException
+   *           if the codes can not be listed
+   */
+  RegistrationCodePage list(String wikiId, RegistrationCodeFilter filter, String cursor, int size)
+      throws QueryException;
+
+}
@@ -0,0 +1,60 @@
+package org.projectsforge.xwiki.registrationcodes.listing;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The Class RegistrationCodePage holds a page of a listing of registration
+ * codes and the cursor of the next page.
+ */
+public class RegistrationCodePage {
+
+  /** The references of the registration code documents. */
+  private final List<DocumentReference> references;
+
+  /** The cursor of the next page, null if this page is the last one. */
+  private final String next;
+
+  /**
+   * Instantiates a new registration code page.
+   *
+   * @param references
+   *          the references of the registration code documents
+   * @param next
+   *          the cursor of the next page, null if this page is the last one
+   */
+  RegistrationCodePage(List<DocumentReference> references, String next) {
+    this.references = Collections.unmodifiableList(references);
+    this.next = next;
+  }
+
+  /**
+   * Gets the cursor of the next page, to be given to the next listing.
+   *
+   * @return the cursor, null if this page is the last one
+   */
+  public String getNext() {
+    return next;
+  }
+
+  /**
+   * Gets the references of the registration code documents, sorted by name.
+   *
+   * @return the references
+   */
+  public List<DocumentReference> getReferences() {
+    return references;
+  }
+
+  /**
+   * Checks if this page is the last one.
+   *
+   * @return true, if is last
+   */
+  public boolean isLast() {
+    return next == null;
+  }
+
+}
@@ -1,17 +1,26 @@
 package org.projectsforge.xwiki.registrationcodes.mapping;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.projectsforge.xwiki.registrationcodes.Utils;
 import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
 
+import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 
@@ -27,31 +36,55 @@ public class RegistrationCode {
   public static final String NAME_SUFFIX = ".WebHome";
 
   /** The Constant FIELD_ACTIVE. */
-  private static final String FIELD_ACTIVE = "active";
+  public static final String FIELD_ACTIVE = "active";
 
-  /** The Constant FIELD_CODE. */
-  private static final String FIELD_CODE = "code";
+  /** The plain code, only kept for the codes not hashed yet. */
+  public static final String FIELD_CODE = "code";
+
+  /** The digest of the code (see {@link Utils#digestCode(String)}). */
+  public static final String FIELD_CODE_HASH = "codeHash";
 
   /** The Constant FIELD_MAX_USE. */
-  private static final String FIELD_MAX_USE = "maxUse";
+  public static final String FIELD_MAX_USE = "maxUse";
 
   /** The Constant FIELD_START_DATE. */
-  private static final String FIELD_START_DATE = "startDate";
+  public static final String FIELD_START_DATE = "startDate";
 
   /** The Constant FIELD_END_DATE. */
-  private static final String FIELD_END_DATE = "endDate";
+  public static final String FIELD_END_DATE = "endDate";
 
   /** The Constant FIELD_ADD_TO_GROUPS. */
-  private static final String FIELD_ADD_TO_GROUPS = "addToGroups";
+  public static final String FIELD_ADD_TO_GROUPS = "addToGroups";
 
   /** The Constant FIELD_ADD_TO_WIKIS. */
-  private static final String FIELD_ADD_TO_WIKIS = "addToWikis";
+  public static final String FIELD_ADD_TO_WIKIS = "addToWikis";
+
+  /** The legacy list of the users, replaced by the user records. */
+  public static final String FIELD_USERS = "users";
 
-  /** The Constant FIELD_USERS. */
-  private static final String FIELD_USERS = "users";
+  /** The number of users recorded in user record documents. */
+  public static final String FIELD_USER_COUNT = "userCount";
 
   /** The Constant FIELD_LAST_USED. */
-  private static final String FIELD_LAST_USED = "lastUsed";
+  public static final String FIELD_LAST_USED = "lastUsed";
+
+  /** The name of the class recording a user of a registration code. */
+  public static final String USER_CLASS_NAME = "RegistrationCodeUserClass";
+
+  /** The user field of the user class. */
+  public static final String USER_FIELD_USER = "user";
+
+  /** The date field of the user class. */
+  static final String USER_FIELD_DATE = "date";
+
+  /** The field of the user class holding the local full name of the registration code document. */
+  public static final String USER_FIELD_REGISTRATION_CODE = "registrationCode";
+
+  /** The class references by wiki id, references being immutable. */
+  private static final Map<String, DocumentReference> CLASS_REFERENCES = new ConcurrentHashMap<>();
+
+  /** The user class references by wiki id. */
+  private static final Map<String, DocumentReference> USER_CLASS_REFERENCES = new ConcurrentHashMap<>();
 
   /**
    * Gets the class reference.
@@ -61,8 +94,8 @@ public class RegistrationCode {
    * @return the class reference
    */
   public static DocumentReference getClassReference(EntityReference entityReference) {
-    return new DocumentReference(entityReference.extractReference(EntityType.WIKI).getName(),
-        Constants.CODE_SPACE_NAME_AS_LIST, "RegistrationCodeClass");
+    return CLASS_REFERENCES.computeIfAbsent(entityReference.extractReference(EntityType.WIKI).getName(),
+        wikiId -> new DocumentReference(wikiId, Constants.CODE_SPACE_NAME_AS_LIST, "RegistrationCodeClass"));
   }
 
   /**
@@ -76,6 +109,92 @@ public class RegistrationCode {
     return getClassReference(document.getDocumentReference());
   }
 
+  /**
+   * Gets the reference of the class recording a user of a registration code.
+   *
+   * @param entityReference
+   *          the entity reference
+   * @return the user class reference
+   */
+  public static DocumentReference getUserClassReference(EntityReference entityReference) {
+    return USER_CLASS_REFERENCES.computeIfAbsent(entityReference.extractReference(EntityType.WIKI).getName(),
+        wikiId -> new DocumentReference(wikiId, Constants.CODE_SPACE_NAME_AS_LIST, USER_CLASS_NAME));
+  }
+
+  /**
+   * Gets the reference of the document recording a user of a registration
+   * code: a page named after the digest of the user in the sub-space of the
+   * users space named after the code.
+   *
+   * @param reference
+   *          the registration code document reference
+   * @param user
+   *          the user
+   * @return the user record reference
+   */
+  public static DocumentReference getUserRecordReference(DocumentReference reference, String user) {
+    List<String> spaces = new ArrayList<>(Constants.USERS_SPACE_NAME_AS_LIST);
+    spaces.add(reference.getLastSpaceReference().getName());
+    return new DocumentReference(reference.getWikiReference().getName(), spaces, Utils.digest(user));
+  }
+
+  /**
+   * Creates the document recording a user of a registration code.
+   *
+   * @param reference
+   *          the registration code document reference
+   * @param user
+   *          the user
+   * @param date
+   *          the activation date, null if unknown
+   * @return the user record document, not saved
+   */
+  public static XWikiDocument newUserRecord(DocumentReference reference, String user, Date date) {
+    XWikiDocument record = new XWikiDocument(getUserRecordReference(reference, user));
+    record.setHidden(true);
+    BaseObject xobject = new BaseObject();
+    xobject.setXClassReference(getUserClassReference(reference));
+    xobject.setStringValue(USER_FIELD_USER, user);
+    xobject.setStringValue(USER_FIELD_REGISTRATION_CODE, Utils.LOCAL_REFERENCE_SERIALIZER.serialize(reference));
+    if (date != null) {
+      xobject.setDateValue(USER_FIELD_DATE, date);
+    }
+    record.addXObject(xobject);
+    return record;
+  }
+
+  /**
+   * Gets the local name of the registration code document with the given
+   * number.
+   *
+   * @param number
+   *          the number
+   * @return the name
+   */
+  public static String getName(int number) {
+    return NAME_PREFIX + number + NAME_SUFFIX;
+  }
+
+  /**
+   * Gets the number of a registration code document.
+   *
+   * @param reference
+   *          the document reference
+   * @return the number or 0 if the name does not follow the naming scheme
+   */
+  public static int getNumber(DocumentReference reference) {
+    String id = Utils.LOCAL_REFERENCE_SERIALIZER.serialize(reference);
+    if (id.startsWith(NAME_PREFIX) && id.endsWith(NAME_SUFFIX)) {
+      String number = id.substring(0, id.length() - NAME_SUFFIX.length()).substring(NAME_PREFIX.length());
+      try {
+        return Integer.parseInt(number);
+      } catch (NumberFormatException ex) {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
   /**
    * Gets the class reference as string.
    *
@@ -85,9 +204,44 @@ public class RegistrationCode {
     return Constants.CODE_SPACE_NAME_AS_STRING + ".RegistrationCodeClass";
   }
 
+  /**
+   * Gets the registration code held by a document.
+   *
+   * @param document
+   *          the document
+   * @return the registration code or null if the document has no
+   *         RegistrationCodeClass object
+   */
+  public static RegistrationCode fromDocument(XWikiDocument document) {
+    BaseObject xobject = document.getXObject(getClassReference(document));
+    if (xobject == null) {
+      return null;
+    }
+    return new RegistrationCode(document, xobject);
+  }
+
+  /** The document. */
+  private XWikiDocument document;
+
   /** The xobject. */
   private BaseObject xobject;
 
+  /** The users recorded by the legacy list or objects, loaded on first use. */
+  private Set<String> legacyUsers;
+
+  /**
+   * Instantiates a new registration code.
+   *
+   * @param document
+   *          the document
+   * @param xobject
+   *          the xobject
+   */
+  private RegistrationCode(XWikiDocument document, BaseObject xobject) {
+    this.document = document;
+    this.xobject = xobject;
+  }
+
   /**
    * Instantiates a new person.
    *
@@ -97,6 +251,7 @@ public class RegistrationCode {
    *          the document
    */
   public RegistrationCode(RegistrationCodesService service, XWikiDocument document) {
+    this.document = document;
     this.xobject = document.getXObject(getClassReference(document), true, service.getContext());
     if (xobject == null) {
       throw new IllegalStateException(
@@ -111,10 +266,12 @@ public class RegistrationCode {
    *          the code
    * @param userRef
    *          the user ref
+   * @param context
+   *          the context
    * @return true, if successful
    */
-  public boolean accept(String code, String userRef) {
-    if (!StringUtils.equals(StringUtils.trim(code), StringUtils.trim(getCode()))) {
+  public boolean accept(String code, String userRef, XWikiContext context) {
+    if (!matches(code)) {
       return false;
     }
 
@@ -122,16 +279,16 @@ public class RegistrationCode {
       return false;
     }
 
-    if (getUsers().size() >= getMaxUse()) {
+    if (isExhausted()) {
       return false;
     }
 
     Date date = new Date();
-    if (getStartDate().after(date) || getEndDate().before(date)) {
+    if (getStartDate().after(date) || isExpired(date)) {
       return false;
     }
 
-    if (getUsers().contains(userRef)) {
+    if (hasUser(userRef, context)) {
       return false;
     }
 
@@ -139,18 +296,50 @@ public class RegistrationCode {
   }
 
   /**
-   * Adds the user.
+   * Adds the user. The user is only counted on the registration code, whose
+   * document keeps the same size whatever its number of users, and recorded by
+   * a document of its own which the caller saves with the registration code.
+   * The users of a legacy code are migrated first, so that the count read by
+   * the queries includes them as soon as it is set.
    *
    * @param user
    *          the user
+   * @param context
+   *          the context
+   * @return the user record documents to save, empty if the user is already
+   *         recorded and the code is not legacy
    */
-  public void addUser(String user) {
-    List<String> users = new ArrayList<>(getUsers());
-    if (!users.contains(user)) {
-      users.add(user);
+  public List<XWikiDocument> addUser(String user, XWikiContext context) {
+    Date date = new Date();
+    xobject.setDateValue(FIELD_LAST_USED, date);
+    boolean recorded = getLegacyUsers().contains(user);
+    List<XWikiDocument> records = isLegacy() ? migrateLegacyUsers(context) : new ArrayList<>();
+    if (!recorded) {
+      xobject.setIntValue(FIELD_USER_COUNT, xobject.getIntValue(FIELD_USER_COUNT) + 1);
+      records.add(newUserRecord(document.getDocumentReference(), user, date));
+    }
+    return records;
+  }
+
+  /**
+   * Applies the settings of a template.
+   *
+   * @param code
+   *          the code
+   * @param template
+   *          the template
+   */
+  public void apply(String code, RegistrationCodeTemplate template) {
+    setCode(code);
+    setActive(template.isActive());
+    setMaxUse(template.getMaxUse());
+    setStartDate(template.getStartDate());
+    setEndDate(template.getEndDate());
+    setAddToGroups(template.getAddToGroups());
+    setAddToWikis(template.getAddToWikis());
+    if (xobject.safeget(FIELD_USER_COUNT) == null) {
+      xobject.setIntValue(FIELD_USER_COUNT, 0);
     }
-    xobject.setStringListValue(FIELD_USERS, users);
-    xobject.setDateValue(FIELD_LAST_USED, new Date());
   }
 
   /**
@@ -182,14 +371,28 @@ public class RegistrationCode {
   }
 
   /**
-   * Gets the code.
+   * Gets the plain code of a registration code not hashed yet.
    *
-   * @return the code
+   * @return the code, empty once hashed
    */
   public String getCode() {
     return xobject.getStringValue(FIELD_CODE);
   }
 
+  /**
+   * Gets the digest of the code, computed from the plain code if it is not
+   * hashed yet.
+   *
+   * @return the code hash, empty if there is no code
+   */
+  public String getCodeHash() {
+    String codeHash = xobject.getStringValue(FIELD_CODE_HASH);
+    if (StringUtils.isEmpty(codeHash)) {
+      codeHash = Utils.digestCode(getCode());
+    }
+    return codeHash;
+  }
+
   /**
    * Gets the end date.
    *
@@ -199,6 +402,15 @@ public class RegistrationCode {
     return xobject.getDateValue(FIELD_END_DATE);
   }
 
+  /**
+   * Gets the last used date.
+   *
+   * @return the last used date, null if the code was never used
+   */
+  public Date getLastUsed() {
+    return xobject.getDateValue(FIELD_LAST_USED);
+  }
+
   /**
    * Gets the max use.
    *
@@ -218,13 +430,126 @@ public class RegistrationCode {
   }
 
   /**
-   * Gets the users.
+   * Gets the read-only projection of the registration code.
+   *
+   * @return the summary
+   */
+  public RegistrationCodeSummary getSummary() {
+    return new RegistrationCodeSummary(document.getDocumentReference(), getCodeHash(), isActive(), getMaxUse(),
+        getStartDate(), getEndDate(), getLastUsed(), getUserCount());
+  }
+
+  /**
+   * Gets the users not migrated yet to user records, loading them on first use
+   * from the legacy list property and the user objects of the document.
    *
-   * @return the users
+   * @return the legacy users
    */
   @SuppressWarnings("unchecked")
-  public List<String> getUsers() {
-    return xobject.getListValue(FIELD_USERS);
+  private Set<String> getLegacyUsers() {
+    if (legacyUsers == null) {
+      List<String> list = xobject.getListValue(FIELD_USERS);
+      List<BaseObject> records = document.getXObjects(getUserClassReference(document.getDocumentReference()));
+      Set<String> result = new LinkedHashSet<>(list);
+      if (records != null) {
+        for (BaseObject record : records) {
+          // removed objects leave holes in the list
+          if (record != null) {
+            result.add(record.getStringValue(USER_FIELD_USER));
+          }
+        }
+      }
+      result.remove("");
+      legacyUsers = result;
+    }
+    return legacyUsers;
+  }
+
+  /**
+   * Gets the number of users.
+   *
+   * @return the user count
+   */
+  public int getUserCount() {
+    return xobject.getIntValue(FIELD_USER_COUNT) + getLegacyUsers().size();
+  }
+
+  /**
+   * Moves the users recorded in the legacy list or objects to user records and
+   * counts them on the registration code. The users already having a record
+   * are not counted twice. The legacy list property is removed, so that the
+   * codes still holding it are found by the migration.
+   *
+   * @param context
+   *          the context
+   * @return the user record documents to save with the registration code
+   */
+  public List<XWikiDocument> migrateLegacyUsers(XWikiContext context) {
+    DocumentReference reference = document.getDocumentReference();
+    Map<String, Date> dates = new LinkedHashMap<>();
+    for (Object user : xobject.getListValue(FIELD_USERS)) {
+      dates.put(user.toString(), null);
+    }
+    List<BaseObject> objects = document.getXObjects(getUserClassReference(reference));
+    if (objects != null) {
+      for (BaseObject object : objects) {
+        if (object != null) {
+          dates.put(object.getStringValue(USER_FIELD_USER), object.getDateValue(USER_FIELD_DATE));
+        }
+      }
+    }
+    dates.remove("");
+
+    List<XWikiDocument> records = new ArrayList<>();
+    for (Map.Entry<String, Date> entry : dates.entrySet()) {
+      if (!context.getWiki().exists(getUserRecordReference(reference, entry.getKey()), context)) {
+        records.add(newUserRecord(reference, entry.getKey(), entry.getValue()));
+      }
+    }
+    xobject.removeField(FIELD_USERS);
+    document.removeXObjects(getUserClassReference(reference));
+    xobject.setIntValue(FIELD_USER_COUNT, xobject.getIntValue(FIELD_USER_COUNT) + records.size());
+    legacyUsers = null;
+    return records;
+  }
+
+  /**
+   * Replaces the plain code, e.g. entered in the object editor, by its digest.
+   *
+   * @return true, if the object has been modified
+   */
+  public boolean hashPlainCode() {
+    String code = getCode();
+    if (StringUtils.isBlank(code)) {
+      return false;
+    }
+    setCode(code);
+    return true;
+  }
+
+  /**
+   * Checks if a user already used the registration code.
+   *
+   * @param user
+   *          the user
+   * @param context
+   *          the context
+   * @return true, if the user is recorded
+   */
+  public boolean hasUser(String user, XWikiContext context) {
+    return getLegacyUsers().contains(user)
+        || context.getWiki().exists(getUserRecordReference(document.getDocumentReference(), user), context);
+  }
+
+  /**
+   * Checks if the document still holds the legacy list or objects, or does not
+   * count its users yet.
+   *
+   * @return true, if the users must be migrated
+   */
+  public boolean isLegacy() {
+    return xobject.safeget(FIELD_USER_COUNT) == null || xobject.safeget(FIELD_USERS) != null
+        || !getLegacyUsers().isEmpty();
   }
 
   /**
@@ -236,4 +561,114 @@ public class RegistrationCode {
     return xobject.getIntValue(FIELD_ACTIVE) == 1;
   }
 
+  /**
+   * Checks if the code has been used by as many users as allowed.
+   *
+   * @return true, if is exhausted
+   */
+  public boolean isExhausted() {
+    return getUserCount() >= getMaxUse();
+  }
+
+  /**
+   * Checks if the end date of the code is past at a date.
+   *
+   * @param date
+   *          the date
+   * @return true, if is expired
+   */
+  public boolean isExpired(Date date) {
+    return getEndDate().before(date);
+  }
+
+  /**
+   * Checks if a code is the registration code, in a time independent of the
+   * position of the first difference. The codes hashed before being
+   * canonicalized only match as they were entered.
+   *
+   * @param code
+   *          the code
+   * @return true, if the code matches
+   */
+  public boolean matches(String code) {
+    byte[] codeHash = getCodeHash().getBytes(StandardCharsets.US_ASCII);
+    boolean matches = false;
+    for (String variant : Utils.digestCodeVariants(code)) {
+      matches |= MessageDigest.isEqual(codeHash, variant.getBytes(StandardCharsets.US_ASCII));
+    }
+    return matches;
+  }
+
+  /**
+   * Sets the active.
+   *
+   * @param active
+   *          the new active
+   */
+  public void setActive(boolean active) {
+    xobject.setIntValue(FIELD_ACTIVE, active ? 1 : 0);
+  }
+
+  /**
+   * Sets the adds the to groups.
+   *
+   * @param addToGroups
+   *          the new adds the to groups
+   */
+  public void setAddToGroups(List<String> addToGroups) {
+    xobject.setStringListValue(FIELD_ADD_TO_GROUPS, addToGroups);
+  }
+
+  /**
+   * Sets the adds the to wikis.
+   *
+   * @param addToWikis
+   *          the new adds the to wikis
+   */
+  public void setAddToWikis(List<String> addToWikis) {
+    xobject.setStringListValue(FIELD_ADD_TO_WIKIS, addToWikis);
+  }
+
+  /**
+   * Sets the code.
+   *
+   * @param code
+   *          the new code
+   */
+  public void setCode(String code) {
+    // only the digest is stored
+    xobject.setStringValue(FIELD_CODE_HASH, Utils.digestCode(code));
+    xobject.setStringValue(FIELD_CODE, "");
+  }
+
+  /**
+   * Sets the end date.
+   *
+   * @param endDate
+   *          the new end date
+   */
+  public void setEndDate(Date endDate) {
+    xobject.setDateValue(FIELD_END_DATE, endDate);
+  }
+
+  /**
+   * Sets the max use.
+   *
+   * @param maxUse
+   *          the new max use
+   */
+  public void setMaxUse(int maxUse) {
+    xobject.setIntValue(FIELD_MAX_USE, maxUse);
+  }
+
+  /**
+   * Sets the start date.
+   *
+   * @param startDate
+   *          the new start date
+   */
+  public void setStartDate(Date startDate) {
+    xobject.setDateValue(FIELD_START_DATE, startDate);
+  }
+
 }
@@ -0,0 +1,54 @@
+package org.projectsforge.xwiki.registrationcodes.mapping;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+
+import com.xpn.xwiki.doc.MandatoryDocumentInitializer;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.classes.BaseClass;
+
+/**
+ * The initializer declaring, on the class of the registration codes, the
+ * properties which were added after the class was published: the digest of the
+ * code and the number of users. The other properties are left as they are.
+ */
+@Component
+@Singleton
+@Named(Constants.CODE_SPACE_NAME_AS_STRING + ".RegistrationCodeClass")
+public class RegistrationCodeClassInitializer implements MandatoryDocumentInitializer {
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.xpn.xwiki.doc.MandatoryDocumentInitializer#getDocumentReference()
+   */
+  @Override
+  public EntityReference getDocumentReference() {
+    EntityReference space = null;
+    for (String name : Constants.CODE_SPACE_NAME_AS_LIST) {
+      space = new EntityReference(name, EntityType.SPACE, space);
+    }
+    return new EntityReference("RegistrationCodeClass", EntityType.DOCUMENT, space);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * com.xpn.xwiki.doc.MandatoryDocumentInitializer#updateDocument(com.xpn.xwiki.
+   * doc.XWikiDocument)
+   */
+  @Override
+  public boolean updateDocument(XWikiDocument document) {
+    BaseClass xclass = document.getXClass();
+    boolean needsUpdate = xclass.addTextField(RegistrationCode.FIELD_CODE_HASH, "Code hash", 64);
+    needsUpdate |= xclass.addNumberField(RegistrationCode.FIELD_USER_COUNT, "User count", 10, "integer");
+    return needsUpdate;
+  }
+
+}
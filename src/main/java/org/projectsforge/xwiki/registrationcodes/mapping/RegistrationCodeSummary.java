@@ -0,0 +1,188 @@
+package org.projectsforge.xwiki.registrationcodes.mapping;
+
+import java.util.Date;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The Class RegistrationCodeSummary is a read-only projection of a
+ * {@link RegistrationCode} holding only the properties needed to decide
+ * whether the code can still be used, so that it can be kept in memory and
+ * filled from the property tables without loading the document.
+ */
+public final class RegistrationCodeSummary {
+
+  /** The document reference. */
+  private final DocumentReference reference;
+
+  /** The code hash. */
+  private final String codeHash;
+
+  /** The active. */
+  private final boolean active;
+
+  /** The max use. */
+  private final int maxUse;
+
+  /** The start date, null if not set. */
+  private final Date startDate;
+
+  /** The end date, null if not set. */
+  private final Date endDate;
+
+  /** The last used date, null if the code was never used. */
+  private final Date lastUsed;
+
+  /** The user count. */
+  private final int userCount;
+
+  /**
+   * Instantiates a new registration code summary.
+   *
+   * @param reference
+   *          the document reference
+   * @param codeHash
+   *          the code hash
+   * @param active
+   *          the active
+   * @param maxUse
+   *          the max use
+   * @param startDate
+   *          the start date
+   * @param endDate
+   *          the end date
+   * @param lastUsed
+   *          the last used date
+   * @param userCount
+   *          the user count
+   */
+  public RegistrationCodeSummary(DocumentReference reference, String codeHash, boolean active, int maxUse,
+      Date startDate, Date endDate, Date lastUsed, int userCount) {
+    this.reference = reference;
+    this.codeHash = codeHash;
+    this.active = active;
+    this.maxUse = maxUse;
+    this.startDate = copy(startDate);
+    this.endDate = copy(endDate);
+    this.lastUsed = copy(lastUsed);
+    this.userCount = userCount;
+  }
+
+  /**
+   * Copies a date.
+   *
+   * @param date
+   *          the date
+   * @return the copy, null if the date is null
+   */
+  private static Date copy(Date date) {
+    return date == null ? null : new Date(date.getTime());
+  }
+
+  /**
+   * Gets the code hash.
+   *
+   * @return the code hash
+   */
+  public String getCodeHash() {
+    return codeHash;
+  }
+
+  /**
+   * Gets the end date.
+   *
+   * @return the end date, null if not set
+   */
+  public Date getEndDate() {
+    return copy(endDate);
+  }
+
+  /**
+   * Gets the last used date.
+   *
+   * @return the last used date, null if the code was never used
+   */
+  public Date getLastUsed() {
+    return copy(lastUsed);
+  }
+
+  /**
+   * Gets the max use.
+   *
+   * @return the max use
+   */
+  public int getMaxUse() {
+    return maxUse;
+  }
+
+  /**
+   * Gets the document reference.
+   *
+   * @return the document reference
+   */
+  public DocumentReference getReference() {
+    return reference;
+  }
+
+  /**
+   * Gets the start date.
+   *
+   * @return the start date, null if not set
+   */
+  public Date getStartDate() {
+    return copy(startDate);
+  }
+
+  /**
+   * Gets the number of users.
+   *
+   * @return the user count
+   */
+  public int getUserCount() {
+    return userCount;
+  }
+
+  /**
+   * Checks if the code can be accepted at a date for a user who did not use it
+   * yet, i.e. the checks of {@link RegistrationCode#accept(String, String)}
+   * but the code and the users. Unset dates do not reject the code, the full
+   * check deciding on them.
+   *
+   * @param date
+   *          the date
+   * @return true, if the code is acceptable
+   */
+  public boolean isAcceptable(Date date) {
+    return active && !isExhausted() && (startDate == null || !startDate.after(date)) && !isExpired(date);
+  }
+
+  /**
+   * Checks if is active.
+   *
+   * @return true, if is active
+   */
+  public boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Checks if the code has been used by as many users as allowed.
+   *
+   * @return true, if is exhausted
+   */
+  public boolean isExhausted() {
+    return userCount >= maxUse;
+  }
+
+  /**
+   * Checks if the end date of the code is past at a date.
+   *
+   * @param date
+   *          the date
+   * @return true, if is expired
+   */
+  public boolean isExpired(Date date) {
+    return endDate != null && endDate.before(date);
+  }
+
+}
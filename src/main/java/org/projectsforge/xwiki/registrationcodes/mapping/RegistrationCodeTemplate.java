@@ -0,0 +1,145 @@
+package org.projectsforge.xwiki.registrationcodes.mapping;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The Class RegistrationCodeTemplate holds the settings shared by registration
+ * codes created in bulk.
+ */
+public class RegistrationCodeTemplate {
+
+  /** The active. */
+  private boolean active = true;
+
+  /** The max use. */
+  private int maxUse = 1;
+
+  /** The start date. */
+  private Date startDate = new Date();
+
+  /** The end date. */
+  private Date endDate;
+
+  /** The add to groups. */
+  private List<String> addToGroups = new ArrayList<>();
+
+  /** The add to wikis. */
+  private List<String> addToWikis = new ArrayList<>();
+
+  /**
+   * Gets the adds the to groups.
+   *
+   * @return the adds the to groups
+   */
+  public List<String> getAddToGroups() {
+    return addToGroups;
+  }
+
+  /**
+   * Gets the adds the to wikis.
+   *
+   * @return the adds the to wikis
+   */
+  public List<String> getAddToWikis() {
+    return addToWikis;
+  }
+
+  /**
+   * Gets the end date.
+   *
+   * @return the end date
+   */
+  public Date getEndDate() {
+    return endDate;
+  }
+
+  /**
+   * Gets the max use.
+   *
+   * @return the max use
+   */
+  public int getMaxUse() {
+    return maxUse;
+  }
+
+  /**
+   * Gets the start date.
+   *
+   * @return the start date
+   */
+  public Date getStartDate() {
+    return startDate;
+  }
+
+  /**
+   * Checks if is active.
+   *
+   * @return true, if is active
+   */
+  public boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Sets the active.
+   *
+   * @param active
+   *          the new active
+   */
+  public void setActive(boolean active) {
+    this.active = active;
+  }
+
+  /**
+   * Sets the adds the to groups.
+   *
+   * @param addToGroups
+   *          the new adds the to groups
+   */
+  public void setAddToGroups(List<String> addToGroups) {
+    this.addToGroups = new ArrayList<>(addToGroups);
+  }
+
+  /**
+   * Sets the adds the to wikis.
+   *
+   * @param addToWikis
+   *          the new adds the to wikis
+   */
+  public void setAddToWikis(List<String> addToWikis) {
+    this.addToWikis = new ArrayList<>(addToWikis);
+  }
+
+  /**
+   * Sets the end date.
+   *
+   * @param endDate
+   *          the new end date
+   */
+  public void setEndDate(Date endDate) {
+    this.endDate = endDate;
+  }
+
+  /**
+   * Sets the max use.
+   *
+   * @param maxUse
+   *          the new max use
+   */
+  public void setMaxUse(int maxUse) {
+    this.maxUse = maxUse;
+  }
+
+  /**
+   * Sets the start date.
+   *
+   * @param startDate
+   *          the new start date
+   */
+  public void setStartDate(Date startDate) {
+    this.startDate = startDate;
+  }
+
+}
@@ -0,0 +1,59 @@
+package org.projectsforge.xwiki.registrationcodes.mapping;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+
+import com.xpn.xwiki.doc.MandatoryDocumentInitializer;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.classes.BaseClass;
+
+/**
+ * The initializer of the class recording a user of a registration code, with
+ * one object on the user record document of each user (see
+ * {@link RegistrationCode#getUserRecordReference}).
+ */
+@Component
+@Singleton
+@Named(Constants.CODE_SPACE_NAME_AS_STRING + "." + RegistrationCode.USER_CLASS_NAME)
+public class RegistrationCodeUserClassInitializer implements MandatoryDocumentInitializer {
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.xpn.xwiki.doc.MandatoryDocumentInitializer#getDocumentReference()
+   */
+  @Override
+  public EntityReference getDocumentReference() {
+    EntityReference space = null;
+    for (String name : Constants.CODE_SPACE_NAME_AS_LIST) {
+      space = new EntityReference(name, EntityType.SPACE, space);
+    }
+    return new EntityReference(RegistrationCode.USER_CLASS_NAME, EntityType.DOCUMENT, space);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * com.xpn.xwiki.doc.MandatoryDocumentInitializer#updateDocument(com.xpn.xwiki.
+   * doc.XWikiDocument)
+   */
+  @Override
+  public boolean updateDocument(XWikiDocument document) {
+    BaseClass xclass = document.getXClass();
+    boolean needsUpdate = xclass.addTextField(RegistrationCode.USER_FIELD_USER, "User", 60);
+    needsUpdate |= xclass.addDateField(RegistrationCode.USER_FIELD_DATE, "Date");
+    needsUpdate |= xclass.addTextField(RegistrationCode.USER_FIELD_REGISTRATION_CODE, "Registration code", 60);
+    if (!document.isHidden()) {
+      document.setHidden(true);
+      needsUpdate = true;
+    }
+    return needsUpdate;
+  }
+
+}
@@ -0,0 +1,184 @@
+package org.projectsforge.xwiki.registrationcodes.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+/**
+ * The Class DefaultRegistrationCodesMetrics keeps the metrics in striped
+ * adders so that recording does not contend between threads, and registers
+ * them in the platform MBean server.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodesMetrics implements RegistrationCodesMetrics, Initializable, Disposable {
+
+  /**
+   * The statistics of a timer.
+   */
+  private static class Timer {
+
+    /** The count. */
+    private final LongAdder count = new LongAdder();
+
+    /** The total in nanoseconds. */
+    private final LongAdder total = new LongAdder();
+
+    /** The max in nanoseconds. */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos
+     *          the duration in nanoseconds
+     */
+    void record(long nanos) {
+      count.increment();
+      total.add(nanos);
+      max.accumulate(nanos);
+    }
+  }
+
+  /** The Constant NANOS_PER_MILLI. */
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The counters by name. */
+  private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+  /** The timers by name. */
+  private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+  /** The registered object name or null if the metrics are not exposed through JMX. */
+  private ObjectName objectName;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Disposable#dispose()
+   */
+  @Override
+  public void dispose() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException ex) {
+        logger.warn("Can not unregister the registration code metrics from JMX", ex);
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics#
+   * getSnapshot()
+   */
+  @Override
+  public Map<String, Number> getSnapshot() {
+    SortedMap<String, Number> snapshot = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+      snapshot.put(entry.getKey(), entry.getValue().sum());
+    }
+    for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+      Timer timer = entry.getValue();
+      long count = timer.count.sum();
+      double total = timer.total.sum() / NANOS_PER_MILLI;
+      snapshot.put(entry.getKey() + ".count", count);
+      snapshot.put(entry.getKey() + ".totalMs", total);
+      snapshot.put(entry.getKey() + ".meanMs", count == 0 ? 0.0 : total / count);
+      snapshot.put(entry.getKey() + ".maxMs", timer.max.get() / NANOS_PER_MILLI);
+    }
+    return Collections.unmodifiableSortedMap(snapshot);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics#
+   * increment(java.lang.String)
+   */
+  @Override
+  public void increment(String name) {
+    LongAdder counter = counters.get(name);
+    if (counter == null) {
+      // computeIfAbsent locks the bin even when the key is present on Java 8
+      counter = counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+    counter.increment();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        // left by a previous instance of the extension
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(new MetricsMBean(this), name);
+      objectName = name;
+    } catch (JMException ex) {
+      logger.warn("Can not expose the registration code metrics through JMX", ex);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics#
+   * record(java.lang.String, long)
+   */
+  @Override
+  public void record(String name, long nanos) {
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      timer = timers.computeIfAbsent(name, k -> new Timer());
+    }
+    timer.record(nanos);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics#
+   * reset()
+   */
+  @Override
+  public void reset() {
+    counters.clear();
+    timers.clear();
+  }
+
+}
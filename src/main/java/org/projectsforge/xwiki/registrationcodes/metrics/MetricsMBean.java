@@ -0,0 +1,128 @@
+package org.projectsforge.xwiki.registrationcodes.metrics;
+
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+/**
+ * The MBean exposing each metric as a read-only attribute, so that monitoring
+ * tools can alert on a single value.
+ */
+class MetricsMBean implements DynamicMBean {
+
+  /** The Constant RESET. */
+  private static final String RESET = "reset";
+
+  /** The metrics. */
+  private final RegistrationCodesMetrics metrics;
+
+  /**
+   * Instantiates a new metrics MBean.
+   *
+   * @param metrics
+   *          the metrics
+   */
+  MetricsMBean(RegistrationCodesMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see javax.management.DynamicMBean#getAttribute(java.lang.String)
+   */
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Number value = metrics.getSnapshot().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see javax.management.DynamicMBean#getAttributes(java.lang.String[])
+   */
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Number> snapshot = metrics.getSnapshot();
+    AttributeList result = new AttributeList();
+    for (String attribute : attributes) {
+      Number value = snapshot.get(attribute);
+      if (value != null) {
+        result.add(new Attribute(attribute, value));
+      }
+    }
+    return result;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see javax.management.DynamicMBean#getMBeanInfo()
+   */
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    // metrics appear when first used
+    Map<String, Number> snapshot = metrics.getSnapshot();
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+    int i = 0;
+    for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+      attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(),
+          true, false, false);
+    }
+    MBeanOperationInfo reset = new MBeanOperationInfo(RESET, "Resets all the metrics", new MBeanParameterInfo[0],
+        "void", MBeanOperationInfo.ACTION);
+    return new MBeanInfo(getClass().getName(), "Registration code metrics", attributes, null,
+        new MBeanOperationInfo[] { reset }, null);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see javax.management.DynamicMBean#invoke(java.lang.String,
+   * java.lang.Object[], java.lang.String[])
+   */
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException,
+      ReflectionException {
+    if (RESET.equals(actionName)) {
+      metrics.reset();
+      return null;
+    }
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see javax.management.DynamicMBean#setAttribute(javax.management.Attribute)
+   */
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see javax.management.DynamicMBean#setAttributes(javax.management.
+   * AttributeList)
+   */
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+}
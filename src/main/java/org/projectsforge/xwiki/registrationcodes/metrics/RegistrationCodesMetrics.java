@@ -0,0 +1,51 @@
+package org.projectsforge.xwiki.registrationcodes.metrics;
+
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * The Interface RegistrationCodesMetrics collects counters and timers of the
+ * registration code operations. They are exposed through JMX under
+ * {@link #OBJECT_NAME} and through the script service.
+ */
+@Role
+public interface RegistrationCodesMetrics {
+
+  /** The JMX object name of the metrics. */
+  String OBJECT_NAME = "org.projectsforge.xwiki.registrationcodes:type=Metrics";
+
+  /**
+   * Gets the current values of the metrics by name. A counter is reported
+   * under its name; a timer is reported as <code>name.count</code>,
+   * <code>name.totalMs</code>, <code>name.meanMs</code> and
+   * <code>name.maxMs</code>.
+   *
+   * @return the values sorted by name
+   */
+  Map<String, Number> getSnapshot();
+
+  /**
+   * Increments a counter.
+   *
+   * @param name
+   *          the counter name
+   */
+  void increment(String name);
+
+  /**
+   * Records a duration in a timer.
+   *
+   * @param name
+   *          the timer name
+   * @param nanos
+   *          the duration in nanoseconds
+   */
+  void record(String name, long nanos);
+
+  /**
+   * Resets all the counters and timers.
+   */
+  void reset();
+
+}
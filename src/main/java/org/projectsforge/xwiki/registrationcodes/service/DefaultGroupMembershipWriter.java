@@ -0,0 +1,278 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.ExpiringCache;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * The Class DefaultGroupMembershipWriter. Each addition is queued on its group;
+ * the thread holding the group lock writes all the queued additions with one
+ * save (group commit), so concurrent activations targeting the same group
+ * share the save. A group has a state only while additions to it are running.
+ * The members of the recently written groups are kept in a bounded cache as
+ * long as the version of the group document does not change.
+ */
+@Component
+@Singleton
+public class DefaultGroupMembershipWriter implements GroupMembershipWriter, Initializable {
+
+  /**
+   * The state of a group while additions to it are running.
+   */
+  private static class GroupState {
+
+    /** The lock held while writing the group. */
+    private final Lock lock = new ReentrantLock();
+
+    /** The queued additions. */
+    private final Queue<PendingAddition> pending = new ConcurrentLinkedQueue<>();
+
+    /** The number of threads using the state, guarded by the map of the states. */
+    private int users;
+  }
+
+  /**
+   * The members of a group document.
+   */
+  private static class GroupMembers {
+
+    /** The members, only modified by the holder of the group lock. */
+    private final Set<String> members;
+
+    /** The version of the document the members have been read from. */
+    private String version;
+
+    /**
+     * Instantiates new group members.
+     *
+     * @param members
+     *          the members
+     * @param version
+     *          the version of the document
+     */
+    GroupMembers(Set<String> members, String version) {
+      this.members = members;
+      this.version = version;
+    }
+  }
+
+  /**
+   * An addition waiting to be written.
+   */
+  private static class PendingAddition {
+
+    /** The members. */
+    private final Collection<String> members;
+
+    /** The number of members actually added. */
+    private int added;
+
+    /** The done flag. */
+    private volatile boolean done;
+
+    /** The error, an XWikiException or a RuntimeException. */
+    private Exception error;
+
+    /**
+     * Instantiates a new pending addition.
+     *
+     * @param members
+     *          the members
+     */
+    PendingAddition(Collection<String> members) {
+      this.members = members;
+    }
+  }
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The context provider. */
+  @Inject
+  private Provider<XWikiContext> contextProvider;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The states of the groups being written. */
+  private final Map<DocumentReference, GroupState> groups = new ConcurrentHashMap<>();
+
+  /** The members of the recently written groups. */
+  private ExpiringCache<DocumentReference, GroupMembers> members;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.GroupMembershipWriter#
+   * addMember(org.xwiki.model.reference.DocumentReference, java.lang.String)
+   */
+  @Override
+  public boolean addMember(DocumentReference groupRef, String member) throws XWikiException {
+    return addMembers(groupRef, Collections.singletonList(member)) > 0;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.GroupMembershipWriter#
+   * addMembers(org.xwiki.model.reference.DocumentReference,
+   * java.util.Collection)
+   */
+  @Override
+  public int addMembers(DocumentReference groupRef, Collection<String> members) throws XWikiException {
+    GroupState state = groups.compute(groupRef, (k, current) -> {
+      GroupState result = current == null ? new GroupState() : current;
+      result.users++;
+      return result;
+    });
+    PendingAddition addition = new PendingAddition(members);
+    try {
+      state.pending.add(addition);
+      state.lock.lock();
+      try {
+        // the previous lock holder may have written our addition already
+        if (!addition.done) {
+          write(groupRef, state);
+        }
+      } finally {
+        state.lock.unlock();
+      }
+    } finally {
+      // the last user forgets the state
+      groups.computeIfPresent(groupRef, (k, current) -> --current.users == 0 ? null : current);
+    }
+    if (addition.error instanceof XWikiException) {
+      throw (XWikiException) addition.error;
+    }
+    if (addition.error != null) {
+      throw (RuntimeException) addition.error;
+    }
+    return addition.added;
+  }
+
+  /**
+   * Gets the members of a group document, reusing the known members if the
+   * document did not change.
+   *
+   * @param groupRef
+   *          the group reference
+   * @param groupDoc
+   *          the group document
+   * @param xobjects
+   *          the XWikiGroups objects
+   * @return the members
+   */
+  private GroupMembers getMembers(DocumentReference groupRef, XWikiDocument groupDoc, List<BaseObject> xobjects) {
+    GroupMembers known = members.get(groupRef);
+    if (known == null || !groupDoc.getVersion().equals(known.version)) {
+      Set<String> read = new HashSet<>(xobjects.size() * 2);
+      for (BaseObject xobject : xobjects) {
+        if (xobject != null) {
+          read.add(xobject.getStringValue("member"));
+        }
+      }
+      known = new GroupMembers(read, groupDoc.getVersion());
+      members.put(groupRef, known);
+    }
+    return known;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() {
+    members = new ExpiringCache<>(configuration.getGroupMembersCacheSize(),
+        configuration.getGroupMembersCacheTimeToLive());
+  }
+
+  /**
+   * Writes all the queued additions of a group. Must be called with the group
+   * lock held.
+   *
+   * @param groupRef
+   *          the group reference
+   * @param state
+   *          the state
+   */
+  private void write(DocumentReference groupRef, GroupState state) {
+    List<PendingAddition> additions = new ArrayList<>();
+    PendingAddition addition;
+    while ((addition = state.pending.poll()) != null) {
+      additions.add(addition);
+    }
+
+    XWikiContext context = contextProvider.get();
+    XWiki xwiki = context.getWiki();
+    try {
+      XWikiDocument groupDoc = xwiki.getDocument(groupRef, context);
+      List<BaseObject> xobjects = groupDoc.getXObjects(DefaultRegistrationCodesService.GROUPCLASS_REFERENCE);
+      if (groupDoc.isNew() || xobjects == null) {
+        // if xobjects == null then it is not a group
+        logger.warn("Group {} skipped since it is not a group", groupRef);
+      } else {
+        GroupMembers groupMembers = getMembers(groupRef, groupDoc, xobjects);
+        int added = 0;
+        for (PendingAddition pending : additions) {
+          for (String member : pending.members) {
+            if (groupMembers.members.add(member)) {
+              BaseObject xobject = groupDoc.newXObject(DefaultRegistrationCodesService.GROUPCLASS_REFERENCE, context);
+              xobject.setStringValue("member", member);
+              pending.added++;
+              added++;
+            }
+          }
+        }
+        if (added > 0) {
+          groupDoc.setContentAuthorReference(groupDoc.getAuthorReference());
+          xwiki.saveDocument(groupDoc, context);
+          groupMembers.version = groupDoc.getVersion();
+          logger.debug("{} members added to group {} with {} requests", added, groupRef, additions.size());
+        }
+      }
+    } catch (XWikiException | RuntimeException ex) {
+      // the members in memory may not have been saved
+      members.remove(groupRef);
+      for (PendingAddition pending : additions) {
+        pending.added = 0;
+        pending.error = ex;
+      }
+    } finally {
+      for (PendingAddition pending : additions) {
+        pending.done = true;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,615 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeSummary;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseProperty;
+
+/**
+ * The Class DefaultRegistrationCodeIndex.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeIndex implements RegistrationCodeIndex {
+
+  /**
+   * The index of the registration codes of a single wiki, also maintaining its
+   * share of the farm-wide index.
+   */
+  private static class WikiIndex {
+
+    /** The loaded flag. */
+    private volatile boolean loaded;
+
+    /** The discarded flag, set once the index is invalidated. */
+    private boolean discarded;
+
+    /** The summary of each indexed document. */
+    private final Map<DocumentReference, RegistrationCodeSummary> entries = new ConcurrentHashMap<>();
+
+    /** The documents holding each code hash. */
+    private final Map<String, Set<DocumentReference>> references = new ConcurrentHashMap<>();
+
+    /** The documents of all the wikis holding each code hash. */
+    private final Map<String, Set<DocumentReference>> farmReferences;
+
+    /**
+     * Instantiates a new wiki index.
+     *
+     * @param farmReferences
+     *          the documents of all the wikis holding each code hash
+     */
+    WikiIndex(Map<String, Set<DocumentReference>> farmReferences) {
+      this.farmReferences = farmReferences;
+    }
+
+    /**
+     * Removes all the documents of the wiki from the farm-wide index and
+     * ignores any later update.
+     */
+    synchronized void discard() {
+      discarded = true;
+      for (DocumentReference reference : new ArrayList<>(entries.keySet())) {
+        remove(reference);
+      }
+    }
+
+    /**
+     * Gets the active references.
+     *
+     * @param codeHash
+     *          the code hash
+     * @return the active references
+     */
+    List<DocumentReference> getActiveReferences(String codeHash) {
+      Set<DocumentReference> refs = references.get(codeHash);
+      if (refs == null) {
+        return Collections.emptyList();
+      }
+      List<DocumentReference> result = new ArrayList<>(refs.size());
+      for (DocumentReference ref : refs) {
+        RegistrationCodeSummary entry = entries.get(ref);
+        if (entry != null && entry.isActive()) {
+          result.add(ref);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Put.
+     *
+     * @param summary
+     *          the summary
+     */
+    synchronized void put(RegistrationCodeSummary summary) {
+      if (discarded) {
+        return;
+      }
+      remove(summary.getReference());
+      entries.put(summary.getReference(), summary);
+      references.computeIfAbsent(summary.getCodeHash(), k -> ConcurrentHashMap.newKeySet())
+          .add(summary.getReference());
+      // the other wikis update the same keys under their own lock
+      farmReferences.compute(summary.getCodeHash(), (k, refs) -> {
+        Set<DocumentReference> result = refs == null ? ConcurrentHashMap.newKeySet() : refs;
+        result.add(summary.getReference());
+        return result;
+      });
+    }
+
+    /**
+     * Removes the.
+     *
+     * @param reference
+     *          the reference
+     */
+    synchronized void remove(DocumentReference reference) {
+      RegistrationCodeSummary previous = entries.remove(reference);
+      if (previous != null) {
+        Set<DocumentReference> refs = references.get(previous.getCodeHash());
+        if (refs != null) {
+          refs.remove(reference);
+          if (refs.isEmpty()) {
+            references.remove(previous.getCodeHash());
+          }
+        }
+        farmReferences.computeIfPresent(previous.getCodeHash(), (k, farmRefs) -> {
+          farmRefs.remove(reference);
+          return farmRefs.isEmpty() ? null : farmRefs;
+        });
+      }
+    }
+  }
+
+  /**
+   * The properties of a document read from the property tables.
+   */
+  private static class LoadedProperties {
+
+    /** The plain code. */
+    private String code = "";
+
+    /** The code hash. */
+    private String codeHash = "";
+
+    /** The active. */
+    private boolean active;
+
+    /** The max use. */
+    private int maxUse;
+
+    /** The start date. */
+    private Date startDate;
+
+    /** The end date. */
+    private Date endDate;
+
+    /** The last used date. */
+    private Date lastUsed;
+
+    /** The user count. */
+    private int userCount;
+
+    /**
+     * Counts the users recorded by the legacy user objects of the document, not
+     * migrated yet to user records.
+     *
+     * @param count
+     *          the number of legacy user objects
+     */
+    void addLegacyUserObjects(long count) {
+      userCount += (int) count;
+    }
+
+    /**
+     * Sets the value of a property.
+     *
+     * @param name
+     *          the property name
+     * @param value
+     *          the property value
+     */
+    void set(String name, Object value) {
+      if (RegistrationCode.FIELD_CODE.equals(name)) {
+        code = value == null ? "" : value.toString().trim();
+      } else if (RegistrationCode.FIELD_CODE_HASH.equals(name)) {
+        codeHash = value == null ? "" : value.toString().trim();
+      } else if (RegistrationCode.FIELD_ACTIVE.equals(name)) {
+        active = value instanceof Number && ((Number) value).intValue() == 1;
+      } else if (RegistrationCode.FIELD_MAX_USE.equals(name)) {
+        maxUse = value instanceof Number ? ((Number) value).intValue() : 0;
+      } else if (RegistrationCode.FIELD_START_DATE.equals(name)) {
+        startDate = value instanceof Date ? (Date) value : null;
+      } else if (RegistrationCode.FIELD_END_DATE.equals(name)) {
+        endDate = value instanceof Date ? (Date) value : null;
+      } else if (RegistrationCode.FIELD_LAST_USED.equals(name)) {
+        lastUsed = value instanceof Date ? (Date) value : null;
+      } else if (RegistrationCode.FIELD_USER_COUNT.equals(name)) {
+        userCount += value instanceof Number ? ((Number) value).intValue() : 0;
+      } else if (RegistrationCode.FIELD_USERS.equals(name) && value instanceof Collection) {
+        // users not migrated yet to user records
+        for (Object user : (Collection<?>) value) {
+          if (user != null && !user.toString().isEmpty()) {
+            userCount++;
+          }
+        }
+      }
+    }
+
+    /**
+     * Gets the summary of the document.
+     *
+     * @param reference
+     *          the document reference
+     * @return the summary, null if the document holds no code
+     */
+    RegistrationCodeSummary toSummary(DocumentReference reference) {
+      // the stored hash wins over the digest of a plain code
+      String hash = codeHash.isEmpty() && !code.isEmpty() ? Utils.digestCode(code) : codeHash;
+      if (hash.isEmpty()) {
+        return null;
+      }
+      return new RegistrationCodeSummary(reference, hash, active, maxUse, startDate, endDate, lastUsed, userCount);
+    }
+  }
+
+  /**
+   * The statement reading the properties of the summaries. The property
+   * tables are read directly, whatever their type, so that no document is
+   * loaded and the codes not hashed yet are found too.
+   */
+  private static final String PROPERTIES_STATEMENT = "select obj.name, prop from BaseObject as obj, "
+      + "BaseProperty as prop where obj.className = :className and obj.name like :name "
+      + "and prop.id.id = obj.id and prop.id.name in (:properties)";
+
+  /**
+   * The statement counting the legacy user objects of the registration code
+   * documents, as counted by {@link RegistrationCode#getUserCount()}.
+   */
+  private static final String USER_OBJECTS_STATEMENT = "select obj.name, count(obj.id) from BaseObject as obj "
+      + "where obj.className = :className and obj.name like :name group by obj.name";
+
+  /** The properties of the summaries. */
+  private static final List<String> PROPERTIES = Arrays.asList(RegistrationCode.FIELD_CODE,
+      RegistrationCode.FIELD_CODE_HASH, RegistrationCode.FIELD_ACTIVE, RegistrationCode.FIELD_MAX_USE,
+      RegistrationCode.FIELD_START_DATE, RegistrationCode.FIELD_END_DATE, RegistrationCode.FIELD_LAST_USED,
+      RegistrationCode.FIELD_USER_COUNT, RegistrationCode.FIELD_USERS);
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The query manager. */
+  @Inject
+  private QueryManager queryManager;
+
+  /** The wiki descriptor manager. */
+  @Inject
+  private WikiDescriptorManager wikiDescriptorManager;
+
+  /** The indexes by wiki id. */
+  private final Map<String, WikiIndex> indexes = new ConcurrentHashMap<>();
+
+  /** The documents of all the wikis holding each code hash. */
+  private final Map<String, Set<DocumentReference>> farmReferences = new ConcurrentHashMap<>();
+
+  /** The number of wiki indexes invalidated so far. */
+  private final AtomicInteger invalidations = new AtomicInteger();
+
+  /**
+   * The number of invalidations when the indexes of all the wikis were last
+   * known to be loaded, -1 before the first load.
+   */
+  private volatile int farmLoadedInvalidations = -1;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * contains(java.lang.String, java.lang.String)
+   */
+  @Override
+  public boolean contains(String wikiId, String code) throws QueryException {
+    WikiIndex index = getLoadedIndex(wikiId);
+    for (String codeHash : Utils.digestCodeVariants(code)) {
+      if (index.references.containsKey(codeHash)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * getActiveReferences(java.lang.String, java.lang.String)
+   */
+  @Override
+  public List<DocumentReference> getActiveReferences(String wikiId, String code) throws QueryException {
+    WikiIndex index = getLoadedIndex(wikiId);
+    for (String codeHash : Utils.digestCodeVariants(code)) {
+      List<DocumentReference> references = index.getActiveReferences(codeHash);
+      if (!references.isEmpty()) {
+        return references;
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * getCodeHashes(java.lang.String)
+   */
+  @Override
+  public Set<String> getCodeHashes(String wikiId) throws QueryException {
+    return Collections.unmodifiableSet(getLoadedIndex(wikiId).references.keySet());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * getFarmActiveReferences(java.lang.String)
+   */
+  @Override
+  public List<DocumentReference> getFarmActiveReferences(String code) throws QueryException, WikiManagerException {
+    loadFarm();
+    Set<DocumentReference> refs = null;
+    for (String codeHash : Utils.digestCodeVariants(code)) {
+      refs = farmReferences.get(codeHash);
+      if (refs != null) {
+        break;
+      }
+    }
+    if (refs == null) {
+      return Collections.emptyList();
+    }
+    List<DocumentReference> result = new ArrayList<>(refs.size());
+    for (DocumentReference ref : refs) {
+      WikiIndex index = indexes.get(ref.getWikiReference().getName());
+      RegistrationCodeSummary entry = index == null ? null : index.entries.get(ref);
+      if (entry != null && entry.isActive()) {
+        result.add(ref);
+      }
+    }
+    return result;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * getFarmCodeHashes()
+   */
+  @Override
+  public Set<String> getFarmCodeHashes() throws QueryException, WikiManagerException {
+    loadFarm();
+    return Collections.unmodifiableSet(farmReferences.keySet());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * getReferences(java.lang.String)
+   */
+  @Override
+  public Set<DocumentReference> getReferences(String wikiId) throws QueryException {
+    return Collections.unmodifiableSet(getLoadedIndex(wikiId).entries.keySet());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * getSummaries(java.lang.String)
+   */
+  @Override
+  public Collection<RegistrationCodeSummary> getSummaries(String wikiId) throws QueryException {
+    return Collections.unmodifiableCollection(getLoadedIndex(wikiId).entries.values());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * getSummary(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public RegistrationCodeSummary getSummary(DocumentReference reference) throws QueryException {
+    return getLoadedIndex(reference.getWikiReference().getName()).entries.get(reference);
+  }
+
+  /**
+   * Gets the loaded index of a wiki.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the loaded index
+   * @throws QueryException
+   *           the query exception
+   */
+  private WikiIndex getLoadedIndex(String wikiId) throws QueryException {
+    WikiIndex index = indexes.computeIfAbsent(wikiId, k -> new WikiIndex(farmReferences));
+    if (!index.loaded) {
+      // updates received while loading wait for the lock and are applied over
+      // the loaded state
+      synchronized (index) {
+        if (!index.loaded) {
+          long start = System.currentTimeMillis();
+          Map<String, LoadedProperties> loadedProperties = readProperties(wikiId,
+              Constants.DATA_SPACE_NAME_AS_STRING + ".%");
+
+          WikiReference wikiReference = new WikiReference(wikiId);
+          int count = 0;
+          for (Map.Entry<String, LoadedProperties> entry : loadedProperties.entrySet()) {
+            RegistrationCodeSummary summary = entry.getValue()
+                .toSummary(documentReferenceResolver.resolve(entry.getKey(), wikiReference));
+            if (summary != null) {
+              index.put(summary);
+              count++;
+            }
+          }
+          index.loaded = true;
+          logger.debug("Registration code index of wiki {} loaded with {} documents in {} ms", wikiId, count,
+              System.currentTimeMillis() - start);
+        }
+      }
+    }
+    return index;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * invalidate(java.lang.String)
+   */
+  @Override
+  public void invalidate(String wikiId) {
+    WikiIndex index = indexes.remove(wikiId);
+    if (index != null) {
+      invalidations.incrementAndGet();
+      index.discard();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * load(java.lang.String)
+   */
+  @Override
+  public void load(String wikiId) throws QueryException {
+    getLoadedIndex(wikiId);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * loadFarm()
+   */
+  @Override
+  public void loadFarm() throws QueryException, WikiManagerException {
+    int count = invalidations.get();
+    if (farmLoadedInvalidations != count) {
+      // after an invalidation, only the wikis not loaded anymore are queried
+      for (String wikiId : wikiDescriptorManager.getAllIds()) {
+        getLoadedIndex(wikiId);
+      }
+      farmLoadedInvalidations = count;
+    }
+  }
+
+  /**
+   * Reads the properties of the registration codes whose document name matches
+   * a pattern.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param namePattern
+   *          the like pattern of the document names
+   * @return the properties by document full name
+   * @throws QueryException
+   *           the query exception
+   */
+  private Map<String, LoadedProperties> readProperties(String wikiId, String namePattern) throws QueryException {
+    List<Object[]> properties = queryManager.createQuery(PROPERTIES_STATEMENT, Query.HQL).setWiki(wikiId)
+        .bindValue("className", RegistrationCode.getClassReferenceAsString()).bindValue("name", namePattern)
+        .bindValue("properties", PROPERTIES).execute();
+
+    Map<String, LoadedProperties> loadedProperties = new HashMap<>();
+    for (Object[] result : properties) {
+      BaseProperty property = (BaseProperty) result[1];
+      if (property != null) {
+        loadedProperties.computeIfAbsent((String) result[0], k -> new LoadedProperties())
+            .set(property.getName(), property.getValue());
+      }
+    }
+
+    List<Object[]> userObjects = queryManager.createQuery(USER_OBJECTS_STATEMENT, Query.HQL).setWiki(wikiId)
+        .bindValue("className", Constants.CODE_SPACE_NAME_AS_STRING + "." + RegistrationCode.USER_CLASS_NAME)
+        .bindValue("name", namePattern).execute();
+    for (Object[] result : userObjects) {
+      LoadedProperties loaded = loadedProperties.get(result[0]);
+      if (loaded != null && result[1] instanceof Number) {
+        loaded.addLegacyUserObjects(((Number) result[1]).longValue());
+      }
+    }
+    return loadedProperties;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * refresh(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public RegistrationCodeSummary refresh(DocumentReference reference) throws QueryException {
+    String wikiId = reference.getWikiReference().getName();
+    String fullName = Utils.LOCAL_REFERENCE_SERIALIZER.serialize(reference);
+    // the name is used as its own pattern: names matching it but for the
+    // wildcards are ignored
+    LoadedProperties loaded = readProperties(wikiId, fullName).get(fullName);
+    RegistrationCodeSummary summary = loaded == null ? null : loaded.toSummary(reference);
+    WikiIndex index = indexes.get(wikiId);
+    if (index != null) {
+      if (summary == null) {
+        index.remove(reference);
+      } else {
+        index.put(summary);
+      }
+    }
+    return summary;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * remove(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public void remove(DocumentReference reference) {
+    // a wiki whose index is not created yet will read the state from the
+    // database when loaded
+    WikiIndex index = indexes.get(reference.getWikiReference().getName());
+    if (index != null) {
+      index.remove(reference);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeIndex#
+   * update(com.xpn.xwiki.doc.XWikiDocument)
+   */
+  @Override
+  public void update(XWikiDocument document) {
+    DocumentReference reference = document.getDocumentReference();
+    WikiIndex index = indexes.get(reference.getWikiReference().getName());
+    if (index != null) {
+      RegistrationCode regCode = RegistrationCode.fromDocument(document);
+      if (regCode == null || regCode.getCodeHash().isEmpty()) {
+        index.remove(reference);
+      } else {
+        index.put(regCode.getSummary());
+      }
+    }
+  }
+
+}
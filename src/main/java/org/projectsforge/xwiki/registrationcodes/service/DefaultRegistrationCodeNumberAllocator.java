@@ -0,0 +1,106 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.QueryException;
+
+/**
+ * The Class DefaultRegistrationCodeNumberAllocator. The counters live in memory
+ * and are derived from the persisted registration code documents: they are
+ * seeded from the registration code index and moved forward each time a
+ * document is created on any node.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeNumberAllocator implements RegistrationCodeNumberAllocator {
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The registration code index. */
+  @Inject
+  private RegistrationCodeIndex registrationCodeIndex;
+
+  /** The counters by wiki id holding the last allocated number. */
+  private final Map<String, AtomicInteger> counters = new ConcurrentHashMap<>();
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodeNumberAllocator#allocate(java.lang.String)
+   */
+  @Override
+  public int allocate(String wikiId) throws QueryException {
+    return getCounter(wikiId).incrementAndGet();
+  }
+
+  /**
+   * Gets the counter of a wiki, seeding it if needed.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the counter
+   * @throws QueryException
+   *           the query exception
+   */
+  private AtomicInteger getCounter(String wikiId) throws QueryException {
+    AtomicInteger counter = counters.get(wikiId);
+    if (counter == null) {
+      int max = 0;
+      for (DocumentReference reference : registrationCodeIndex.getReferences(wikiId)) {
+        max = Math.max(max, RegistrationCode.getNumber(reference));
+      }
+      AtomicInteger seeded = new AtomicInteger(max);
+      counter = counters.putIfAbsent(wikiId, seeded);
+      if (counter == null) {
+        counter = seeded;
+        logger.debug("Registration code counter of wiki {} seeded with {}", wikiId, max);
+      } else {
+        counter.accumulateAndGet(max, Math::max);
+      }
+    }
+    return counter;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodeNumberAllocator#notifyExisting(org.xwiki.model.reference.
+   * DocumentReference)
+   */
+  @Override
+  public void notifyExisting(DocumentReference reference) {
+    // a counter which is not seeded yet will see the document through the index
+    AtomicInteger counter = counters.get(reference.getWikiReference().getName());
+    if (counter != null) {
+      counter.accumulateAndGet(RegistrationCode.getNumber(reference), Math::max);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodeNumberAllocator#reserve(java.lang.String, int)
+   */
+  @Override
+  public int reserve(String wikiId, int count) throws QueryException {
+    if (count <= 0) {
+      throw new IllegalArgumentException("count must be positive");
+    }
+    return getCounter(wikiId).getAndAdd(count) + 1;
+  }
+
+}
@@ -0,0 +1,203 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import java.util.concurrent.locks.Lock;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.projectsforge.xwiki.registrationcodes.StripedLocks;
+import org.projectsforge.xwiki.registrationcodes.invalidation.RegistrationCodeInvalidator;
+import org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.XWikiCacheStoreInterface;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+
+/**
+ * The Class DefaultRegistrationCodeUpdater. The updates of a document are
+ * serialized on this node by a lock, and across the cluster by a row lock taken
+ * with the transaction of the store, which the save joins: the version read
+ * under the lock is the stored one until the commit. The document cache is only
+ * trusted when it holds that version; otherwise the document is read from the
+ * database.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeUpdater implements RegistrationCodeUpdater {
+
+  /** The statement locking the row of a document and reading its version. */
+  private static final String LOCK_STATEMENT = "select doc.version from XWikiDocument as doc where doc.id = :id";
+
+  /** The timer of the loadings of the documents. */
+  private static final String METRIC_GET_DOCUMENT = "update.getDocument";
+
+  /** The timer of the row locks, including the wait for the other nodes. */
+  private static final String METRIC_LOCK = "update.lock";
+
+  /** The counter of the documents read again because the cache was stale. */
+  private static final String METRIC_RELOAD = "update.reload";
+
+  /** The timer of the saves of the documents. */
+  private static final String METRIC_SAVE_DOCUMENT = "update.saveDocument";
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The context provider. */
+  @Inject
+  private Provider<XWikiContext> contextProvider;
+
+  /** The metrics. */
+  @Inject
+  private RegistrationCodesMetrics metrics;
+
+  /** The invalidator. */
+  @Inject
+  private RegistrationCodeInvalidator invalidator;
+
+  /** The locks serializing the updates of a document on this node. */
+  private final StripedLocks locks = new StripedLocks(64);
+
+  /**
+   * Applies an update and saves the document if needed.
+   *
+   * @param reference
+   *          the document reference
+   * @param comment
+   *          the save comment
+   * @param minorEdit
+   *          true to save a minor edit
+   * @param update
+   *          the update
+   * @param session
+   *          the session of the transaction, null if the store is not the
+   *          Hibernate store
+   * @param context
+   *          the context
+   * @return true, if the document has been saved
+   * @throws XWikiException
+   *           the XWiki exception
+   */
+  private boolean apply(DocumentReference reference, String comment, boolean minorEdit, Update update,
+      Session session, XWikiContext context) throws XWikiException {
+    XWiki xwiki = context.getWiki();
+    long start = System.nanoTime();
+    XWikiDocument document = xwiki.getDocument(reference, context);
+    metrics.record(METRIC_GET_DOCUMENT, System.nanoTime() - start);
+
+    if (session != null) {
+      start = System.nanoTime();
+      String version = (String) session.createQuery(LOCK_STATEMENT).setLong("id", document.getId())
+          .setLockMode("doc", LockMode.UPGRADE).uniqueResult();
+      metrics.record(METRIC_LOCK, System.nanoTime() - start);
+      if (version == null) {
+        // deleted by another node
+        document = new XWikiDocument(reference);
+      } else if (document.isNew() || !StringUtils.equals(version, document.getVersion())) {
+        // saved by another node since it has been cached here
+        logger.debug("Document {} modified by another node, reading version {}", reference, version);
+        metrics.increment(METRIC_RELOAD);
+        document = getDatabaseStore(xwiki).loadXWikiDoc(new XWikiDocument(reference), context);
+      }
+    }
+
+    // the cached instance is shared with the readers and must not see the
+    // changes of an update which may not be saved
+    document = document.clone();
+    if (!update.apply(document)) {
+      return false;
+    }
+    start = System.nanoTime();
+    xwiki.saveDocument(document, comment, minorEdit, context);
+    metrics.record(METRIC_SAVE_DOCUMENT, System.nanoTime() - start);
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUpdater#
+   * create(org.xwiki.model.reference.DocumentReference, java.lang.String,
+   * boolean,
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUpdater.
+   * Update)
+   */
+  @Override
+  public boolean create(DocumentReference reference, String comment, boolean minorEdit, Update update)
+      throws XWikiException {
+    // the document is the stored one once its row is locked
+    return update(reference, comment, minorEdit, document -> document.isNew() && update.apply(document));
+  }
+
+  /**
+   * Gets the store of the database, behind the document cache.
+   *
+   * @param xwiki
+   *          the xwiki
+   * @return the store
+   */
+  private XWikiStoreInterface getDatabaseStore(XWiki xwiki) {
+    XWikiStoreInterface store = xwiki.getStore();
+    if (store instanceof XWikiCacheStoreInterface) {
+      store = ((XWikiCacheStoreInterface) store).getStore();
+    }
+    return store;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUpdater#
+   * update(org.xwiki.model.reference.DocumentReference, java.lang.String,
+   * boolean,
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUpdater.
+   * Update)
+   */
+  @Override
+  public boolean update(DocumentReference reference, String comment, boolean minorEdit, Update update)
+      throws XWikiException {
+    XWikiContext context = contextProvider.get();
+    String wikiId = context.getWikiId();
+    Lock lock = locks.get(reference);
+    lock.lock();
+    try {
+      // the transaction is opened on the database of the document
+      context.setWikiId(reference.getWikiReference().getName());
+      XWikiStoreInterface store = getDatabaseStore(context.getWiki());
+      if (!(store instanceof XWikiHibernateBaseStore)) {
+        // the documents are not shared with other nodes
+        return apply(reference, comment, minorEdit, update, null, context);
+      }
+      // the other nodes are told about the saved documents once they can read
+      // them
+      boolean committed = false;
+      invalidator.beginDeferral();
+      try {
+        boolean saved = ((XWikiHibernateBaseStore) store).executeWrite(context, true,
+            session -> apply(reference, comment, minorEdit, update, session, context));
+        committed = true;
+        return saved;
+      } finally {
+        invalidator.endDeferral(committed);
+      }
+    } finally {
+      context.setWikiId(wikiId);
+      lock.unlock();
+    }
+  }
+
+}
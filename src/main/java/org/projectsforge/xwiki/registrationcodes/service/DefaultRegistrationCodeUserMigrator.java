@@ -0,0 +1,127 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The Class DefaultRegistrationCodeUserMigrator. Each registration code is
+ * migrated by the updater, its user records being saved in the transaction of
+ * the code, so that the activations running meanwhile are neither lost nor
+ * counted twice.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeUserMigrator implements RegistrationCodeUserMigrator {
+
+  /**
+   * The statement reading the names of the next page of registration codes
+   * still holding the legacy list or objects, or not counting their users.
+   */
+  private static final String CANDIDATES_STATEMENT = "select obj.name from BaseObject as obj "
+      + "where obj.className = :className and obj.name like :space and obj.name > :last "
+      + "and (not exists (select prop.id.id from IntegerProperty as prop where prop.id.id = obj.id "
+      + "and prop.id.name = :userCount) "
+      + "or exists (select prop.id.id from BaseProperty as prop where prop.id.id = obj.id and prop.id.name = :users) "
+      + "or exists (select userObj.id from BaseObject as userObj where userObj.name = obj.name "
+      + "and userObj.className = :userClassName)) order by obj.name";
+
+  /** The number of registration codes read per page. */
+  private static final int PAGE_SIZE = 100;
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The query manager. */
+  @Inject
+  private QueryManager queryManager;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The context provider. */
+  @Inject
+  private Provider<XWikiContext> contextProvider;
+
+  /** The registration code updater. */
+  @Inject
+  private RegistrationCodeUpdater registrationCodeUpdater;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUserMigrator
+   * #migrate(java.lang.String)
+   */
+  @Override
+  public int migrate(String wikiId) throws QueryException, XWikiException {
+    WikiReference wikiReference = new WikiReference(wikiId);
+    int migrated = 0;
+    String last = "";
+    while (true) {
+      List<String> names = queryManager.createQuery(CANDIDATES_STATEMENT, Query.HQL).setWiki(wikiId)
+          .bindValue("className", RegistrationCode.getClassReferenceAsString())
+          .bindValue("space", Constants.DATA_SPACE_NAME_AS_STRING + ".%").bindValue("last", last)
+          .bindValue("userCount", RegistrationCode.FIELD_USER_COUNT).bindValue("users", RegistrationCode.FIELD_USERS)
+          .bindValue("userClassName", Constants.CODE_SPACE_NAME_AS_STRING + "." + RegistrationCode.USER_CLASS_NAME)
+          .setLimit(PAGE_SIZE).execute();
+      for (String name : names) {
+        DocumentReference reference = documentReferenceResolver.resolve(name, wikiReference);
+        if (registrationCodeUpdater.update(reference, "Registration code users migrated", true, this::migrate)) {
+          migrated++;
+        }
+        last = name;
+      }
+      if (names.size() < PAGE_SIZE) {
+        break;
+      }
+    }
+    if (migrated > 0) {
+      logger.info("Users of {} registration codes of wiki {} migrated", migrated, wikiId);
+    }
+    return migrated;
+  }
+
+  /**
+   * Migrates the users of a registration code document.
+   *
+   * @param document
+   *          the document
+   * @return true, if the document has been modified
+   * @throws XWikiException
+   *           if a user record can not be saved
+   */
+  private boolean migrate(XWikiDocument document) throws XWikiException {
+    RegistrationCode regCode = RegistrationCode.fromDocument(document);
+    if (regCode == null || !regCode.isLegacy()) {
+      return false;
+    }
+    XWikiContext context = contextProvider.get();
+    for (XWikiDocument record : regCode.migrateLegacyUsers(context)) {
+      // joins the transaction of the registration code
+      context.getWiki().saveDocument(record, "Registration code user migrated", true, context);
+    }
+    return true;
+  }
+
+}
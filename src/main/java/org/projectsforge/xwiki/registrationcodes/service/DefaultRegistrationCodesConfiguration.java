@@ -0,0 +1,383 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * The Class DefaultRegistrationCodesConfiguration.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodesConfiguration implements RegistrationCodesConfiguration {
+
+  /** The Constant PREFIX. */
+  private static final String PREFIX = "registrationcodes.";
+
+  /** The configuration source. */
+  @Inject
+  @Named("xwikiproperties")
+  private ConfigurationSource configurationSource;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getAnalyticsFlushInterval()
+   */
+  @Override
+  public long getAnalyticsFlushInterval() {
+    return configurationSource.getProperty(PREFIX + "analytics.flushInterval", 60000L);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getAnalyticsRetentionDays()
+   */
+  @Override
+  public int getAnalyticsRetentionDays() {
+    return configurationSource.getProperty(PREFIX + "analytics.retentionDays", 400);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getCodeAlphabet()
+   */
+  @Override
+  public String getCodeAlphabet() {
+    // no 0/O, 1/I/L to avoid reading mistakes
+    return configurationSource.getProperty(PREFIX + "code.alphabet", "ABCDEFGHJKMNPQRSTUVWXYZ23456789");
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getCodeGenerator()
+   */
+  @Override
+  public String getCodeGenerator() {
+    return configurationSource.getProperty(PREFIX + "code.generator", "default");
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getCodeGroupSize()
+   */
+  @Override
+  public int getCodeGroupSize() {
+    return configurationSource.getProperty(PREFIX + "code.groupSize", 4);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getCodeLength()
+   */
+  @Override
+  public int getCodeLength() {
+    return configurationSource.getProperty(PREFIX + "code.length", 15);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getEnrollmentMaxAttempts()
+   */
+  @Override
+  public int getEnrollmentMaxAttempts() {
+    return configurationSource.getProperty(PREFIX + "enrollment.maxAttempts", 5);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getEnrollmentQueueCapacity()
+   */
+  @Override
+  public int getEnrollmentQueueCapacity() {
+    return configurationSource.getProperty(PREFIX + "enrollment.queueCapacity", 1000);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getEnrollmentReplayBatchSize()
+   */
+  @Override
+  public int getEnrollmentReplayBatchSize() {
+    return configurationSource.getProperty(PREFIX + "enrollment.replayBatchSize", 100);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getEnrollmentRetryDelay()
+   */
+  @Override
+  public long getEnrollmentRetryDelay() {
+    return configurationSource.getProperty(PREFIX + "enrollment.retryDelay", 5000L);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getEnrollmentThreads()
+   */
+  @Override
+  public int getEnrollmentThreads() {
+    return configurationSource.getProperty(PREFIX + "enrollment.threads", 2);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getEnrollmentWikiConcurrency()
+   */
+  @Override
+  public int getEnrollmentWikiConcurrency() {
+    return configurationSource.getProperty(PREFIX + "enrollment.wikiConcurrency", 4);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getGroupMembersCacheSize()
+   */
+  @Override
+  public int getGroupMembersCacheSize() {
+    return configurationSource.getProperty(PREFIX + "groupMembersCache.size", 100);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getGroupMembersCacheTimeToLive()
+   */
+  @Override
+  public long getGroupMembersCacheTimeToLive() {
+    return configurationSource.getProperty(PREFIX + "groupMembersCache.timeToLive", 600000L);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getImportBatchSize()
+   */
+  @Override
+  public int getImportBatchSize() {
+    return configurationSource.getProperty(PREFIX + "import.batchSize", 500);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getImportThreads()
+   */
+  @Override
+  public int getImportThreads() {
+    return configurationSource.getProperty(PREFIX + "import.threads", 2);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getInvalidationChannel()
+   */
+  @Override
+  public String getInvalidationChannel() {
+    return configurationSource.getProperty(PREFIX + "invalidation.channel", "default");
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getSweeperInterval()
+   */
+  @Override
+  public long getSweeperInterval() {
+    return configurationSource.getProperty(PREFIX + "sweeper.interval", 60000L);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getSweeperPageSize()
+   */
+  @Override
+  public int getSweeperPageSize() {
+    return configurationSource.getProperty(PREFIX + "sweeper.pageSize", 100);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getThrottlingAddressCapacity()
+   */
+  @Override
+  public int getThrottlingAddressCapacity() {
+    return configurationSource.getProperty(PREFIX + "throttling.address.capacity", 50);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getThrottlingAddressRefillPeriod()
+   */
+  @Override
+  public long getThrottlingAddressRefillPeriod() {
+    return configurationSource.getProperty(PREFIX + "throttling.address.refillPeriod", 6000L);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getThrottlingBucketsSize()
+   */
+  @Override
+  public int getThrottlingBucketsSize() {
+    return configurationSource.getProperty(PREFIX + "throttling.bucketsSize", 10000);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getThrottlingTrustedProxies()
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<String> getThrottlingTrustedProxies() {
+    List<String> proxies = configurationSource.getProperty(PREFIX + "throttling.trustedProxies", List.class);
+    return proxies == null ? Collections.emptyList() : proxies;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getThrottlingUserCapacity()
+   */
+  @Override
+  public int getThrottlingUserCapacity() {
+    return configurationSource.getProperty(PREFIX + "throttling.user.capacity", 10);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getThrottlingUserRefillPeriod()
+   */
+  @Override
+  public long getThrottlingUserRefillPeriod() {
+    return configurationSource.getProperty(PREFIX + "throttling.user.refillPeriod", 60000L);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getUnknownCodeCacheSize()
+   */
+  @Override
+  public int getUnknownCodeCacheSize() {
+    return configurationSource.getProperty(PREFIX + "unknownCodeCache.size", 10000);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getUnknownCodeCacheTimeToLive()
+   */
+  @Override
+  public long getUnknownCodeCacheTimeToLive() {
+    return configurationSource.getProperty(PREFIX + "unknownCodeCache.timeToLive", 300000L);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getWikiAliasCacheSize()
+   */
+  @Override
+  public int getWikiAliasCacheSize() {
+    return configurationSource.getProperty(PREFIX + "wikiAliasCache.size", 1000);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#getWikiAliasCacheTimeToLive()
+   */
+  @Override
+  public long getWikiAliasCacheTimeToLive() {
+    return configurationSource.getProperty(PREFIX + "wikiAliasCache.timeToLive", 600000L);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#isCodeCheckCharacter()
+   */
+  @Override
+  public boolean isCodeCheckCharacter() {
+    return configurationSource.getProperty(PREFIX + "code.checkCharacter", true);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#isEnrollmentAsynchronous()
+   */
+  @Override
+  public boolean isEnrollmentAsynchronous() {
+    return configurationSource.getProperty(PREFIX + "enrollment.async", true);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.service.
+   * RegistrationCodesConfiguration#isFarmWide()
+   */
+  @Override
+  public boolean isFarmWide() {
+    return configurationSource.getProperty(PREFIX + "farmWide", false);
+  }
+
+}
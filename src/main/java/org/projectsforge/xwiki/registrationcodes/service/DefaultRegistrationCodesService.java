@@ -1,35 +1,46 @@
 package org.projectsforge.xwiki.registrationcodes.service;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Provider;
 
 import org.apache.commons.lang.StringUtils;
 import org.projectsforge.xwiki.registrationcodes.Utils;
+import org.projectsforge.xwiki.registrationcodes.analytics.UsageAnalytics;
+import org.projectsforge.xwiki.registrationcodes.enrollment.Enrollment;
+import org.projectsforge.xwiki.registrationcodes.enrollment.EnrollmentQueue;
+import org.projectsforge.xwiki.registrationcodes.generator.RegistrationCodeGenerator;
 import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeSummary;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeTemplate;
+import org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics;
+import org.projectsforge.xwiki.registrationcodes.throttling.ActivationThrottle;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.job.event.status.JobProgressManager;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
-import org.xwiki.query.Query;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryManager;
-import org.xwiki.wiki.descriptor.WikiDescriptor;
-import org.xwiki.wiki.descriptor.WikiDescriptorManager;
 import org.xwiki.wiki.manager.WikiManagerException;
-import org.xwiki.wiki.user.WikiUserManager;
-import org.xwiki.wiki.user.WikiUserManagerException;
 
-import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
 
 /**
  * The Class DefaultRegistrationCodesService.
@@ -37,10 +48,206 @@ import com.xpn.xwiki.objects.BaseObject;
 @Component
 public class DefaultRegistrationCodesService implements RegistrationCodesService {
 
+  /**
+   * The update recording the activation of a registration code by a user.
+   */
+  private class Activation implements RegistrationCodeUpdater.Update {
+
+    /** The code. */
+    private final String code;
+
+    /** The user. */
+    private final String user;
+
+    /** The user reference. */
+    private final DocumentReference userRef;
+
+    /** The wiki of the activation. */
+    private final String wikiId;
+
+    /** The enrollment stored for the activation, null if not accepted. */
+    private Enrollment enrollment;
+
+    /**
+     * Instantiates a new activation.
+     *
+     * @param code
+     *          the code
+     * @param user
+     *          the user
+     * @param userRef
+     *          the user reference
+     * @param wikiId
+     *          the wiki of the activation
+     */
+    Activation(String code, String user, DocumentReference userRef, String wikiId) {
+      this.code = code;
+      this.user = user;
+      this.userRef = userRef;
+      this.wikiId = wikiId;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUpdater.
+     * Update#apply(com.xpn.xwiki.doc.XWikiDocument)
+     */
+    @Override
+    public boolean apply(XWikiDocument document) throws XWikiException {
+      XWikiContext context = getContext();
+      RegistrationCode regCode = new RegistrationCode(DefaultRegistrationCodesService.this, document);
+      if (!regCode.accept(code, user, context)) {
+        return false;
+      }
+      logger.debug("Registration code accepted for {}", user);
+      try {
+        // stored before saving so that a crash right after the save leaves a
+        // record of the enrollment to run
+        enrollment = enrollmentQueue.create(wikiId, user, userRef, document.getDocumentReference(),
+            regCode.getAddToWikis(), regCode.getAddToGroups());
+      } catch (IOException ex) {
+        throw new XWikiException(XWikiException.MODULE_XWIKI_APP, XWikiException.ERROR_XWIKI_UNKNOWN,
+            "Can not store the enrollment of " + user, ex);
+      }
+      for (XWikiDocument record : regCode.addUser(user, context)) {
+        // joins the transaction of the registration code
+        context.getWiki().saveDocument(record, "Registration code activation", true, context);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The update recording the activation of a registration code by several
+   * users.
+   */
+  private class BatchActivation implements RegistrationCodeUpdater.Update {
+
+    /** The code. */
+    private final String code;
+
+    /** The users. */
+    private final Set<String> users;
+
+    /** The wiki of the activation, where the users are resolved. */
+    private final WikiReference userWiki;
+
+    /** The accepted users, in order. */
+    private final List<String> accepted = new ArrayList<>();
+
+    /** The enrollments stored for the accepted users, in order. */
+    private final List<Enrollment> enrollments = new ArrayList<>();
+
+    /**
+     * Instantiates a new batch activation.
+     *
+     * @param code
+     *          the code
+     * @param users
+     *          the users
+     * @param userWiki
+     *          the wiki of the activation, where the users are resolved
+     */
+    BatchActivation(String code, Set<String> users, WikiReference userWiki) {
+      this.code = code;
+      this.users = users;
+      this.userWiki = userWiki;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUpdater.
+     * Update#apply(com.xpn.xwiki.doc.XWikiDocument)
+     */
+    @Override
+    public boolean apply(XWikiDocument document) throws XWikiException {
+      XWikiContext context = getContext();
+      RegistrationCode regCode = new RegistrationCode(DefaultRegistrationCodesService.this, document);
+      // each accepted user is added right away so that the next ones are
+      // checked against the remaining uses
+      for (String user : users) {
+        if (regCode.accept(code, user, context)) {
+          try {
+            // stored before saving, as for a single activation
+            enrollments.add(enrollmentQueue.create(userWiki.getName(), user,
+                documentReferenceResolver.resolve(user, userWiki), document.getDocumentReference(),
+                regCode.getAddToWikis(), regCode.getAddToGroups()));
+          } catch (IOException ex) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_APP, XWikiException.ERROR_XWIKI_UNKNOWN,
+                "Can not store the enrollment of " + user, ex);
+          }
+          for (XWikiDocument record : regCode.addUser(user, context)) {
+            // joins the transaction of the registration code
+            context.getWiki().saveDocument(record, "Registration code activation", true, context);
+          }
+          accepted.add(user);
+        }
+      }
+      return !accepted.isEmpty();
+    }
+  }
+
+  /**
+   * The update deactivating a registration code which can no longer be used.
+   */
+  private static class Deactivation implements RegistrationCodeUpdater.Update {
+
+    /** The outcome. */
+    private String outcome;
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodeUpdater.
+     * Update#apply(com.xpn.xwiki.doc.XWikiDocument)
+     */
+    @Override
+    public boolean apply(XWikiDocument document) {
+      RegistrationCode regCode = RegistrationCode.fromDocument(document);
+      if (regCode == null || !regCode.isActive()) {
+        outcome = "inactive";
+        return false;
+      }
+      if (regCode.isExpired(new Date())) {
+        outcome = "expired";
+      } else if (regCode.isExhausted()) {
+        outcome = "exhausted";
+      } else {
+        outcome = "usable";
+        return false;
+      }
+      regCode.setActive(false);
+      return true;
+    }
+  }
+
   /** The Constant GROUPCLASS_REFERENCE. */
   public static final EntityReference GROUPCLASS_REFERENCE = new EntityReference("XWikiGroups", EntityType.DOCUMENT,
       new EntityReference("XWiki", EntityType.SPACE));
 
+  /** The number of registration codes generated at once by bulk creations. */
+  private static final int BULK_BATCH_SIZE = 500;
+
+  /** The timer of the activations, also prefixing the counters of their outcomes. */
+  private static final String METRIC_ACTIVATION = "activation";
+
+  /** The timer of the lookups of the code in the index. */
+  private static final String METRIC_LOOKUP = "activation.lookup";
+
+  /** The timer of the batch activations, also prefixing the counters of the outcomes of their users. */
+  private static final String METRIC_BATCH_ACTIVATION = "batchActivation";
+
+  /** The counter of the codes rejected because they were recently found unknown. */
+  private static final String METRIC_UNKNOWN_CODE = "activation.unknownCode";
+
+  /** The counter of the codes rejected on their indexed summary, without loading the document. */
+  private static final String METRIC_SUMMARY_REJECTION = "activation.summaryRejection";
+
   /** The logger. */
   @Inject
   private Logger logger;
@@ -49,21 +256,50 @@ public class DefaultRegistrationCodesService implements RegistrationCodesService
   @Inject
   private DocumentReferenceResolver<String> documentReferenceResolver;
 
-  /** The query manager. */
+  /** The registration code index. */
+  @Inject
+  private RegistrationCodeIndex registrationCodeIndex;
+
+  /** The registration code number allocator. */
+  @Inject
+  private RegistrationCodeNumberAllocator numberAllocator;
+
+  /** The job progress manager. */
+  @Inject
+  private JobProgressManager jobProgressManager;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The enrollment queue. */
   @Inject
-  private QueryManager queryManager;
+  private EnrollmentQueue enrollmentQueue;
 
   /** The context provider. */
   @Inject
   private Provider<XWikiContext> contextProvider;
 
-  /** The wiki user manager. */
+  /** The metrics. */
+  @Inject
+  private RegistrationCodesMetrics metrics;
+
+  /** The usage analytics. */
+  @Inject
+  private UsageAnalytics usageAnalytics;
+
+  /** The activation throttle. */
+  @Inject
+  private ActivationThrottle activationThrottle;
+
+  /** The registration code updater. */
   @Inject
-  private WikiUserManager wikiUserManager;
+  private RegistrationCodeUpdater registrationCodeUpdater;
 
-  /** The wiki descriptor manager. */
+  /** The component manager provider, to get the configured code generator. */
   @Inject
-  private WikiDescriptorManager wikiDescriptorManager;
+  @Named("context")
+  private Provider<ComponentManager> componentManagerProvider;
 
   /*
    * (non-Javadoc)
@@ -74,164 +310,292 @@ public class DefaultRegistrationCodesService implements RegistrationCodesService
    */
   @Override
   public String activateRegitrationCode(String code, String user) {
+    long start = System.nanoTime();
+    String remoteAddress = activationThrottle.getRemoteAddress(getContext().getRequest());
+    String outcome;
+    if (activationThrottle.tryAcquire(user, remoteAddress)) {
+      outcome = activate(code, user);
+      // only the attempts with an unknown or unusable code are charged
+      if (!"noresult".equals(outcome)) {
+        activationThrottle.release(user, remoteAddress);
+      }
+    } else {
+      logger.debug("Too many failed activation attempts by {} from {}. Rejecting activation.", user, remoteAddress);
+      outcome = "throttled";
+    }
+    metrics.record(METRIC_ACTIVATION, System.nanoTime() - start);
+    metrics.increment(METRIC_ACTIVATION + "." + outcome);
+    return outcome;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService#
+   * activateRegitrationCode(java.lang.String, java.util.List)
+   */
+  @Override
+  public Map<String, String> activateRegitrationCode(String code, List<String> users) {
+    long start = System.nanoTime();
+    Map<String, String> outcomes = activate(code, users);
+    metrics.record(METRIC_BATCH_ACTIVATION, System.nanoTime() - start);
+    for (String outcome : outcomes.values()) {
+      metrics.increment(METRIC_BATCH_ACTIVATION + "." + outcome);
+    }
+    return outcomes;
+  }
+
+  /**
+   * Activates a registration code for several users.
+   *
+   * @param code
+   *          the code
+   * @param users
+   *          the users
+   * @return the outcomes by user
+   */
+  private Map<String, String> activate(String code, List<String> users) {
     XWikiContext context = getContext();
-    XWiki xwiki = context.getWiki();
 
     String cleanedCode = StringUtils.trimToEmpty(code);
+    Map<String, String> outcomes = new LinkedHashMap<>();
+    for (String user : users) {
+      outcomes.put(user, "error");
+    }
 
     try {
-      List<String> results = queryManager
-          .createQuery(String.format(
-              "from doc.object(%s) as regcode where doc.space like :space and regcode.active = 1 and regcode.code = :code",
-              RegistrationCode.getClassReferenceAsString()), Query.XWQL)
-          .bindValue("code", StringUtils.trimToEmpty(cleanedCode)).bindValue("space", "RegistrationCodes.Data.%")
-          .execute();
-
-      if (results.isEmpty()) {
-        logger.warn("No result for registration code {} : {}. Rejecting activation.", cleanedCode, results);
-        return "noresult";
-      }
-      if (results.size() > 1) {
-        logger.warn("Multiple results for registration code {} : {}. Rejecting activation.", cleanedCode, results);
-        return "multipleresults";
+      long start = System.nanoTime();
+      List<DocumentReference> results = lookup(context.getWikiId(), cleanedCode);
+      metrics.record(METRIC_LOOKUP, System.nanoTime() - start);
+
+      if (results.size() != 1) {
+        String outcome = results.isEmpty() ? "noresult" : "multipleresults";
+        logger.warn("{} for the registration code of a batch activation of {} users. Rejecting activation.", outcome,
+            outcomes.size());
+        outcomes.replaceAll((user, previous) -> outcome);
+        return outcomes;
       }
 
-      DocumentReference userRef = documentReferenceResolver.resolve(user, context.getWikiReference());
-
-      DocumentReference regCodeRef = documentReferenceResolver.resolve(results.get(0), context.getWikiReference());
-      XWikiDocument regCodeDoc = xwiki.getDocument(regCodeRef, context);
-      RegistrationCode regCode = new RegistrationCode(this, regCodeDoc);
-      if (regCode.accept(cleanedCode, user)) {
-        logger.debug("Registration code accepted for {}", user);
-
-        {
-          List<String> addToWikis = regCode.getAddToWikis();
-          logger.debug("Adding {} to wikis {}", userRef, addToWikis);
-          for (String wikiname : addToWikis) {
-            addToWiki(userRef, wikiname);
-          }
-        }
+      DocumentReference regCodeRef = results.get(0);
+      if (isRejectedBySummary(regCodeRef)) {
+        outcomes.replaceAll((user, previous) -> "noresult");
+        return outcomes;
+      }
 
-        {
-          List<String> addToGroups = regCode.getAddToGroups();
-          logger.debug("Adding {} to groups {}", userRef, addToGroups);
-          for (String group : addToGroups) {
-            addToGroup(userRef, group);
+      BatchActivation activation = new BatchActivation(cleanedCode, outcomes.keySet(), context.getWikiReference());
+      boolean saved = false;
+      try {
+        saved = registrationCodeUpdater.update(regCodeRef, "", false, activation);
+      } finally {
+        if (!saved) {
+          for (Enrollment enrollment : activation.enrollments) {
+            enrollmentQueue.discard(enrollment);
           }
         }
-
-        regCode.addUser(user);
-        xwiki.saveDocument(regCodeDoc, context);
-        return "success";
-      } else {
-        return "noresult";
       }
-    } catch (XWikiException | QueryException | WikiManagerException | WikiUserManagerException ex) {
+      if (!saved) {
+        outcomes.replaceAll((user, previous) -> "noresult");
+        return outcomes;
+      }
+      usageAnalytics.recordActivations(regCodeRef, activation.accepted.size());
+      Set<String> accepted = new HashSet<>(activation.accepted);
+      outcomes.replaceAll((user, previous) -> accepted.contains(user) ? "success" : "noresult");
+
+      // the memberships are only granted once the activations are saved, with
+      // one write per wiki and group for all the accepted users; when it
+      // fails, the enrollments are kept and retried in the background
+      if (!enrollmentQueue.run(activation.enrollments)) {
+        logger.warn("Registration code {} activated for {} but their enrollment failed, it will be retried",
+            regCodeRef, activation.accepted);
+      }
+      return outcomes;
+    } catch (XWikiException | QueryException | WikiManagerException ex) {
       logger.warn("An error occurred", ex);
     }
 
-    return "error";
+    outcomes.replaceAll((user, previous) -> "error");
+    return outcomes;
   }
 
   /**
-   * Adds the to group.
+   * Activates a registration code.
    *
-   * @param userRef
-   *          the user ref
-   * @param group
-   *          the group
-   * @throws XWikiException
-   *           the x wiki exception
+   * @param code
+   *          the code
+   * @param user
+   *          the user
+   * @return the outcome
    */
-  private void addToGroup(DocumentReference userRef, String group) throws XWikiException {
-    try {
-      XWikiContext context = getContext();
-      XWiki xwiki = context.getWiki();
+  private String activate(String code, String user) {
+    XWikiContext context = getContext();
 
-      DocumentReference groupRef = documentReferenceResolver.resolve(group);
-      XWikiDocument groupDoc = xwiki.getDocument(groupRef, context);
-      List<BaseObject> xobjects = groupDoc.getXObjects(GROUPCLASS_REFERENCE);
+    String cleanedCode = StringUtils.trimToEmpty(code);
+    String codeHash = Utils.digestCode(cleanedCode);
+    if (codeHash.isEmpty()) {
+      return "noresult";
+    }
+    String unknownCodeScope = configuration.isFarmWide() ? null : context.getWikiId();
+    if (activationThrottle.isUnknownCode(unknownCodeScope, codeHash)) {
+      metrics.increment(METRIC_UNKNOWN_CODE);
+      return "noresult";
+    }
 
-      boolean alreadyAMember = false;
-      if (groupDoc.isNew() || xobjects == null) {
-        // if xobjects == null then it is not a group
-        logger.warn("Group {} skipped since it is not a group", group);
-        return;
-      }
+    try {
+      long start = System.nanoTime();
+      List<DocumentReference> results = lookup(context.getWikiId(), cleanedCode);
+      metrics.record(METRIC_LOOKUP, System.nanoTime() - start);
 
-      String user;
-      if (groupRef.getWikiReference().equals(userRef.getWikiReference())) {
-        // group and user on same wiki
-        user = Utils.LOCAL_REFERENCE_SERIALIZER.serialize(userRef);
-      } else {
-        user = userRef.toString();
+      if (results.isEmpty()) {
+        // the code is not logged: guesses would flood the logs and real codes
+        // mistyped by a user would end up in them
+        activationThrottle.rememberUnknownCode(unknownCodeScope, codeHash);
+        logger.debug("No result for the registration code submitted by {}. Rejecting activation.", user);
+        return "noresult";
+      }
+      if (results.size() > 1) {
+        logger.warn("Multiple results for registration code {} : {}. Rejecting activation.", cleanedCode, results);
+        return "multipleresults";
       }
 
-      for (BaseObject xobject : xobjects) {
-        if (xobject != null && Objects.equals(user, xobject.getStringValue("member"))) {
-          alreadyAMember = true;
-        }
+      DocumentReference regCodeRef = results.get(0);
+      if (isRejectedBySummary(regCodeRef)) {
+        return "noresult";
       }
 
-      if (!alreadyAMember) {
-        BaseObject xobject = groupDoc.newXObject(GROUPCLASS_REFERENCE, context);
-        xobject.setStringValue("member", user);
-        groupDoc.setContentAuthorReference(groupDoc.getAuthorReference());
-        xwiki.saveDocument(groupDoc, context);
-        if (logger.isDebugEnabled()) {
-          logger.debug("{} added to group {}.", userRef, group);
+      DocumentReference userRef = documentReferenceResolver.resolve(user, context.getWikiReference());
+      // captured before the update, which switches the context to the wiki of
+      // the code
+      Activation activation = new Activation(cleanedCode, user, userRef, context.getWikiId());
+      boolean saved = false;
+      try {
+        saved = registrationCodeUpdater.update(regCodeRef, "", false, activation);
+      } finally {
+        if (!saved && activation.enrollment != null) {
+          enrollmentQueue.discard(activation.enrollment);
         }
       }
-    } catch (XWikiException ex) {
-      logger.warn("An error occurred while adding user " + userRef + " to group " + group, ex);
-      throw ex;
+      if (!saved) {
+        return "noresult";
+      }
+      usageAnalytics.recordActivations(regCodeRef, 1);
+
+      // the memberships are only granted once the activation is saved; when it
+      // fails, the enrollment is kept and retried in the background
+      if (configuration.isEnrollmentAsynchronous()) {
+        enrollmentQueue.schedule(activation.enrollment);
+      } else if (!enrollmentQueue.run(Collections.singletonList(activation.enrollment))) {
+        logger.warn("Registration code {} activated for {} but their enrollment failed, it will be retried",
+            regCodeRef, user);
+      }
+      return "success";
+    } catch (XWikiException | QueryException | WikiManagerException ex) {
+      logger.warn("An error occurred", ex);
     }
+
+    return "error";
   }
 
-  /**
-   * Adds the to wiki.
+  /*
+   * (non-Javadoc)
    *
-   * @param userRef
-   *          the user ref
-   * @param wikiname
-   *          the wikiname
-   * @throws WikiManagerException
-   *           the wiki manager exception
-   * @throws WikiUserManagerException
-   *           the wiki user manager exception
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService#
+   * createRegistrationCodes(int,
+   * org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeTemplate)
    */
-  private void addToWiki(DocumentReference userRef, String wikiname)
-      throws WikiManagerException, WikiUserManagerException {
+  @Override
+  public Map<String, DocumentReference> createRegistrationCodes(int count, RegistrationCodeTemplate template) {
+    Map<String, DocumentReference> result = new LinkedHashMap<>();
+    if (count <= 0 || template.getStartDate() == null || template.getEndDate() == null) {
+      logger.warn("Invalid bulk registration code creation: count = {}, startDate = {}, endDate = {}", count,
+          template.getStartDate(), template.getEndDate());
+      return result;
+    }
+
+    XWikiContext context = getContext();
+    String wikiId = context.getWikiId();
+    int batches = (count + BULK_BATCH_SIZE - 1) / BULK_BATCH_SIZE;
+    jobProgressManager.pushLevelProgress(batches, this);
     try {
-      // resolve alias into wikiid
-      String realWikiname;
-      if (wikiDescriptorManager.exists(wikiname)) {
-        realWikiname = wikiname;
-      } else {
-        // try by alias
-        WikiDescriptor wikiDescriptor = wikiDescriptorManager.getByAlias(wikiname);
-        if (wikiDescriptor != null) {
-          realWikiname = wikiDescriptor.getId();
-        } else {
-          logger.warn("Wiki {} skipped since unknown", wikiname);
-          return;
-        }
-      }
-      XWikiContext context = getContext();
-      if (!context.getWikiId().equals(realWikiname)) {
-        // add to wiki only if we are not already on the wiki
-        wikiUserManager.addMember(userRef.toString(), realWikiname);
-        if (logger.isDebugEnabled()) {
-          logger.debug("{} added to wiki {}. Wiki members are {}", userRef, realWikiname,
-              wikiUserManager.getMembers(realWikiname));
+      RegistrationCodeGenerator generator = getCodeGenerator();
+      // live views of the index: uniqueness is checked in memory only
+      Set<String> existingCodeHashes = configuration.isFarmWide() ? registrationCodeIndex.getFarmCodeHashes()
+          : registrationCodeIndex.getCodeHashes(wikiId);
+      int nextNumber = numberAllocator.reserve(wikiId, count);
+      int lastNumber = nextNumber + count - 1;
+
+      while (result.size() < count) {
+        jobProgressManager.startStep(this);
+        int end = result.size() + Math.min(BULK_BATCH_SIZE, count - result.size());
+        while (result.size() < end) {
+          int number = nextNumber <= lastNumber ? nextNumber++ : numberAllocator.allocate(wikiId);
+          DocumentReference reference = documentReferenceResolver.resolve(RegistrationCode.getName(number));
+          String code;
+          do {
+            code = generator.generate();
+          } while (existingCodeHashes.contains(Utils.digestCode(code)) || result.containsKey(code));
+
+          // each document is committed on its own so that the listeners are
+          // only told about saved codes, and the saved ones are kept on error
+          String newCode = code;
+          DocumentReference userRef = context.getUserReference();
+          if (registrationCodeUpdater.create(reference, "Bulk registration code creation", true, document -> {
+            new RegistrationCode(this, document).apply(newCode, template);
+            document.setCreatorReference(userRef);
+            document.setAuthorReference(userRef);
+            document.setContentAuthorReference(userRef);
+            return true;
+          })) {
+            result.put(code, reference);
+          }
+          // otherwise created in the meantime by another node, or not a
+          // registration code at all: never overwritten
         }
+        jobProgressManager.endStep(this);
+        logger.info("{} of {} registration codes created", result.size(), count);
       }
-    } catch (WikiManagerException | WikiUserManagerException ex) {
-      logger.warn("An error occurred while adding user " + userRef + " to wiki " + wikiname, ex);
-      throw ex;
+    } catch (XWikiException | QueryException | WikiManagerException | ComponentLookupException ex) {
+      logger.warn("An error occurred while creating registration codes, " + result.size() + " of " + count
+          + " have been created", ex);
+    } finally {
+      jobProgressManager.popLevelProgress(this);
+    }
+    return result;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService#
+   * deactivateUnusableRegistrationCode(org.xwiki.model.reference.
+   * DocumentReference)
+   */
+  @Override
+  public String deactivateUnusableRegistrationCode(DocumentReference reference) {
+    Deactivation deactivation = new Deactivation();
+    try {
+      registrationCodeUpdater.update(reference, "Unusable registration code deactivated", true, deactivation);
+      return deactivation.outcome;
+    } catch (XWikiException ex) {
+      logger.warn("An error occurred while deactivating registration code " + reference, ex);
+      return "error";
     }
   }
 
+  /**
+   * Gets the configured code generator.
+   *
+   * @return the code generator
+   * @throws ComponentLookupException
+   *           if the generator does not exist or can not be initialized
+   */
+  private RegistrationCodeGenerator getCodeGenerator() throws ComponentLookupException {
+    return componentManagerProvider.get().getInstance(RegistrationCodeGenerator.class,
+        configuration.getCodeGenerator());
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -244,6 +608,18 @@ public class DefaultRegistrationCodesService implements RegistrationCodesService
     return contextProvider.get();
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService#
+   * getEnrollments(java.lang.String)
+   */
+  @Override
+  public List<Enrollment> getEnrollments(String user) {
+    return enrollmentQueue.getEnrollments(documentReferenceResolver.resolve(user, getContext().getWikiReference()));
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -253,32 +629,49 @@ public class DefaultRegistrationCodesService implements RegistrationCodesService
    */
   @Override
   public DocumentReference getNewRegistrationCodeReference() {
-    List<String> results = null;
+    XWikiContext context = getContext();
     try {
-      results = queryManager
-          .createQuery(String.format("from doc.object(%s) as regcode", RegistrationCode.getClassReferenceAsString()),
-              Query.XWQL)
-          .execute();
+      DocumentReference reference;
+      do {
+        // skip numbers taken by a document another node has not notified yet
+        reference = documentReferenceResolver
+            .resolve(RegistrationCode.getName(numberAllocator.allocate(context.getWikiId())));
+      } while (context.getWiki().exists(reference, context));
+      return reference;
     } catch (QueryException ex) {
-      logger.warn("An error occurred while executing query ", ex);
+      logger.warn("An error occurred while allocating a registration code number", ex);
+      return null;
     }
+  }
 
-    int counter = 0;
-    if (results != null) {
-      for (String id : results) {
-        if (id.startsWith(RegistrationCode.NAME_PREFIX) && id.endsWith(RegistrationCode.NAME_SUFFIX)) {
-          String number = id.substring(0, id.length() - RegistrationCode.NAME_SUFFIX.length())
-              .substring(RegistrationCode.NAME_PREFIX.length());
-          try {
-            counter = Math.max(counter, Integer.parseInt(number));
-          } catch (NumberFormatException ex) {
-            logger.warn("Can not extract number", ex);
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService#
+   * getNewRegistrationCodeReferences(int)
+   */
+  @Override
+  public List<DocumentReference> getNewRegistrationCodeReferences(int count) {
+    XWikiContext context = getContext();
+    try {
+      List<DocumentReference> references = new ArrayList<>(Math.max(count, 0));
+      while (references.size() < count) {
+        int missing = count - references.size();
+        int first = numberAllocator.reserve(context.getWikiId(), missing);
+        for (int i = 0; i < missing; ++i) {
+          DocumentReference reference = documentReferenceResolver.resolve(RegistrationCode.getName(first + i));
+          // skip numbers taken by a document another node has not notified yet
+          if (!context.getWiki().exists(reference, context)) {
+            references.add(reference);
           }
         }
       }
+      return references;
+    } catch (QueryException ex) {
+      logger.warn("An error occurred while reserving registration code numbers", ex);
+      return Collections.emptyList();
     }
-    counter++;
-    return documentReferenceResolver.resolve(RegistrationCode.NAME_PREFIX + counter + RegistrationCode.NAME_SUFFIX);
   }
 
   /*
@@ -290,11 +683,60 @@ public class DefaultRegistrationCodesService implements RegistrationCodesService
    */
   @Override
   public String getRandomRegistrationCode() {
-    String code;
-    do {
-      code = UUID.randomUUID().toString();
-    } while (isRegistrationCodeExistent(code));
-    return code;
+    try {
+      RegistrationCodeGenerator generator = getCodeGenerator();
+      String code;
+      do {
+        code = generator.generate();
+      } while (isRegistrationCodeExistent(code));
+      return code;
+    } catch (ComponentLookupException ex) {
+      logger.warn("Can not get the registration code generator " + configuration.getCodeGenerator(), ex);
+      return null;
+    }
+  }
+
+  /**
+   * Looks up the documents holding a code as an active registration code, in
+   * the whole farm if configured so, otherwise in the current wiki.
+   *
+   * @param wikiId
+   *          the current wiki id
+   * @param code
+   *          the code
+   * @return the active references
+   * @throws QueryException
+   *           if an index can not be loaded
+   * @throws WikiManagerException
+   *           if the wikis can not be listed
+   */
+  private List<DocumentReference> lookup(String wikiId, String code) throws QueryException, WikiManagerException {
+    if (configuration.isFarmWide()) {
+      return registrationCodeIndex.getFarmActiveReferences(code);
+    }
+    return registrationCodeIndex.getActiveReferences(wikiId, code);
+  }
+
+  /**
+   * Checks if the indexed summary of a registration code already rules out any
+   * activation, so that the document is only loaded when a user may be added.
+   * The summary only rejects: an acceptable summary is checked again on the
+   * document.
+   *
+   * @param reference
+   *          the registration code reference
+   * @return true, if the code can not be activated
+   * @throws QueryException
+   *           if the index can not be loaded
+   */
+  private boolean isRejectedBySummary(DocumentReference reference) throws QueryException {
+    RegistrationCodeSummary summary = registrationCodeIndex.getSummary(reference);
+    if (summary != null && !summary.isAcceptable(new Date())) {
+      logger.debug("Registration code {} is not usable anymore. Rejecting activation.", reference);
+      metrics.increment(METRIC_SUMMARY_REJECTION);
+      return true;
+    }
+    return false;
   }
 
   /*
@@ -307,14 +749,32 @@ public class DefaultRegistrationCodesService implements RegistrationCodesService
   @Override
   public boolean isRegistrationCodeExistent(String code) {
     try {
-      return !queryManager
-          .createQuery(String.format("from doc.object(%s) as regcode where regcode.code = :code",
-              RegistrationCode.getClassReferenceAsString()), Query.XWQL)
-          .bindValue("code", code).setLimit(1).execute().isEmpty();
-    } catch (QueryException ex) {
+      if (configuration.isFarmWide()) {
+        Set<String> codeHashes = registrationCodeIndex.getFarmCodeHashes();
+        return Utils.digestCodeVariants(code).stream().anyMatch(codeHashes::contains);
+      }
+      return registrationCodeIndex.contains(getContext().getWikiId(), code);
+    } catch (QueryException | WikiManagerException ex) {
       logger.warn("An error occurred", ex);
       return false;
     }
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService#
+   * isRegistrationCodeWellFormed(java.lang.String)
+   */
+  @Override
+  public boolean isRegistrationCodeWellFormed(String code) {
+    try {
+      return getCodeGenerator().isWellFormed(code);
+    } catch (ComponentLookupException ex) {
+      logger.warn("Can not get the registration code generator " + configuration.getCodeGenerator(), ex);
+      return false;
+    }
+  }
+
 }
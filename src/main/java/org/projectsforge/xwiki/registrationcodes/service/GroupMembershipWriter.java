@@ -0,0 +1,45 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import java.util.Collection;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * The Interface GroupMembershipWriter adds members to XWiki groups. Additions
+ * to the same group requested concurrently are written with a single save of
+ * the group document.
+ */
+@Role
+public interface GroupMembershipWriter {
+
+  /**
+   * Adds a member to a group.
+   *
+   * @param groupRef
+   *          the group reference
+   * @param member
+   *          the member as stored in the XWikiGroups objects
+   * @return true, if the member has been added, false if it was already a
+   *         member or if the document is not a group
+   * @throws XWikiException
+   *           if the group can not be saved
+   */
+  boolean addMember(DocumentReference groupRef, String member) throws XWikiException;
+
+  /**
+   * Adds members to a group.
+   *
+   * @param groupRef
+   *          the group reference
+   * @param members
+   *          the members as stored in the XWikiGroups objects
+   * @return the number of members which have been added
+   * @throws XWikiException
+   *           if the group can not be saved
+   */
+  int addMembers(DocumentReference groupRef, Collection<String> members) throws XWikiException;
+
+}
@@ -0,0 +1,180 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeSummary;
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.QueryException;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The Interface RegistrationCodeIndex maintains, for each wiki, an in-memory
+ * index from the digests of the registration codes to the documents of the
+ * data space holding them, along with a summary of each document, and a
+ * farm-wide index from the digests to the documents of all the wikis. Codes
+ * are hashed by the index itself.
+ */
+@Role
+public interface RegistrationCodeIndex {
+
+  /**
+   * Checks if the code is held by a document of the data space.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param code
+   *          the code
+   * @return true, if the code exists
+   * @throws QueryException
+   *           if the index of the wiki can not be loaded
+   */
+  boolean contains(String wikiId, String code) throws QueryException;
+
+  /**
+   * Gets the references of the documents holding the code as an active
+   * registration code.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param code
+   *          the code
+   * @return the active references
+   * @throws QueryException
+   *           if the index of the wiki can not be loaded
+   */
+  List<DocumentReference> getActiveReferences(String wikiId, String code) throws QueryException;
+
+  /**
+   * Gets a live read-only view of the code hashes of a wiki (see
+   * {@link org.projectsforge.xwiki.registrationcodes.Utils#digestCode(String)}).
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the code hashes
+   * @throws QueryException
+   *           if the index of the wiki can not be loaded
+   */
+  Set<String> getCodeHashes(String wikiId) throws QueryException;
+
+  /**
+   * Gets the references of the documents holding the code as an active
+   * registration code in any wiki of the farm, loading the indexes of the wikis
+   * not loaded yet.
+   *
+   * @param code
+   *          the code
+   * @return the active references
+   * @throws QueryException
+   *           if the index of a wiki can not be loaded
+   * @throws WikiManagerException
+   *           if the wikis can not be listed
+   */
+  List<DocumentReference> getFarmActiveReferences(String code) throws QueryException, WikiManagerException;
+
+  /**
+   * Gets a live read-only view of the code hashes of all the wikis of the farm.
+   *
+   * @return the code hashes
+   * @throws QueryException
+   *           if the index of a wiki can not be loaded
+   * @throws WikiManagerException
+   *           if the wikis can not be listed
+   */
+  Set<String> getFarmCodeHashes() throws QueryException, WikiManagerException;
+
+  /**
+   * Gets the references of all the indexed documents of a wiki.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the references
+   * @throws QueryException
+   *           if the index of the wiki can not be loaded
+   */
+  Set<DocumentReference> getReferences(String wikiId) throws QueryException;
+
+  /**
+   * Gets a live read-only view of the summaries of all the indexed documents of
+   * a wiki.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the summaries
+   * @throws QueryException
+   *           if the index of the wiki can not be loaded
+   */
+  Collection<RegistrationCodeSummary> getSummaries(String wikiId) throws QueryException;
+
+  /**
+   * Gets the summary of a document, as of the last update of the index.
+   *
+   * @param reference
+   *          the document reference
+   * @return the summary, null if the document is not indexed
+   * @throws QueryException
+   *           if the index of the wiki can not be loaded
+   */
+  RegistrationCodeSummary getSummary(DocumentReference reference) throws QueryException;
+
+  /**
+   * Invalidates the index of a wiki so that it is loaded again on next access.
+   *
+   * @param wikiId
+   *          the wiki id
+   */
+  void invalidate(String wikiId);
+
+  /**
+   * Loads the index of a wiki if it is not already loaded.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @throws QueryException
+   *           if the index of the wiki can not be loaded
+   */
+  void load(String wikiId) throws QueryException;
+
+  /**
+   * Loads the indexes of all the wikis of the farm not already loaded.
+   *
+   * @throws QueryException
+   *           if the index of a wiki can not be loaded
+   * @throws WikiManagerException
+   *           if the wikis can not be listed
+   */
+  void loadFarm() throws QueryException, WikiManagerException;
+
+  /**
+   * Reads the summary of a document again from the database and updates the
+   * index with it if the index of the wiki is loaded.
+   *
+   * @param reference
+   *          the document reference
+   * @return the summary, null if the document holds no registration code
+   * @throws QueryException
+   *           if the document can not be read
+   */
+  RegistrationCodeSummary refresh(DocumentReference reference) throws QueryException;
+
+  /**
+   * Removes a document from the index.
+   *
+   * @param reference
+   *          the document reference
+   */
+  void remove(DocumentReference reference);
+
+  /**
+   * Updates the index with the state of a document of the data space.
+   *
+   * @param document
+   *          the document
+   */
+  void update(XWikiDocument document);
+
+}
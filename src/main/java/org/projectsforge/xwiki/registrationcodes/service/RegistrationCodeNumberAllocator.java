@@ -0,0 +1,52 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.QueryException;
+
+/**
+ * The Interface RegistrationCodeNumberAllocator allocates the numbers used to
+ * name registration code documents (see
+ * {@link org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode#getName(int)}).
+ * The counter of each wiki is seeded once from the highest existing number and
+ * then only moves forward, so concurrent callers of a node never get the same
+ * number. The counters of the cluster nodes are independent: the documents are
+ * created only if they are new (see {@link RegistrationCodeUpdater#create}).
+ */
+@Role
+public interface RegistrationCodeNumberAllocator {
+
+  /**
+   * Allocates a new number.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the number
+   * @throws QueryException
+   *           if the counter can not be seeded
+   */
+  int allocate(String wikiId) throws QueryException;
+
+  /**
+   * Notifies the allocator that a registration code document exists (e.g.
+   * created by another cluster node) so that its number is never allocated.
+   *
+   * @param reference
+   *          the document reference
+   */
+  void notifyExisting(DocumentReference reference);
+
+  /**
+   * Reserves a block of consecutive numbers.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param count
+   *          the number of numbers to reserve
+   * @return the first number of the block
+   * @throws QueryException
+   *           if the counter can not be seeded
+   */
+  int reserve(String wikiId, int count) throws QueryException;
+
+}
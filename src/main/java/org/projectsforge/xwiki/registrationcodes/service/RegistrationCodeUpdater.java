@@ -0,0 +1,79 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The Interface RegistrationCodeUpdater applies read-modify-write updates to
+ * registration code documents, such as activations, so that updates of the
+ * same document by several threads or cluster nodes never overwrite each
+ * other.
+ */
+@Role
+public interface RegistrationCodeUpdater {
+
+  /**
+   * An update of a document.
+   */
+  interface Update {
+
+    /**
+     * Applies the update to the stored state of the document. It is called
+     * once, while no other update of the document can run.
+     *
+     * @param document
+     *          the document, a copy which can be modified
+     * @return true, if the document has been modified and must be saved
+     * @throws XWikiException
+     *           if the update fails, in which case nothing is saved
+     */
+    boolean apply(XWikiDocument document) throws XWikiException;
+  }
+
+  /**
+   * Creates a document unless it exists, e.g. because another cluster node
+   * allocated the same number: the document is checked to be new in the
+   * database transaction which saves it, and a concurrent insertion of the
+   * same document makes one of the transactions fail instead of overwriting
+   * the other.
+   *
+   * @param reference
+   *          the document reference
+   * @param comment
+   *          the save comment
+   * @param minorEdit
+   *          true to save a minor edit
+   * @param update
+   *          the update filling the new document
+   * @return true, if the document has been created, false if it exists
+   * @throws XWikiException
+   *           if the document can not be read or saved or if the update fails
+   */
+  boolean create(DocumentReference reference, String comment, boolean minorEdit, Update update)
+      throws XWikiException;
+
+  /**
+   * Updates a document. With the Hibernate store, the row of the document is
+   * locked in the database transaction which reads and saves it, so that the
+   * updates of the other cluster nodes wait for it, and the other nodes are
+   * told about the saved documents once it is committed.
+   *
+   * @param reference
+   *          the document reference
+   * @param comment
+   *          the save comment
+   * @param minorEdit
+   *          true to save a minor edit
+   * @param update
+   *          the update
+   * @return true, if the document has been saved
+   * @throws XWikiException
+   *           if the document can not be read or saved or if the update fails
+   */
+  boolean update(DocumentReference reference, String comment, boolean minorEdit, Update update)
+      throws XWikiException;
+
+}
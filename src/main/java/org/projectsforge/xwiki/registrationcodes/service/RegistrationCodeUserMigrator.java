@@ -0,0 +1,31 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.query.QueryException;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * The Interface RegistrationCodeUserMigrator moves the users of the
+ * registration codes recorded in the legacy list or objects of the code
+ * documents to user records, and counts them on the codes, so that the queries
+ * counting the users of the codes read a single property.
+ */
+@Role
+public interface RegistrationCodeUserMigrator {
+
+  /**
+   * Migrates the registration codes of a wiki which do not count their users
+   * yet.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the number of migrated registration codes
+   * @throws QueryException
+   *           if the registration codes can not be listed
+   * @throws XWikiException
+   *           if a registration code can not be migrated
+   */
+  int migrate(String wikiId) throws QueryException, XWikiException;
+
+}
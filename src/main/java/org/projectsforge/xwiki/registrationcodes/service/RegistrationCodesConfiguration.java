@@ -0,0 +1,258 @@
+package org.projectsforge.xwiki.registrationcodes.service;
+
+import java.util.List;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * The Interface RegistrationCodesConfiguration gives access to the settings of
+ * the registration codes module, read from the {@code registrationcodes.*}
+ * properties of {@code xwiki.properties}.
+ */
+@Role
+public interface RegistrationCodesConfiguration {
+
+  /**
+   * Gets the delay in ms between two flushes of the usage counters to the
+   * usage documents of the wikis, 0 to only flush them on shutdown.
+   *
+   * @return the analytics flush interval
+   */
+  long getAnalyticsFlushInterval();
+
+  /**
+   * Gets the number of days the daily usage counters are kept.
+   *
+   * @return the analytics retention days
+   */
+  int getAnalyticsRetentionDays();
+
+  /**
+   * Gets the characters the codes are generated from.
+   *
+   * @return the code alphabet
+   */
+  String getCodeAlphabet();
+
+  /**
+   * Gets the hint of the registration code generator.
+   *
+   * @return the code generator hint
+   */
+  String getCodeGenerator();
+
+  /**
+   * Gets the number of characters between two separators of a generated code,
+   * 0 to generate codes without separator.
+   *
+   * @return the code group size
+   */
+  int getCodeGroupSize();
+
+  /**
+   * Gets the number of random characters of a generated code.
+   *
+   * @return the code length
+   */
+  int getCodeLength();
+
+  /**
+   * Gets the maximum number of attempts of an asynchronous enrollment.
+   *
+   * @return the enrollment max attempts
+   */
+  int getEnrollmentMaxAttempts();
+
+  /**
+   * Gets the maximum number of enrollments waiting in memory for a thread.
+   * Enrollments beyond it stay in the durable queue and are scheduled later.
+   *
+   * @return the enrollment queue capacity
+   */
+  int getEnrollmentQueueCapacity();
+
+  /**
+   * Gets the maximum number of recovered enrollments replayed together.
+   *
+   * @return the enrollment replay batch size
+   */
+  int getEnrollmentReplayBatchSize();
+
+  /**
+   * Gets the base delay in ms before retrying a failed enrollment.
+   *
+   * @return the enrollment retry delay
+   */
+  long getEnrollmentRetryDelay();
+
+  /**
+   * Gets the number of threads running asynchronous enrollments.
+   *
+   * @return the enrollment threads
+   */
+  int getEnrollmentThreads();
+
+  /**
+   * Gets the maximum number of wikis a user is added to in parallel by a
+   * single enrollment.
+   *
+   * @return the enrollment wiki concurrency
+   */
+  int getEnrollmentWikiConcurrency();
+
+  /**
+   * Gets the maximal number of groups whose members are kept in memory between
+   * two additions.
+   *
+   * @return the group members cache size
+   */
+  int getGroupMembersCacheSize();
+
+  /**
+   * Gets the time in ms the members of a group are kept in memory.
+   *
+   * @return the group members cache time to live
+   */
+  long getGroupMembersCacheTimeToLive();
+
+  /**
+   * Gets the number of registration codes of an import handed at once to a
+   * worker, which is also the granularity of the checkpoints.
+   *
+   * @return the import batch size
+   */
+  int getImportBatchSize();
+
+  /**
+   * Gets the number of batches of an import saved in parallel.
+   *
+   * @return the import threads
+   */
+  int getImportThreads();
+
+  /**
+   * Gets the hint of the channel publishing the invalidations of the caches to
+   * the other cluster nodes.
+   *
+   * @return the invalidation channel hint
+   */
+  String getInvalidationChannel();
+
+  /**
+   * Gets the delay in ms between two pages of the sweeper deactivating the
+   * expired and used up registration codes, 0 to disable the sweeper.
+   *
+   * @return the sweeper interval
+   */
+  long getSweeperInterval();
+
+  /**
+   * Gets the maximal number of registration codes deactivated by a page of the
+   * sweeper in a wiki.
+   *
+   * @return the sweeper page size
+   */
+  int getSweeperPageSize();
+
+  /**
+   * Gets the number of failed activation attempts a remote address can make in
+   * a row, 0 to not limit them.
+   *
+   * @return the throttling address capacity
+   */
+  int getThrottlingAddressCapacity();
+
+  /**
+   * Gets the time in ms after which a remote address can make one more failed
+   * activation attempt.
+   *
+   * @return the throttling address refill period
+   */
+  long getThrottlingAddressRefillPeriod();
+
+  /**
+   * Gets the number of users or remote addresses beyond which those allowed to
+   * make all their attempts again are forgotten.
+   *
+   * @return the throttling buckets size
+   */
+  int getThrottlingBucketsSize();
+
+  /**
+   * Gets the addresses of the reverse proxies trusted to report the address of
+   * their client in the X-Forwarded-For header. The remote address of the
+   * requests is used as is when this list is empty.
+   *
+   * @return the throttling trusted proxies
+   */
+  List<String> getThrottlingTrustedProxies();
+
+  /**
+   * Gets the number of failed activation attempts a user can make in a row, 0
+   * to not limit them.
+   *
+   * @return the throttling user capacity
+   */
+  int getThrottlingUserCapacity();
+
+  /**
+   * Gets the time in ms after which a user can make one more failed activation
+   * attempt.
+   *
+   * @return the throttling user refill period
+   */
+  long getThrottlingUserRefillPeriod();
+
+  /**
+   * Gets the maximal number of codes found unknown kept in memory.
+   *
+   * @return the unknown code cache size
+   */
+  int getUnknownCodeCacheSize();
+
+  /**
+   * Gets the time in ms a code found unknown is rejected without lookup.
+   *
+   * @return the unknown code cache time to live
+   */
+  long getUnknownCodeCacheTimeToLive();
+
+  /**
+   * Gets the maximal number of resolved wiki names kept in memory.
+   *
+   * @return the wiki alias cache size
+   */
+  int getWikiAliasCacheSize();
+
+  /**
+   * Gets the time in ms a resolved wiki name is kept in memory.
+   *
+   * @return the wiki alias cache time to live
+   */
+  long getWikiAliasCacheTimeToLive();
+
+  /**
+   * Checks if a check character is appended to the generated codes so that
+   * typing errors can be detected.
+   *
+   * @return true, if codes have a check character
+   */
+  boolean isCodeCheckCharacter();
+
+  /**
+   * Checks if the wiki and group enrollments of an activation are done in the
+   * background once the activation is recorded.
+   *
+   * @return true, if enrollments are asynchronous
+   */
+  boolean isEnrollmentAsynchronous();
+
+  /**
+   * Checks if the registration codes of all the wikis of the farm can be
+   * activated from any wiki, rather than only those of the current wiki.
+   *
+   * @return true, if the codes are looked up in the whole farm
+   */
+  boolean isFarmWide();
+
+}
@@ -1,12 +1,47 @@
 package org.projectsforge.xwiki.registrationcodes.service;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.projectsforge.xwiki.registrationcodes.analytics.UsageAnalytics;
+import org.projectsforge.xwiki.registrationcodes.enrollment.Enrollment;
+import org.projectsforge.xwiki.registrationcodes.export.RegistrationCodeExporter;
+import org.projectsforge.xwiki.registrationcodes.importer.ImportReport;
+import org.projectsforge.xwiki.registrationcodes.importer.RegistrationCodeImporter;
+import org.projectsforge.xwiki.registrationcodes.listing.RegistrationCodeFilter;
+import org.projectsforge.xwiki.registrationcodes.listing.RegistrationCodeLister;
+import org.projectsforge.xwiki.registrationcodes.listing.RegistrationCodePage;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeSummary;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeTemplate;
+import org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics;
+import org.projectsforge.xwiki.registrationcodes.sweeper.RegistrationCodeSweeper;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.query.QueryException;
 import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.web.XWikiResponse;
 
 /**
  * The Class RegistrationCodesScriptService.
@@ -20,6 +55,46 @@ public class RegistrationCodesScriptService implements ScriptService {
   @Inject
   private RegistrationCodesService service;
 
+  /** The metrics. */
+  @Inject
+  private RegistrationCodesMetrics metrics;
+
+  /** The exporter. */
+  @Inject
+  private RegistrationCodeExporter exporter;
+
+  /** The importer. */
+  @Inject
+  private RegistrationCodeImporter importer;
+
+  /** The sweeper. */
+  @Inject
+  private RegistrationCodeSweeper sweeper;
+
+  /** The lister. */
+  @Inject
+  private RegistrationCodeLister lister;
+
+  /** The usage analytics. */
+  @Inject
+  private UsageAnalytics usageAnalytics;
+
+  /** The registration code index. */
+  @Inject
+  private RegistrationCodeIndex registrationCodeIndex;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The authorization manager of the current user. */
+  @Inject
+  private ContextualAuthorizationManager authorization;
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
   /**
    * Activate regitration code.
    *
@@ -27,14 +102,184 @@ public class RegistrationCodesScriptService implements ScriptService {
    *          the code
    * @param userRef
    *          the user ref
-   * @return success, noresult, multipleresults, error
+   * @return success, noresult, multipleresults, throttled, error
    */
   public String activateRegitrationCode(String code, String userRef) {
     return service.activateRegitrationCode(code, userRef);
   }
 
   /**
-   * Gets the new registration code reference.
+   * Activates a registration code for several users at once. It requires the
+   * administration rights on the data space or the programming rights.
+   *
+   * @param code
+   *          the code
+   * @param users
+   *          the users
+   * @return the outcome by user: success, noresult, multipleresults, error;
+   *         empty if the activation is not allowed
+   */
+  public Map<String, String> activateRegitrationCode(String code, List<String> users) {
+    XWikiContext context = service.getContext();
+    if (!isAdministrator(getDataSpaceReference(context))) {
+      logger.warn("{} is not allowed to activate registration codes for other users in wiki {}",
+          context.getUserReference(), context.getWikiId());
+      return Collections.emptyMap();
+    }
+    return service.activateRegitrationCode(code, users);
+  }
+
+  /**
+   * Creates registration codes in bulk. It requires the administration rights
+   * on the data space or the programming rights.
+   *
+   * @param count
+   *          the number of codes to create
+   * @param template
+   *          the settings of the codes (see
+   *          {@link #newRegistrationCodeTemplate()})
+   * @return the created codes with their document, empty if the creation is
+   *         not allowed
+   */
+  public Map<String, DocumentReference> createRegistrationCodes(int count, RegistrationCodeTemplate template) {
+    XWikiContext context = service.getContext();
+    if (!isAdministrator(getDataSpaceReference(context))) {
+      logger.warn("{} is not allowed to create registration codes in wiki {}", context.getUserReference(),
+          context.getWikiId());
+      return Collections.emptyMap();
+    }
+    return service.createRegistrationCodes(count, template);
+  }
+
+  /**
+   * Exports the registration codes of the current wiki and their usage as the
+   * response of the current request, as an attachment, and marks the request
+   * as finished. The export is streamed, so it can be used on any number of
+   * codes. It requires the administration rights on the current wiki or the
+   * programming rights.
+   *
+   * @param format
+   *          csv or json
+   * @param includeUsers
+   *          true to export the users of each code
+   * @return true, if the export has been written
+   */
+  public boolean exportRegistrationCodes(String format, boolean includeUsers) {
+    boolean json = RegistrationCodeExporter.FORMAT_JSON.equals(format);
+    if (!json && !RegistrationCodeExporter.FORMAT_CSV.equals(format)) {
+      logger.warn("Unknown registration code export format {}", format);
+      return false;
+    }
+    XWikiContext context = service.getContext();
+    if (!isAdministrator(context.getWikiReference())) {
+      logger.warn("{} is not allowed to export the registration codes of wiki {}", context.getUserReference(),
+          context.getWikiId());
+      return false;
+    }
+    XWikiResponse response = context.getResponse();
+    if (response == null) {
+      logger.warn("Registration codes can only be exported as the response of a request");
+      return false;
+    }
+    try {
+      response.setContentType(json ? "application/json" : "text/csv");
+      response.setCharacterEncoding("UTF-8");
+      response.setHeader("Content-Disposition", "attachment; filename=\"registrationcodes." + format + "\"");
+      exporter.export(context.getWikiId(), format, includeUsers, response.getWriter());
+      return true;
+    } catch (IOException | QueryException ex) {
+      logger.warn("An error occurred while exporting the registration codes", ex);
+      return false;
+    } finally {
+      context.setFinished(true);
+    }
+  }
+
+  /**
+   * Gets the number of activations of the registration codes of the current
+   * wiki by day, done on all the nodes. It requires the administration rights
+   * on the data space or the programming rights.
+   *
+   * @return the activation counts by day, formatted as yyyy-MM-dd, oldest
+   *         first; empty if reading them is not allowed
+   */
+  public Map<String, Long> getDailyActivations() {
+    XWikiContext context = service.getContext();
+    if (!isAdministrator(getDataSpaceReference(context))) {
+      logger.warn("{} is not allowed to read the registration code analytics of wiki {}",
+          context.getUserReference(), context.getWikiId());
+      return Collections.emptyMap();
+    }
+    return usageAnalytics.getDailyActivations(context.getWikiId());
+  }
+
+  /**
+   * Gets the number of activations of a registration code by day, done on all
+   * the nodes. It requires the administration rights on the registration code
+   * or the programming rights.
+   *
+   * @param regCodeRef
+   *          the registration code document reference
+   * @return the activation counts by day, formatted as yyyy-MM-dd, oldest
+   *         first; empty if reading them is not allowed
+   */
+  public Map<String, Long> getDailyActivations(DocumentReference regCodeRef) {
+    if (!isAdministrator(regCodeRef)) {
+      XWikiContext context = service.getContext();
+      logger.warn("{} is not allowed to read the analytics of registration code {}", context.getUserReference(),
+          regCodeRef);
+      return Collections.emptyMap();
+    }
+    return usageAnalytics.getDailyActivations(regCodeRef);
+  }
+
+  /**
+   * Gets the reference of the data space of the current wiki.
+   *
+   * @param context
+   *          the context
+   * @return the data space reference
+   */
+  private SpaceReference getDataSpaceReference(XWikiContext context) {
+    return new SpaceReference(context.getWikiId(), Constants.DATA_SPACE_NAME_AS_LIST);
+  }
+
+  /**
+   * Gets the enrollments of a user run in the background after an activation,
+   * so that their state can be polled. Only the current user and the
+   * administrators of the wiki can get them.
+   *
+   * @param userRef
+   *          the user ref
+   * @return the enrollments, empty if the current user is not allowed to get
+   *         them
+   */
+  public List<Enrollment> getEnrollments(String userRef) {
+    XWikiContext context = service.getContext();
+    if (!documentReferenceResolver.resolve(userRef, context.getWikiReference()).equals(context.getUserReference())
+        && !authorization.hasAccess(Right.ADMIN)) {
+      logger.warn("{} is not allowed to get the enrollments of {}", context.getUserReference(), userRef);
+      return Collections.emptyList();
+    }
+    return service.getEnrollments(userRef);
+  }
+
+  /**
+   * Gets the metrics of the registration code operations, e.g.
+   * <code>activation.meanMs</code> or <code>activation.success</code> (see
+   * {@link RegistrationCodesMetrics#getSnapshot()}).
+   *
+   * @return the metric values by name
+   */
+  public Map<String, Number> getMetrics() {
+    return metrics.getSnapshot();
+  }
+
+  /**
+   * Gets the new registration code reference. Its number is consumed even if
+   * the document is never saved, so it should only be asked for right before
+   * creating the code. Another cluster node may get the same number: check
+   * that the document is new before saving it.
    *
    * @return the new registration code reference
    */
@@ -42,6 +287,20 @@ public class RegistrationCodesScriptService implements ScriptService {
     return service.getNewRegistrationCodeReference();
   }
 
+  /**
+   * Reserves new registration code references whose document does not exist
+   * yet. The numbers are consumed even if the documents are never saved, and
+   * a document may still be created by another cluster node in the meantime:
+   * check that it is new before saving it.
+   *
+   * @param count
+   *          the number of references
+   * @return the new registration code references
+   */
+  public List<DocumentReference> getNewRegistrationCodeReferences(int count) {
+    return service.getNewRegistrationCodeReferences(count);
+  }
+
   /**
    * Gets the random registration code.
    *
@@ -52,7 +311,130 @@ public class RegistrationCodesScriptService implements ScriptService {
   }
 
   /**
-   * Checks if is registration code existent.
+   * Lists a page of the registration codes of the current wiki matching a
+   * filter, sorted by document name. The filtering is done by the database and
+   * the cost of a page does not grow with the number of codes. It requires the
+   * administration rights on the data space or the programming rights.
+   *
+   * @param filter
+   *          the filter (see {@link #newRegistrationCodeFilter()})
+   * @param cursor
+   *          the next cursor of the previous page, null for the first page
+   * @param size
+   *          the maximal number of codes of the page
+   * @return the page or null if the listing is not allowed or an error occurred
+   */
+  public RegistrationCodePage listRegistrationCodes(RegistrationCodeFilter filter, String cursor, int size) {
+    XWikiContext context = service.getContext();
+    if (!isAdministrator(getDataSpaceReference(context))) {
+      logger.warn("{} is not allowed to list the registration codes of wiki {}", context.getUserReference(),
+          context.getWikiId());
+      return null;
+    }
+    try {
+      return lister.list(context.getWikiId(), filter, cursor, size);
+    } catch (QueryException ex) {
+      logger.warn("An error occurred while listing registration codes", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Creates a new registration code filter for listings, matching all the
+   * codes.
+   *
+   * @return the registration code filter
+   */
+  public RegistrationCodeFilter newRegistrationCodeFilter() {
+    return new RegistrationCodeFilter();
+  }
+
+  /**
+   * Creates a new registration code template for bulk creations.
+   *
+   * @return the registration code template
+   */
+  public RegistrationCodeTemplate newRegistrationCodeTemplate() {
+    return new RegistrationCodeTemplate();
+  }
+
+  /**
+   * Gets the number of users who can still activate a registration code, as
+   * of the last update of the index.
+   *
+   * @param regCodeRef
+   *          the registration code document reference
+   * @return the remaining uses, -1 if the document is not a registration code
+   *         or an error occurred
+   */
+  public int getRemainingUses(DocumentReference regCodeRef) {
+    try {
+      RegistrationCodeSummary summary = registrationCodeIndex.getSummary(regCodeRef);
+      return summary == null ? -1 : Math.max(0, summary.getMaxUse() - summary.getUserCount());
+    } catch (QueryException ex) {
+      logger.warn("An error occurred while reading registration code " + regCodeRef, ex);
+      return -1;
+    }
+  }
+
+  /**
+   * Imports registration codes into the current wiki from a CSV attachment
+   * holding one code per line in its first column. An import which failed
+   * resumes where it stopped when it is run again with the same id. It
+   * requires the administration rights on the data space or the programming
+   * rights, and the view right on the document of the attachment.
+   *
+   * @param importId
+   *          the import id, made of letters, digits, dashes and underscores
+   * @param attachment
+   *          the CSV attachment, encoded in UTF-8
+   * @param template
+   *          the settings of the codes (see
+   *          {@link #newRegistrationCodeTemplate()})
+   * @return the report or null if the attachment can not be read
+   */
+  public ImportReport importRegistrationCodes(String importId, AttachmentReference attachment,
+      RegistrationCodeTemplate template) {
+    XWikiContext context = service.getContext();
+    if (!isAdministrator(getDataSpaceReference(context))
+        || !authorization.hasAccess(Right.VIEW, attachment.getDocumentReference())) {
+      logger.warn("{} is not allowed to import registration codes from {} into wiki {}",
+          context.getUserReference(), attachment, context.getWikiId());
+      return null;
+    }
+    try {
+      XWikiDocument document = context.getWiki().getDocument(attachment.getDocumentReference(), context);
+      XWikiAttachment xattachment = document.getAttachment(attachment.getName());
+      if (xattachment == null) {
+        logger.warn("Attachment {} not found", attachment);
+        return null;
+      }
+      try (Reader reader = new InputStreamReader(xattachment.getContentInputStream(context),
+          StandardCharsets.UTF_8)) {
+        return importer.importCodes(importId, reader, template);
+      }
+    } catch (XWikiException | IOException | IllegalArgumentException ex) {
+      logger.warn("An error occurred while importing registration codes from " + attachment, ex);
+      return null;
+    }
+  }
+
+  /**
+   * Checks if the current user administrates an entity or has the programming
+   * rights.
+   *
+   * @param reference
+   *          the entity reference
+   * @return true, if the user is allowed to manage the registration codes of
+   *         the entity
+   */
+  private boolean isAdministrator(EntityReference reference) {
+    return authorization.hasAccess(Right.ADMIN, reference) || authorization.hasAccess(Right.PROGRAMMING);
+  }
+
+  /**
+   * Checks if a code is held by a registration code of the data space, active
+   * or not (see {@link RegistrationCodesService#isRegistrationCodeExistent(String)}).
    *
    * @param code
    *          the code
@@ -62,4 +444,38 @@ public class RegistrationCodesScriptService implements ScriptService {
     return service.isRegistrationCodeExistent(code);
   }
 
+  /**
+   * Checks if a code has the format of the generated codes.
+   *
+   * @param code
+   *          the code
+   * @return true, if the code is well formed
+   */
+  public boolean isRegistrationCodeWellFormed(String code) {
+    return service.isRegistrationCodeWellFormed(code);
+  }
+
+  /**
+   * Sweeps the next page of the expired or used up registration codes of the
+   * current wiki now, without waiting for the background sweeper. It requires
+   * the administration rights on the data space or the programming rights.
+   *
+   * @return the number of deactivated codes, -1 if an error occurred or if
+   *         the sweep is not allowed
+   */
+  public int sweepRegistrationCodes() {
+    XWikiContext context = service.getContext();
+    if (!isAdministrator(getDataSpaceReference(context))) {
+      logger.warn("{} is not allowed to sweep the registration codes of wiki {}", context.getUserReference(),
+          context.getWikiId());
+      return -1;
+    }
+    try {
+      return sweeper.sweepNextPage(context.getWikiId());
+    } catch (QueryException ex) {
+      logger.warn("An error occurred while sweeping registration codes", ex);
+      return -1;
+    }
+  }
+
 }
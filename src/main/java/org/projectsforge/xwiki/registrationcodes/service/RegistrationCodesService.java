@@ -1,5 +1,11 @@
 package org.projectsforge.xwiki.registrationcodes.service;
 
+import java.util.List;
+import java.util.Map;
+
+import org.projectsforge.xwiki.registrationcodes.enrollment.Enrollment;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCodeTemplate;
+
 import org.xwiki.component.annotation.Role;
 import org.xwiki.model.reference.DocumentReference;
 
@@ -18,10 +24,59 @@ public interface RegistrationCodesService {
    *          the code
    * @param userRef
    *          the user ref
-   * @return success, noresult, multipleresults, error
+   * @return success, noresult, multipleresults, throttled (too many failed
+   *         attempts by the user or from the remote address), error. When enrollments are
+   *         asynchronous or fail, success means that the activation is
+   *         recorded and the wiki and group enrollments are scheduled (see
+   *         {@link #getEnrollments(String)})
    */
   String activateRegitrationCode(String code, String userRef);
 
+  /**
+   * Activates a registration code for several users at once, e.g. to enroll a
+   * roster. The code is looked up once, the users are checked in order against
+   * the remaining uses of the code and recorded with a single save, and they
+   * are added to each wiki and group with a single write. The enrollments are
+   * always run before returning; those failing are retried in the background
+   * (see {@link #getEnrollments(String)}).
+   *
+   * @param code
+   *          the code
+   * @param users
+   *          the users
+   * @return the outcome by user: success, noresult (the code is unknown,
+   *         inactive, used up or already used by the user), multipleresults,
+   *         error
+   */
+  Map<String, String> activateRegitrationCode(String code, List<String> users);
+
+  /**
+   * Creates registration codes in bulk in the data space of the current wiki.
+   * The codes are checked for uniqueness in memory and the documents are saved
+   * in batches; progress is reported to the current job, if any.
+   *
+   * @param count
+   *          the number of codes to create
+   * @param template
+   *          the settings of the codes
+   * @return the created codes with their document, which may be less than
+   *         requested if an error occurred
+   */
+  Map<String, DocumentReference> createRegistrationCodes(int count, RegistrationCodeTemplate template);
+
+  /**
+   * Deactivates a registration code which can no longer be used because its
+   * end date is past or it has been used by as many users as allowed, so that
+   * it leaves the active codes. The code is saved like an activation, without
+   * overwriting a concurrent one.
+   *
+   * @param reference
+   *          the registration code document reference
+   * @return expired or exhausted if the code has been deactivated, usable if it
+   *         can still be used, inactive if it is not an active code, error
+   */
+  String deactivateUnusableRegistrationCode(DocumentReference reference);
+
   /**
    * Gets the context.
    *
@@ -30,21 +85,53 @@ public interface RegistrationCodesService {
   XWikiContext getContext();
 
   /**
-   * Gets the new registration code reference.
+   * Gets the enrollments of a user run in the background after an activation:
+   * pending ones and recently finished ones.
+   *
+   * @param user
+   *          the user reference
+   * @return the enrollments
+   */
+  List<Enrollment> getEnrollments(String user);
+
+  /**
+   * Gets the new registration code reference. Its number is consumed even if
+   * the document is never saved, leaving a gap in the numbering, so it should
+   * only be asked for right before creating the code. Another cluster node may
+   * get the same number, so the callers should check that the document is new
+   * when saving it.
    *
-   * @return the new registration code reference
+   * @return the new registration code reference or null if an error occurred
    */
   DocumentReference getNewRegistrationCodeReference();
 
+  /**
+   * Reserves new registration code references at once. The references whose
+   * document already exists are skipped, but another cluster node may still
+   * create one of them before it is saved, so the callers should check that
+   * the documents are new when saving them. The numbers are consumed even if
+   * the documents are never saved.
+   *
+   * @param count
+   *          the number of references
+   * @return the new registration code references or an empty list if an error
+   *         occurred
+   */
+  List<DocumentReference> getNewRegistrationCodeReferences(int count);
+
   /**
    * Gets the random registration code.
    *
-   * @return the random registration code
+   * @return the random registration code, not used yet, or null if the code
+   *         generator is not available
    */
   String getRandomRegistrationCode();
 
   /**
-   * Checks if is registration code existent.
+   * Checks if a code is held by a registration code, active or not. Only the
+   * documents of the data space are looked at, in the current wiki or in the
+   * whole farm if configured so: registration code objects stored in other
+   * spaces are not found since they can not be activated either.
    *
    * @param code
    *          the code
@@ -52,4 +139,15 @@ public interface RegistrationCodesService {
    */
   boolean isRegistrationCodeExistent(String code);
 
+  /**
+   * Checks if a code has the format of the codes of the configured generator,
+   * e.g. to report a typing error before activating it. Codes generated with
+   * another format may still exist.
+   *
+   * @param code
+   *          the code
+   * @return true, if the code is well formed
+   */
+  boolean isRegistrationCodeWellFormed(String code);
+
 }
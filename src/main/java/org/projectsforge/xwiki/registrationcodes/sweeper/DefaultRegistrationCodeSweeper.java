@@ -0,0 +1,204 @@
+package org.projectsforge.xwiki.registrationcodes.sweeper;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.projectsforge.xwiki.registrationcodes.Constants;
+import org.projectsforge.xwiki.registrationcodes.mapping.RegistrationCode;
+import org.projectsforge.xwiki.registrationcodes.metrics.RegistrationCodesMetrics;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesService;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * The Class DefaultRegistrationCodeSweeper. The candidates are found with a
+ * query on the property tables and each one is deactivated by the service, one
+ * document at a time, so that activations of other codes are never blocked.
+ */
+@Component
+@Singleton
+public class DefaultRegistrationCodeSweeper implements RegistrationCodeSweeper, Initializable, Disposable {
+
+  /**
+   * The runnable sweeping a page of each wiki.
+   */
+  private class SweepRunnable extends AbstractXWikiRunnable {
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.xpn.xwiki.util.AbstractXWikiRunnable#runInternal()
+     */
+    @Override
+    protected void runInternal() {
+      try {
+        for (String wikiId : wikiDescriptorManager.getAllIds()) {
+          sweepNextPage(wikiId);
+        }
+      } catch (WikiManagerException | QueryException | RuntimeException ex) {
+        // an exception would cancel the next runs
+        logger.warn("An error occurred while sweeping registration codes", ex);
+      }
+    }
+  }
+
+  /**
+   * The statement finding the active registration codes which are expired or
+   * have as many users as allowed. The codes not counting their users yet are
+   * counted once migrated (see RegistrationCodeUserMigrator).
+   */
+  private static final String CANDIDATES_STATEMENT = "select obj.name from BaseObject as obj, "
+      + "IntegerProperty as activeProp, DateProperty as endDateProp, IntegerProperty as maxUseProp "
+      + "where obj.className = :className and obj.name like :space and obj.name > :last "
+      + "and activeProp.id.id = obj.id and activeProp.id.name = :active and activeProp.value = 1 "
+      + "and endDateProp.id.id = obj.id and endDateProp.id.name = :endDate "
+      + "and maxUseProp.id.id = obj.id and maxUseProp.id.name = :maxUse "
+      + "and (endDateProp.value < :now or maxUseProp.value <= 0 or exists (select countProp.id.id "
+      + "from IntegerProperty as countProp where countProp.id.id = obj.id and countProp.id.name = :userCount "
+      + "and countProp.value >= maxUseProp.value)) order by obj.name";
+
+  /** The counter of the deactivated codes, followed by the reason. */
+  private static final String METRIC_SWEEPER = "sweeper";
+
+  /** The timer of the pages. */
+  private static final String METRIC_PAGE = "sweeper.page";
+
+  /** The logger. */
+  @Inject
+  private Logger logger;
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The query manager. */
+  @Inject
+  private QueryManager queryManager;
+
+  /** The document reference resolver. */
+  @Inject
+  private DocumentReferenceResolver<String> documentReferenceResolver;
+
+  /** The service. */
+  @Inject
+  private RegistrationCodesService service;
+
+  /** The wiki descriptor manager. */
+  @Inject
+  private WikiDescriptorManager wikiDescriptorManager;
+
+  /** The context provider. */
+  @Inject
+  private Provider<XWikiContext> contextProvider;
+
+  /** The metrics. */
+  @Inject
+  private RegistrationCodesMetrics metrics;
+
+  /** The name of the last document of the previous page, by wiki id. */
+  private final Map<String, String> lastNames = new ConcurrentHashMap<>();
+
+  /** The scheduler or null if the sweeper is disabled. */
+  private ScheduledExecutorService scheduler;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Disposable#dispose()
+   */
+  @Override
+  public void dispose() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() {
+    long interval = configuration.getSweeperInterval();
+    if (interval > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RegistrationCodes sweeper");
+        thread.setDaemon(true);
+        return thread;
+      });
+      scheduler.scheduleWithFixedDelay(new SweepRunnable(), interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.registrationcodes.sweeper.RegistrationCodeSweeper#
+   * sweepNextPage(java.lang.String)
+   */
+  @Override
+  public int sweepNextPage(String wikiId) throws QueryException {
+    long start = System.nanoTime();
+    int pageSize = Math.max(1, configuration.getSweeperPageSize());
+    List<String> names = queryManager.createQuery(CANDIDATES_STATEMENT, Query.HQL).setWiki(wikiId)
+        .bindValue("className", RegistrationCode.getClassReferenceAsString())
+        .bindValue("userCount", RegistrationCode.FIELD_USER_COUNT)
+        .bindValue("space", Constants.DATA_SPACE_NAME_AS_STRING + ".%")
+        .bindValue("last", lastNames.getOrDefault(wikiId, "")).bindValue("active", RegistrationCode.FIELD_ACTIVE)
+        .bindValue("endDate", RegistrationCode.FIELD_END_DATE).bindValue("maxUse", RegistrationCode.FIELD_MAX_USE)
+        .bindValue("now", new Date()).setLimit(pageSize).execute();
+    // the next page starts over once the end is reached
+    if (names.size() < pageSize) {
+      lastNames.remove(wikiId);
+    } else {
+      lastNames.put(wikiId, names.get(names.size() - 1));
+    }
+
+    int deactivated = 0;
+    XWikiContext context = contextProvider.get();
+    String currentWikiId = context.getWikiId();
+    context.setWikiId(wikiId);
+    try {
+      for (String name : names) {
+        DocumentReference reference = documentReferenceResolver.resolve(name, context.getWikiReference());
+        String outcome = service.deactivateUnusableRegistrationCode(reference);
+        metrics.increment(METRIC_SWEEPER + "." + outcome);
+        if ("expired".equals(outcome) || "exhausted".equals(outcome)) {
+          deactivated++;
+        }
+      }
+    } finally {
+      context.setWikiId(currentWikiId);
+    }
+    metrics.record(METRIC_PAGE, System.nanoTime() - start);
+    if (deactivated > 0) {
+      logger.info("{} registration codes of wiki {} deactivated", deactivated, wikiId);
+    }
+    return deactivated;
+  }
+
+}
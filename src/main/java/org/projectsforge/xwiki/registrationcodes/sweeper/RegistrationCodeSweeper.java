@@ -0,0 +1,28 @@
+package org.projectsforge.xwiki.registrationcodes.sweeper;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.query.QueryException;
+
+/**
+ * The Interface RegistrationCodeSweeper deactivates the registration codes
+ * which can no longer be used, because their end date is past or they have
+ * been used by as many users as allowed, so that the active codes only hold
+ * usable ones. The sweeper runs in the background, one page per wiki at the
+ * configured interval.
+ */
+@Role
+public interface RegistrationCodeSweeper {
+
+  /**
+   * Sweeps the next page of a wiki, continuing after the last code of the
+   * previous page of the wiki.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @return the number of deactivated codes
+   * @throws QueryException
+   *           if the codes to sweep can not be found
+   */
+  int sweepNextPage(String wikiId) throws QueryException;
+
+}
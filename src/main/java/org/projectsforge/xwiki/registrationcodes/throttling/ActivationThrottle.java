@@ -0,0 +1,84 @@
+package org.projectsforge.xwiki.registrationcodes.throttling;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * The Interface ActivationThrottle protects the activation of registration
+ * codes from guessing: the failed attempts of each user and of each remote
+ * address are limited by token buckets, and the codes recently found unknown
+ * are remembered so that they are rejected without any lookup.
+ */
+@Role
+public interface ActivationThrottle {
+
+  /**
+   * Forgets that a code was unknown, e.g. because a registration code holding
+   * it has just been saved, in its wiki as well as in the whole farm.
+   *
+   * @param wikiId
+   *          the wiki id
+   * @param codeHash
+   *          the code hash
+   */
+  void forgetUnknownCode(String wikiId, String codeHash);
+
+  /**
+   * Gets the address of the client of a request: the remote address, or the
+   * last address of the X-Forwarded-For header not added by a trusted proxy
+   * when the request comes from one (see
+   * {@link org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration#getThrottlingTrustedProxies()}).
+   *
+   * @param request
+   *          the request, null if none
+   * @return the client address, null if not known
+   */
+  String getRemoteAddress(HttpServletRequest request);
+
+  /**
+   * Checks if a code was recently found unknown.
+   *
+   * @param wikiId
+   *          the wiki id, null for the lookups spanning the whole farm
+   * @param codeHash
+   *          the code hash
+   * @return true, if the code is known to be unknown
+   */
+  boolean isUnknownCode(String wikiId, String codeHash);
+
+  /**
+   * Remembers that a code is unknown.
+   *
+   * @param wikiId
+   *          the wiki id, null for the lookups spanning the whole farm
+   * @param codeHash
+   *          the code hash
+   */
+  void rememberUnknownCode(String wikiId, String codeHash);
+
+  /**
+   * Gives back the tokens of an attempt which did not fail, so that only the
+   * failed attempts are charged.
+   *
+   * @param user
+   *          the user, null if not known
+   * @param remoteAddress
+   *          the remote address, null if not known
+   */
+  void release(String user, String remoteAddress);
+
+  /**
+   * Takes a token from the buckets of a user and of a remote address, or none
+   * if one of them is empty. The tokens must be given back (see
+   * {@link #release(String, String)}) if the attempt does not fail.
+   *
+   * @param user
+   *          the user, null if not known
+   * @param remoteAddress
+   *          the remote address, null if not known
+   * @return true, if the attempt is allowed
+   */
+  boolean tryAcquire(String user, String remoteAddress);
+
+}
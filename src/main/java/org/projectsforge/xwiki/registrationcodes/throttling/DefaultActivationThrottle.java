@@ -0,0 +1,179 @@
+package org.projectsforge.xwiki.registrationcodes.throttling;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.projectsforge.xwiki.registrationcodes.ExpiringCache;
+import org.projectsforge.xwiki.registrationcodes.service.RegistrationCodesConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * The Class DefaultActivationThrottle. A token is taken from the buckets of
+ * each attempt and given back unless the attempt fails, so that the attempts
+ * running at the same time can not exceed the limits.
+ */
+@Component
+@Singleton
+public class DefaultActivationThrottle implements ActivationThrottle, Initializable {
+
+  /** The configuration. */
+  @Inject
+  private RegistrationCodesConfiguration configuration;
+
+  /** The header listing the addresses of the clients of the proxies. */
+  private static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+  /** The buckets of the users. */
+  private TokenBuckets userBuckets;
+
+  /** The buckets of the remote addresses. */
+  private TokenBuckets addressBuckets;
+
+  /** The codes recently found unknown, by wiki and code hash. */
+  private ExpiringCache<String, Boolean> unknownCodes;
+
+  /** The addresses of the trusted proxies. */
+  private Set<String> trustedProxies;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.throttling.ActivationThrottle#
+   * forgetUnknownCode(java.lang.String, java.lang.String)
+   */
+  @Override
+  public void forgetUnknownCode(String wikiId, String codeHash) {
+    unknownCodes.remove(getKey(wikiId, codeHash));
+    unknownCodes.remove(getKey(null, codeHash));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.throttling.ActivationThrottle#
+   * getRemoteAddress(javax.servlet.http.HttpServletRequest)
+   */
+  @Override
+  public String getRemoteAddress(HttpServletRequest request) {
+    if (request == null) {
+      return null;
+    }
+    String address = request.getRemoteAddr();
+    if (!trustedProxies.contains(address)) {
+      return address;
+    }
+    // each proxy appends the address of its client: the last address not
+    // appended by a trusted proxy is the one of the client
+    String[] forwardedFor = StringUtils.split(StringUtils.defaultString(request.getHeader(FORWARDED_FOR_HEADER)),
+        ',');
+    for (int i = forwardedFor.length - 1; i >= 0; --i) {
+      address = forwardedFor[i].trim();
+      if (!trustedProxies.contains(address)) {
+        break;
+      }
+    }
+    return address;
+  }
+
+  /**
+   * Gets the key of a code.
+   *
+   * @param wikiId
+   *          the wiki id, null for the whole farm
+   * @param codeHash
+   *          the code hash
+   * @return the key
+   */
+  private String getKey(String wikiId, String codeHash) {
+    return (wikiId == null ? "" : wikiId) + ':' + codeHash;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() throws InitializationException {
+    int bucketsSize = configuration.getThrottlingBucketsSize();
+    userBuckets = new TokenBuckets(configuration.getThrottlingUserCapacity(),
+        configuration.getThrottlingUserRefillPeriod(), bucketsSize);
+    addressBuckets = new TokenBuckets(configuration.getThrottlingAddressCapacity(),
+        configuration.getThrottlingAddressRefillPeriod(), bucketsSize);
+    unknownCodes = new ExpiringCache<>(configuration.getUnknownCodeCacheSize(),
+        configuration.getUnknownCodeCacheTimeToLive());
+    trustedProxies = new HashSet<>();
+    for (String proxy : configuration.getThrottlingTrustedProxies()) {
+      if (StringUtils.isNotBlank(proxy)) {
+        trustedProxies.add(proxy.trim());
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.throttling.ActivationThrottle#
+   * isUnknownCode(java.lang.String, java.lang.String)
+   */
+  @Override
+  public boolean isUnknownCode(String wikiId, String codeHash) {
+    return unknownCodes.get(getKey(wikiId, codeHash)) != null;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.throttling.ActivationThrottle#
+   * rememberUnknownCode(java.lang.String, java.lang.String)
+   */
+  @Override
+  public void rememberUnknownCode(String wikiId, String codeHash) {
+    unknownCodes.put(getKey(wikiId, codeHash), Boolean.TRUE);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.throttling.ActivationThrottle#
+   * release(java.lang.String, java.lang.String)
+   */
+  @Override
+  public void release(String user, String remoteAddress) {
+    if (user != null) {
+      userBuckets.release(user);
+    }
+    if (remoteAddress != null) {
+      addressBuckets.release(remoteAddress);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.registrationcodes.throttling.ActivationThrottle#
+   * tryAcquire(java.lang.String, java.lang.String)
+   */
+  @Override
+  public boolean tryAcquire(String user, String remoteAddress) {
+    if (user != null && !userBuckets.tryAcquire(user)) {
+      return false;
+    }
+    if (remoteAddress != null && !addressBuckets.tryAcquire(remoteAddress)) {
+      // the attempt is rejected as a whole
+      if (user != null) {
+        userBuckets.release(user);
+      }
+      return false;
+    }
+    return true;
+  }
+
+}
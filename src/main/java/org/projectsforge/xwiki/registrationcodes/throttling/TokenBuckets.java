@@ -0,0 +1,120 @@
+package org.projectsforge.xwiki.registrationcodes.throttling;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets by key. Each bucket is a single atomic value, the time at
+ * which it will be full again (generic cell rate algorithm), so that taking a
+ * token is one compare-and-set without any lock. Full buckets carry no
+ * information and are pruned once the number of buckets exceeds a bound.
+ */
+class TokenBuckets {
+
+  /** The time each bucket will be full again, in ns. */
+  private final Map<String, AtomicLong> fullTimes = new ConcurrentHashMap<>();
+
+  /** The time in ns to get one token back. */
+  private final long refillPeriod;
+
+  /** The time in ns to get all the tokens back from an empty bucket. */
+  private final long capacityPeriod;
+
+  /** The number of buckets beyond which full buckets are pruned. */
+  private final int pruneThreshold;
+
+  /** The pruning flag, so that a single thread prunes at a time. */
+  private final AtomicBoolean pruning = new AtomicBoolean();
+
+  /**
+   * Instantiates new token buckets.
+   *
+   * @param capacity
+   *          the number of tokens of a full bucket, 0 or less to disable the
+   *          buckets
+   * @param refillPeriod
+   *          the time in ms to get one token back
+   * @param pruneThreshold
+   *          the number of buckets beyond which full buckets are pruned
+   */
+  TokenBuckets(int capacity, long refillPeriod, int pruneThreshold) {
+    this.refillPeriod = TimeUnit.MILLISECONDS.toNanos(Math.max(0, refillPeriod));
+    this.capacityPeriod = capacity <= 0 ? -1 : this.refillPeriod * capacity;
+    this.pruneThreshold = pruneThreshold;
+  }
+
+  /**
+   * Prunes the full buckets.
+   *
+   * @param now
+   *          the current time in ns
+   */
+  private void prune(long now) {
+    if (pruning.compareAndSet(false, true)) {
+      try {
+        fullTimes.entrySet().removeIf(entry -> entry.getValue().get() - now <= 0);
+      } finally {
+        pruning.set(false);
+      }
+    }
+  }
+
+  /**
+   * Gives a token back to the bucket of a key, e.g. when the attempt it was
+   * taken for is not charged.
+   *
+   * @param key
+   *          the key
+   */
+  void release(String key) {
+    if (capacityPeriod < 0) {
+      return;
+    }
+    AtomicLong fullTime = fullTimes.get(key);
+    if (fullTime == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    while (true) {
+      long current = fullTime.get();
+      if (current - now <= 0 || fullTime.compareAndSet(current, current - refillPeriod)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Takes a token from the bucket of a key.
+   *
+   * @param key
+   *          the key
+   * @return true, if the bucket had a token
+   */
+  boolean tryAcquire(String key) {
+    if (capacityPeriod < 0) {
+      return true;
+    }
+    long now = System.nanoTime();
+    AtomicLong fullTime = fullTimes.get(key);
+    if (fullTime == null) {
+      if (fullTimes.size() >= pruneThreshold) {
+        prune(now);
+      }
+      fullTime = fullTimes.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+    while (true) {
+      long current = fullTime.get();
+      long next = (current - now > 0 ? current : now) + refillPeriod;
+      if (next - now > capacityPeriod) {
+        return false;
+      }
+      if (fullTime.compareAndSet(current, next)) {
+        return true;
+      }
+    }
+  }
+
+}